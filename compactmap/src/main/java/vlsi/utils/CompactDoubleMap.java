@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+/**
+ * Map from objects to {@code double} values that does not box the values. The keys are shared with
+ * {@link CompactHashMap} maps of the same context, and the map stores just a {@code double[]} of values,
+ * so it is much smaller than {@code CompactHashMap<K, Double>} that stores a {@link Double} per value.
+ * <pre>
+ * CompactDoubleMap&lt;String&gt; metrics = new CompactDoubleMap&lt;String&gt;();
+ * metrics.addDouble("latency", 1.5);
+ * double latency = metrics.getDouble("latency", 0);
+ * </pre>
+ *
+ * <p>The map permits {@code null} keys. <strong>Note that this implementation is not synchronized.</strong></p>
+ *
+ * @author Vladimir Sitnikov
+ * @param <K> the type of keys maintained by this map
+ */
+public final class CompactDoubleMap<K> extends CompactPrimitiveMap<K> {
+    private static final double[] EMPTY = new double[0];
+
+    private double[] values = EMPTY;
+
+    /**
+     * Creates an empty map that uses {@link CompactMapContext#getDefault() the default context}.
+     */
+    public CompactDoubleMap() {
+        this(CompactMapContext.getDefault());
+    }
+
+    /**
+     * Creates an empty map that uses the given context.
+     *
+     * @param context the context that provides the classes
+     */
+    public CompactDoubleMap(CompactMapContext context) {
+        super(context);
+    }
+
+    /**
+     * Returns the value of the key.
+     *
+     * @param key     the key
+     * @param missing the value to return when the key is absent
+     * @return the value of the key or {@code missing}
+     */
+    public double getDouble(Object key, double missing) {
+        int index = indexOf(key);
+        return index < 0 ? missing : values[index];
+    }
+
+    /**
+     * Associates the value with the key.
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    public void putDouble(K key, double value) {
+        int index = indexOf(key);
+        if (index < 0) {
+            index = addKey(key);
+        }
+        values[index] = value;
+    }
+
+    /**
+     * Adds the delta to the value of the key, a missing key is treated as zero.
+     *
+     * @param key   the key
+     * @param delta the value to add
+     * @return the new value of the key
+     */
+    public double addDouble(K key, double delta) {
+        int index = indexOf(key);
+        if (index < 0) {
+            index = addKey(key);
+        }
+        return values[index] += delta;
+    }
+
+    @Override
+    int capacity() {
+        return values.length;
+    }
+
+    @Override
+    void resize(int length) {
+        double[] newValues = length == 0 ? EMPTY : new double[length];
+        System.arraycopy(values, 0, newValues, 0, Math.min(length, size()));
+        values = newValues;
+    }
+
+    @Override
+    void removeValue(int index, int size) {
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        // The new keys start with zero
+        values[size - 1] = 0;
+    }
+
+    @Override
+    int valueHashCode(int index) {
+        long bits = Double.doubleToLongBits(values[index]);
+        return (int) (bits ^ (bits >>> 32));
+    }
+
+    @Override
+    boolean valueEquals(int index, CompactPrimitiveMap<?> other, int otherIndex) {
+        // The same as Double.equals: NaN equals to itself, and 0.0 does not equal to -0.0
+        return Double.doubleToLongBits(values[index])
+                == Double.doubleToLongBits(((CompactDoubleMap<?>) other).values[otherIndex]);
+    }
+
+    @Override
+    void appendValue(StringBuilder sb, int index) {
+        sb.append(values[index]);
+    }
+
+    /**
+     * Returns a copy of this map.
+     *
+     * @return a copy of this map
+     */
+    @Override
+    public CompactDoubleMap<K> clone() {
+        CompactDoubleMap<K> result = (CompactDoubleMap<K>) super.clone();
+        result.values = values.clone();
+        return result;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Map with enum keys. The set of keys (the shape of the map) is a bitmask of the ordinals of the present keys,
+ * and the values are stored densely in the order of the ordinals, so the slot of a key is the number of
+ * present keys with smaller ordinals ({@link Long#bitCount(long)} of the lower bits). The lookups neither
+ * hash the keys nor compare them with {@code equals}.
+ *
+ * <p>Unlike {@link java.util.EnumMap}, the array of values has no cells for the absent keys, so the maps
+ * with a few keys of a large enum are much smaller. The enums with more than 64 constants do not fit
+ * in the bitmask, so for them the map stores a value per constant like {@link java.util.EnumMap}.</p>
+ *
+ * <p>The default values of the context (see {@link CompactMapContext#addDefaultValue(Object, Object)})
+ * are stored in the shared class of the map rather than in the map itself.</p>
+ *
+ * <p>The map permits {@code null} values, and it iterates in the order of the ordinals.
+ * <strong>Note that this implementation is not synchronized.</strong></p>
+ *
+ * @author Vladimir Sitnikov
+ * @param <E> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public class CompactEnumMap<E extends Enum<E>, V> extends CompactOrdinalMap<E, V> implements Serializable {
+    private static final long serialVersionUID = -3205318263834916012L;
+
+    /**
+     * Creates an empty map that uses {@link CompactMapContext#getDefault() the default context}.
+     *
+     * @param keyType the class of the keys
+     */
+    public CompactEnumMap(Class<E> keyType) {
+        this(CompactMapContext.getDefault(), keyType);
+    }
+
+    /**
+     * Creates an empty map that uses the given context.
+     *
+     * @param context the context that provides the default values
+     * @param keyType the class of the keys
+     */
+    public CompactEnumMap(CompactMapContext context, Class<E> keyType) {
+        init(CompactOrdinalMapClass.<E, V>getRoot(context, keyType));
+    }
+
+    /**
+     * Creates a copy of the given map.
+     *
+     * @param m the map to copy
+     */
+    public CompactEnumMap(CompactEnumMap<E, ? extends V> m) {
+        init(m);
+    }
+
+    private Class<E> getKeyType() {
+        return (Class<E>) klass.universeKey;
+    }
+
+    @Override
+    final int ordinal(Object key) {
+        if (!(key instanceof Enum)) {
+            return -1;
+        }
+        int ordinal = ((Enum<?>) key).ordinal();
+        E[] keys = klass.keys;
+        return ordinal < keys.length && keys[ordinal] == key ? ordinal : -1;
+    }
+
+    @Override
+    final RuntimeException invalidKey(Object key) {
+        if (key == null) {
+            return new NullPointerException("CompactEnumMap does not permit null keys");
+        }
+        return new ClassCastException(key.getClass() + " != " + getKeyType());
+    }
+
+    /**
+     * Returns a shallow copy of this map: the keys and values themselves are not cloned.
+     *
+     * @return a copy of this map
+     */
+    @Override
+    public CompactEnumMap<E, V> clone() {
+        return (CompactEnumMap<E, V>) super.clone();
+    }
+
+    private void writeObject(ObjectOutputStream s) throws IOException {
+        s.defaultWriteObject();
+        s.writeObject(getKeyType());
+        s.writeInt(size());
+        for (Entry<E, V> entry : entrySet()) {
+            s.writeObject(entry.getKey());
+            s.writeObject(entry.getValue());
+        }
+    }
+
+    private void readObject(ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        Object keyType = s.readObject();
+        if (!(keyType instanceof Class)) {
+            throw new InvalidObjectException("Enum class expected, got " + keyType);
+        }
+        // The context is not serialized, so the map uses the default one
+        init(CompactOrdinalMapClass.<E, V>getRoot(CompactMapContext.getDefault(), keyType));
+        int size = s.readInt();
+        for (int i = 0; i < size; i++) {
+            E key = (E) s.readObject();
+            put(key, (V) s.readObject());
+        }
+    }
+}
@@ -19,7 +19,7 @@ package vlsi.utils;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -60,8 +60,19 @@ import java.util.Set;
  * </p>
  *
  *
- * <p><strong>Note that map keys must be reused (you should not use unique
- * objects for keys), otherwise you will run out of memory.</strong></p>
+ * <p>Maps with too many keys (see {@link CompactMapContext#getDictionaryThreshold()}) switch to
+ * "dictionary mode": they store the entries in a regular open addressing hash table,
+ * so they do not create shapes for every key.</p>
+ *
+ * <p><strong>Note that map keys should be reused (you should not use unique
+ * objects for keys).</strong> Each new set of keys creates new shared metadata.
+ * The metadata that is no longer used by maps is garbage collected, and the number of shared
+ * shapes is limited with {@code -Dcompactmap.maxShapes=100000}, however unique keys still
+ * make the maps slower and larger.</p>
+ *
+ * <p>The classes and the default values belong to a {@link CompactMapContext}. The maps created with
+ * {@code new CompactHashMap()} use the default context, and the maps created with
+ * {@link CompactMapContext#newMap()} use their own classes and default values.</p>
  *
  * <p><strong>Note that this implementation is not synchronized</strong>
  * If multiple threads access the map concurrently, and at least one
@@ -73,14 +84,92 @@ import java.util.Set;
  * @param <K> the type of keys maintained by this map
  * @param <V> the type of mapped values
  */
-public class CompactHashMap<K, V> implements Map<K, V>, Serializable {
+public class CompactHashMap<K, V> implements Map<K, V>, Cloneable, Serializable {
     private static final long serialVersionUID = -7720507706954394566L;
 
     CompactHashMapClass<K, V> klass = CompactHashMapClass.EMPTY;
     Object v1, v2, v3;
 
+    /**
+     * Creates an empty map that uses {@link CompactMapContext#getDefault() the default context}.
+     */
+    public CompactHashMap() {
+    }
+
+    /**
+     * Creates an empty map that uses the given context.
+     *
+     * @param context the context that provides the classes and the default values
+     * @see CompactMapContext#newMap()
+     */
+    public CompactHashMap(CompactMapContext context) {
+        klass = context.root;
+    }
+
+    /**
+     * Creates a copy of the given map. The copy shares the class (set of keys and default values)
+     * with the source, so it is much faster than copying the entries one by one.
+     *
+     * @param m the map to copy
+     */
+    public CompactHashMap(CompactHashMap<? extends K, ? extends V> m) {
+        copyFrom(m);
+    }
+
+    /**
+     * Creates a map with the same mappings as the given map.
+     *
+     * @param m the map whose mappings are to be placed in this map
+     */
+    public CompactHashMap(Map<? extends K, ? extends V> m) {
+        putAll(m);
+    }
+
+    private void copyFrom(CompactHashMap<? extends K, ? extends V> source) {
+        CompactHashMap<? extends K, ? extends V> m = source.published();
+        klass = (CompactHashMapClass<K, V>) m.klass;
+        v1 = m.v1;
+        v2 = m.v2;
+        v3 = m.v3;
+        copyValues();
+    }
+
+    /**
+     * Makes sure the map does not share the array of values with another map.
+     */
+    private void copyValues() {
+        klass.copyValues(this);
+    }
+
+    /**
+     * Creates a reusable accessor for the given key. The accessor caches the location of the key
+     * for the map classes it has seen, so it is faster than {@link #get(Object)} when the same key
+     * is read from many maps.
+     *
+     * @param key the key to access
+     * @param <K> the type of keys
+     * @param <V> the type of values
+     * @return accessor for the key
+     */
+    public static <K, V> CompactHashMapKeyHandle<K, V> handle(K key) {
+        return new CompactHashMapKeyHandle<K, V>(key);
+    }
+
+    /**
+     * Returns the map to read the fields from. It is this map unless the map is frozen:
+     * {@link FrozenCompactHashMap} returns the reference it keeps in a final field, so the reads see
+     * the fields set by its constructor even if the map itself is published via a data race.
+     * The code that reads the fields of a map it has not created goes through this method.
+     *
+     * @return the map to read
+     */
+    CompactHashMap<K, V> published() {
+        return this;
+    }
+
     public int size() {
-        return klass.size(this);
+        CompactHashMap<K, V> map = published();
+        return map.klass.size(map);
     }
 
     public boolean isEmpty() {
@@ -88,7 +177,8 @@ public class CompactHashMap<K, V> implements Map<K, V>, Serializable {
     }
 
     public boolean containsKey(Object key) {
-        return klass.containsKey(this, key);
+        CompactHashMap<K, V> map = published();
+        return map.klass.containsKey(map, key);
     }
 
     public boolean containsValue(Object value) {
@@ -96,7 +186,8 @@ public class CompactHashMap<K, V> implements Map<K, V>, Serializable {
     }
 
     public V get(Object key) {
-        return klass.get(this, (K) key);
+        CompactHashMap<K, V> map = published();
+        return map.klass.get(map, (K) key);
     }
 
     public V put(K key, V value) {
@@ -112,26 +203,104 @@ public class CompactHashMap<K, V> implements Map<K, V>, Serializable {
     }
 
     public void putAll(Map<? extends K, ? extends V> m) {
+        int size = m.size();
+        if (size == 0) {
+            return;
+        }
+        if (m instanceof CompactHashMap && klass == ((CompactHashMap<?, ?>) m).published().klass.getContext().root) {
+            // This map is empty, and it belongs to the same context as the source one
+            copyFrom((CompactHashMap<? extends K, ? extends V>) m);
+            return;
+        }
+        if (size == 1 || !(m instanceof CompactHashMap || m instanceof HashMap)) {
+            // Keys of other maps are not necessarily distinct in terms of equals, so put them one by one
+            for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+        Object[] keys = new Object[size];
+        Object[] values = new Object[size];
+        int i = 0;
         for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
-            put(entry.getKey(), entry.getValue());
+            keys[i] = entry.getKey();
+            values[i] = entry.getValue();
+            i++;
         }
+        klass.putAll(this, keys, values, i);
     }
 
     public void clear() {
-        klass = CompactHashMapClass.EMPTY;
+        klass = klass.getContext().root;
         v1 = v2 = v3 = null;
     }
 
+    /**
+     * Releases the memory held by removed entries: the map moves to the class of its live keys,
+     * and the array of values shrinks to fit. The map compacts itself when it is about to grow,
+     * so call this method when a map is not going to be modified for a while.
+     */
+    public void compact() {
+        klass.compact(this);
+    }
+
+    /**
+     * Returns an immutable copy of this map: the copy has no removed entries and no spare capacity.
+     * The copy reads its fields via a final field, so it can be shared via a data race,
+     * and any number of threads can read it without locks.
+     * Unlike {@link java.util.Collections#unmodifiableMap(Map)} it is not a wrapper,
+     * and the reads are as fast. With compressed references and 12 byte object headers the final field fits
+     * in the gap of the 8 byte alignment, so the copy is as large as this map (or smaller),
+     * in other layouts the field adds 8 bytes.
+     *
+     * @return an immutable copy of this map
+     */
+    public FrozenCompactHashMap<K, V> freeze() {
+        return new FrozenCompactHashMap<K, V>(this);
+    }
+
+    /**
+     * Returns a cursor over the entries of this map. Unlike {@link #entrySet()} iterator, the cursor does not
+     * create objects per entry.
+     *
+     * @return a cursor that is positioned before the first entry
+     * @see MapCursor#reset(CompactHashMap)
+     */
+    public MapCursor<K, V> cursor() {
+        return new MapCursor<K, V>(this);
+    }
+
     public Set<K> keySet() {
-        return klass.keySet(this);
+        CompactHashMap<K, V> map = published();
+        return map.klass.keySet(map);
     }
 
     public Collection<V> values() {
-        return klass.values(this);
+        CompactHashMap<K, V> map = published();
+        return map.klass.values(map);
     }
 
     public Set<Entry<K, V>> entrySet() {
-        return klass.entrySet(this);
+        CompactHashMap<K, V> map = published();
+        return map.klass.entrySet(map);
+    }
+
+    /**
+     * Returns a shallow copy of this map: the keys and values themselves are not cloned.
+     *
+     * @return a copy of this map
+     */
+    @Override
+    public CompactHashMap<K, V> clone() {
+        CompactHashMap<K, V> result;
+        try {
+            result = (CompactHashMap<K, V>) super.clone();
+        } catch (CloneNotSupportedException e) {
+            // this shouldn't happen, since we are Cloneable
+            throw new InternalError();
+        }
+        result.copyValues();
+        return result;
     }
 
     public boolean equals(Object o) {
@@ -147,9 +316,18 @@ public class CompactHashMap<K, V> implements Map<K, V>, Serializable {
         if (m.size() != size())
             return false;
 
-        for (Entry<K, V> e : entrySet()) {
-            K key = e.getKey();
-            V value = e.getValue();
+        CompactHashMap<K, V> map = published();
+        if (o instanceof CompactHashMap) {
+            CompactHashMap<?, ?> other = ((CompactHashMap<?, ?>) o).published();
+            if (other.klass == map.klass) {
+                // The same keys in the same slots
+                return map.klass.equalValues(map, other);
+            }
+        }
+
+        for (MapCursor<K, V> cursor = cursor(); cursor.next(); ) {
+            K key = cursor.key();
+            V value = cursor.value();
 
             if (value == null) {
                 if (m.get(key) != null || !m.containsKey(key)) {
@@ -167,33 +345,28 @@ public class CompactHashMap<K, V> implements Map<K, V>, Serializable {
 
     @Override
     public String toString() {
-        Iterator<Entry<K, V>> it = entrySet().iterator();
-        if (!it.hasNext())
+        MapCursor<K, V> cursor = cursor();
+        if (!cursor.next())
             return "{}";
 
         StringBuilder sb = new StringBuilder();
         sb.append('{');
-        while (it.hasNext()) {
-            Entry<K, V> e = it.next();
-            K key = e.getKey();
-            V value = e.getValue();
-            sb.append(key).append('=').append(value);
+        do {
+            sb.append(cursor.key()).append('=').append(cursor.value());
             sb.append(',').append(' ');
-        }
+        } while (cursor.next());
         sb.setLength(sb.length() - 2);
         return sb.append('}').toString();
     }
 
     public int hashCode() {
-        int h = 0;
-        for (Entry<K, V> entry : entrySet()) {
-            h += entry.hashCode();
-        }
-        return h;
+        CompactHashMap<K, V> map = published();
+        return map.klass.hashCode(map);
     }
 
     private void writeObject(java.io.ObjectOutputStream s) throws IOException {
-        klass.serialize(this, s);
+        CompactHashMap<K, V> map = published();
+        map.klass.serialize(map, s);
     }
 
     private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
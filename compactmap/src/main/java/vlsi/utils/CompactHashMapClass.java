@@ -16,16 +16,16 @@
 
 package vlsi.utils;
 
-import com.github.andrewoma.dexx.collection.Pair;
-
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.*;
 
 abstract class CompactHashMapClass<K, V> {
-    public static final CompactHashMapClass EMPTY = new CompactHashMapClassEmptyDefaults(
-            new com.github.andrewoma.dexx.collection.HashMap());
+    /**
+     * The root class of {@link CompactMapContext#getDefault() the default context}.
+     */
+    public static final CompactHashMapClass EMPTY = new CompactMapContext().root;
 
     /**
      * Enum to represent "value was removed" in the serialized representation of the map.
@@ -34,24 +34,39 @@ abstract class CompactHashMapClass<K, V> {
         INSTANCE;
     }
 
-    final com.github.andrewoma.dexx.collection.Map<K, Integer> key2slot; // Immutable
+    /**
+     * Number of keys that are stored in slots.
+     */
+    final int keyCount;
+
+    /**
+     * Lookup table for key to slot mapping. It is built lazily, for the classes that are used often.
+     * The index might be shared with a descendant class that has more keys, so slots {@code >= keyCount - 2}
+     * are not present in the current class.
+     * The index is published via a plain field: the keys and slots are in final fields, so the readers
+     * see them fully initialized. The only mutable part is the cache of recently found slots
+     * ({@link CompactHashMapKeyIndex#get(Object)}), and its races are benign: a cell is a single int
+     * that holds either 0 or a slot written by some thread, and a cached slot is used only if the key
+     * in that slot is the very key being looked up, so a stale or missing entry just falls back to the hash lookup.
+     */
+    CompactHashMapKeyIndex key2slot;
 
     // This value is used as a marker of deleted object
     // "new String" is required to avoid clashing with regular strings
     public static final String REMOVED_OBJECT = new String("Non existing mapping value");
 
-    // dexx does not support null, so we wrap null
+    // key2slot does not support null, so we wrap null
     private static final Object NULL = new Object();
 
-    public CompactHashMapClass(com.github.andrewoma.dexx.collection.Map<K, Integer> key2slot) {
-        this.key2slot = key2slot;
+    public CompactHashMapClass(int keyCount) {
+        this.keyCount = keyCount;
     }
 
-    private K maskNull(K key) {
+    static <K> K maskNull(K key) {
         return key == null ? (K) NULL : key;
     }
 
-    private K unmaskNull(K key) {
+    static <K> K unmaskNull(K key) {
         return key == NULL ? null : key;
     }
 
@@ -59,7 +74,68 @@ abstract class CompactHashMapClass<K, V> {
         return Collections.emptyMap();
     }
 
-    protected abstract CompactHashMapClassEmptyDefaults<K, V> getMapWithEmptyDefaults();
+    /**
+     * Returns the number of slots that hold {@link #REMOVED_OBJECT} in the maps of this class.
+     * The class tracks the number, so {@link #size(CompactHashMap)} does not need to scan the values,
+     * and the maps do not need a field for it.
+     *
+     * @return the number of removed slots
+     * @see CompactHashMapClassInTree#withRemovedSlots(int)
+     */
+    int getRemovedSlots() {
+        return 0;
+    }
+
+    /**
+     * Returns the context the class belongs to.
+     *
+     * @return the context of the class
+     */
+    abstract CompactMapContext getContext();
+
+    /**
+     * Returns the slot of the given key when the class has no {@link #key2slot} index yet.
+     *
+     * @param key non-null key
+     * @return slot number or {@link CompactHashMapKeyIndex#NO_SLOT} when the key is absent
+     */
+    protected abstract int getSlotWithoutIndex(Object key);
+
+    /**
+     * Returns the index of the keys, building it if required.
+     * Note: the index might contain more than {@link #keyCount} keys.
+     *
+     * @return index of the keys
+     */
+    protected abstract CompactHashMapKeyIndex getKey2slot();
+
+    final int getSlot(Object key) {
+        CompactHashMapKeyIndex key2slot = this.key2slot;
+        if (key2slot == null) {
+            return getSlotWithoutIndex(key);
+        }
+        int slot = key2slot.get(key);
+        // NO_SLOT is Integer.MIN_VALUE, so it passes the check as well
+        return slot < keyCount - 2 ? slot : CompactHashMapKeyIndex.NO_SLOT;
+    }
+
+    /**
+     * Makes sure the map does not share the array of values with another map.
+     *
+     * @param map the map that has just been copied
+     */
+    void copyValues(CompactHashMap<K, V> map) {
+        if (keyCount <= 3) {
+            // v1 is a regular value
+            return;
+        }
+        // The array holds slots 0..keyCount-3
+        // Drop the spare capacity, however keep the length even to play well with 8 byte alignment
+        int length = keyCount - 2;
+        Object[] values = new Object[length + (length & 1)];
+        System.arraycopy((Object[]) map.v1, 0, values, 0, length);
+        map.v1 = values;
+    }
 
     public V get(CompactHashMap<K, V> map, K key) {
         Object result = getInternal(map, key);
@@ -68,8 +144,8 @@ abstract class CompactHashMapClass<K, V> {
 
     private Object getInternal(CompactHashMap<K, V> map, Object key) {
         K nonNullKey = maskNull((K) key);
-        final Integer slot = key2slot.get(nonNullKey);
-        if (slot == null)
+        final int slot = getSlot(nonNullKey);
+        if (slot == CompactHashMapKeyIndex.NO_SLOT)
             return getDefaultValues().get(nonNullKey);
 
         return getValueFromSlot(map, slot);
@@ -83,125 +159,131 @@ abstract class CompactHashMapClass<K, V> {
                 return map.v2;
             case 0:
                 // Maps with fewer than 3 keys store their slot 0 in v1
-                if (map.klass.key2slot.size() <= 3) {
+                if (map.klass.keyCount <= 3) {
                     return map.v1;
                 }
         }
         return ((Object[]) map.v1)[slot];
     }
 
-    public V put(CompactHashMap<K, V> map, K key, Object value) {
-        K nonNullKey = maskNull(key);
-        Integer slot = key2slot.get(nonNullKey);
-        Object prevValue = REMOVED_OBJECT;
-        if (slot == null) {
-            prevValue = getDefaultValues().get(nonNullKey);
-
-            // Try put value as "default"
-            Map<K, V> newDef = CompactHashMapDefaultValues.getNewDefaultValues(getDefaultValues(), nonNullKey, value);
-            if (newDef != null) {
-                map.klass = getMapWithEmptyDefaults().getNewDefaultClass(newDef);
-                return (V) prevValue;
-            }
-
-            if (value == REMOVED_OBJECT)
-                return (V) prevValue;
-            // The value is not default -- put using regular way
-            slot = createNewSlot(map, nonNullKey);
-        }
+    public abstract V put(CompactHashMap<K, V> map, K key, Object value);
 
+    protected static void setValueInSlot(CompactHashMap map, int slot, Object value) {
         switch (slot) {
-            case -1:
-                if (prevValue == REMOVED_OBJECT)
-                    prevValue = map.v2;
-                map.v2 = value;
-                break;
             case -2:
-                if (prevValue == REMOVED_OBJECT)
-                    prevValue = map.v3;
                 map.v3 = value;
-                break;
-            default:
-                if (slot == 0 && key2slot.size() <= 3) {
-                    if (prevValue == REMOVED_OBJECT)
-                        prevValue = map.v1;
+                return;
+            case -1:
+                map.v2 = value;
+                return;
+            case 0:
+                // Maps with fewer than 3 keys store their slot 0 in v1
+                if (map.klass.keyCount <= 3) {
                     map.v1 = value;
-                    break;
+                    return;
                 }
-
-                Object[] array = (Object[]) map.v1;
-                if (prevValue == REMOVED_OBJECT)
-                    prevValue = array[slot];
-                array[slot] = value;
-                break;
         }
-
-        return (V) prevValue;
+        ((Object[]) map.v1)[slot] = value;
     }
 
-    private Integer createNewSlot(CompactHashMap<K, V> map, K key) {
-        final CompactHashMapClass<K, V> nextKlass = getMapWithEmptyDefaults().getNextKlass(key, getDefaultValues());
-        map.klass = nextKlass;
-
-        int prevSize = key2slot.size();
-
-        if (prevSize == 3) {
-            // Array length should be odd to play well with 8 byte alignment of object size
-            //  1.5 refs (object header) + 1 int (array length) + n*length refs (contents)
-            Object[] array = new Object[4];
-            array[0] = map.v1;
-            map.v1 = array;
-        } else if (prevSize > 3) {
-            Object[] array = (Object[]) map.v1;
-            if (array.length < prevSize - 1) {
-                int newSize = array.length * 3 / 2;
-                newSize += newSize & 1; // If odd, round to next even
-                Object[] newArray = new Object[newSize];
-                System.arraycopy(array, 0, newArray, 0, array.length);
-                map.v1 = newArray;
-            }
-        }
+    /**
+     * Puts several entries at once. Unlike a sequence of {@link #put(CompactHashMap, Object, Object)}
+     * calls, it resizes the storage of the map at most once.
+     *
+     * @param map    the map to update, its class must be {@code this}
+     * @param keys   distinct keys, the method replaces nulls with the masked value
+     * @param values values, {@link #REMOVED_OBJECT} allocates a slot for a key, yet it keeps the key absent
+     * @param size   number of entries to put
+     */
+    public abstract void putAll(CompactHashMap<K, V> map, Object[] keys, Object[] values, int size);
 
-        return nextKlass.key2slot.get(key);
-    }
+    /**
+     * Drops the removed values and the spare capacity of the map.
+     *
+     * @param map the map to compact
+     */
+    abstract void compact(CompactHashMap<K, V> map);
 
     public int size(CompactHashMap<K, V> map) {
-        return key2slot.size() + getDefaultValues().size() - removedSlotsCount(map);
-    }
-
-    private int removedSlotsCount(CompactHashMap<K, V> map) {
-        int emptySlots = 0;
-        switch (key2slot.size()) {
-            default: // more than 3
-                for (Object o : (Object[]) map.v1) {
-                    if (o == REMOVED_OBJECT) emptySlots++;
-                }
-                /* fall through */
-            case 3: // v1 is filled after v2
-                if (map.v1 == REMOVED_OBJECT) emptySlots++;
-                /* fall through */
-            case 2: // v2 is filled after v3
-                if (map.v2 == REMOVED_OBJECT) emptySlots++;
-                /* fall through */
-            case 1: // v3 is filled the first
-                if (map.v3 == REMOVED_OBJECT) emptySlots++;
-            case 0:
-        }
-
-        return emptySlots;
+        return keyCount + getDefaultValues().size() - getRemovedSlots();
     }
 
     public boolean containsKey(CompactHashMap<K, V> map, Object key) {
         // We cannot use plain getInternal here since we will be unable to distinguish
         // existing, but null default value
         K nonNullKey = maskNull((K) key);
-        final Integer slot = key2slot.get(nonNullKey);
-        if (slot == null)
+        final int slot = getSlot(nonNullKey);
+        if (slot == CompactHashMapKeyIndex.NO_SLOT)
             return getDefaultValues().containsKey(nonNullKey);
 
         return getValueFromSlot(map, slot) != REMOVED_OBJECT;
     }
 
+    /**
+     * Returns the hash code of the map. The hash codes of the keys are cached in {@link CompactHashMapKeyIndex},
+     * so just the values are hashed.
+     *
+     * @param map the map
+     * @return the same hash code as {@link AbstractMap#hashCode()} would return
+     */
+    int hashCode(CompactHashMap<K, V> map) {
+        int h = 0;
+        Map<K, V> defaultValues = getDefaultValues();
+        if (!defaultValues.isEmpty()) {
+            for (Map.Entry<K, V> entry : defaultValues.entrySet()) {
+                K key = unmaskNull(entry.getKey());
+                V value = entry.getValue();
+                h += (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+            }
+        }
+        int keyCount = this.keyCount;
+        if (keyCount == 0) {
+            return h;
+        }
+        CompactHashMapKeyIndex key2slot = getKey2slot();
+        Object[] values = keyCount > 3 ? (Object[]) map.v1 : null;
+        for (int slot = -2; slot < keyCount - 2; slot++) {
+            Object value = slot == -2 ? map.v3 : slot == -1 ? map.v2 : values == null ? map.v1 : values[slot];
+            if (value != REMOVED_OBJECT) {
+                h += key2slot.getKeyHashCode(slot) ^ (value == null ? 0 : value.hashCode());
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Compares the values of two maps of this class. The maps of the same class have the same keys
+     * in the same slots, and they have the same default values, so the slots are compared pairwise.
+     *
+     * @param map   the map
+     * @param other another map of this class
+     * @return true if the maps have equal values
+     */
+    boolean equalValues(CompactHashMap<K, V> map, CompactHashMap<?, ?> other) {
+        int keyCount = this.keyCount;
+        if (!eq(map.v3, other.v3) || !eq(map.v2, other.v2)) {
+            return false;
+        }
+        if (keyCount <= 3) {
+            return eq(map.v1, other.v1);
+        }
+        Object[] values = (Object[]) map.v1;
+        Object[] otherValues = (Object[]) other.v1;
+        for (int i = 0; i < keyCount - 2; i++) {
+            if (!eq(values[i], otherValues[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares values of the same slot, removed slot is equal to a removed slot only.
+     */
+    private static boolean eq(Object a, Object b) {
+        return a == b || (a != null && a != REMOVED_OBJECT && b != REMOVED_OBJECT && a.equals(b));
+    }
+
     public Set<K> keySet(CompactHashMap<K, V> map) {
         return new CompactHashMapClass.KeySet<K, V>(map);
     }
@@ -217,20 +299,14 @@ abstract class CompactHashMapClass<K, V> {
     public void serialize(final CompactHashMap<K, V> map, final ObjectOutputStream s) throws IOException {
         // We serialize default and non default values separately
         // That makes serialized representation more compact when several maps share defaults
-        int ownKeys = key2slot.size();
+        int ownKeys = keyCount;
         s.writeInt(ownKeys);
-        // Write keys in the order they were added to the map, so deserialization reuses key2slot instances
+        // Write keys in the order they were added to the map, so deserialization reuses the same classes
         if (ownKeys > 0) {
-            // Slots are always -2..(map.size-2), so we do not need sort 
-            final Object[] keys = new Object[ownKeys];
-            key2slot.forEach(new com.github.andrewoma.dexx.collection.Function<Pair<K, Integer>, Void>() {
-                public Void invoke(Pair<K, Integer> entry) {
-                    keys[entry.component2() + 2] = entry.component1();
-                    return null;
-                }
-            });
-            for (int i = 0; i < keys.length; i++) {
-                Object key = keys[i];
+            CompactHashMapKeyIndex key2slot = getKey2slot();
+            // Slots are always -2..(map.size-2)
+            for (int i = 0; i < ownKeys; i++) {
+                Object key = key2slot.getKey(i - 2);
                 Object value = getValueFromSlot(map, i - 2);
                 s.writeObject(unmaskNull((K) key));
                 // We write REMOVED_OBJECT as well to keep the same key2slot when deserializing
@@ -244,27 +320,95 @@ abstract class CompactHashMapClass<K, V> {
 
     public static <K, V> void deserialize(CompactHashMap<K, V> map, ObjectInputStream s) throws IOException, ClassNotFoundException {
         int size = s.readInt();
+        // The stream does not know the context, so the map uses the default one
         map.klass = CompactHashMapClass.EMPTY;
 
+        Object[] keys = new Object[size];
+        Object[] values = new Object[size];
+        int removedSlots = 0;
         for (int i = 0; i < size; i++) {
-            K key = (K) s.readObject();
-            V value = (V) s.readObject();
+            keys[i] = maskNull(s.readObject());
+            Object value = s.readObject();
+            // Removed entries keep their slots, so the deserialized map reuses the same classes
             if (value == RemovedObjectMarker.INSTANCE) {
-                // We cannot use put(key, REMOVED_OBJECT) as the map would just ignore it
-                // We need to add an entry first so it allocates a new slot
-                map.put(key, null);
-                map.remove(key);
-            } else {
-                map.put(key, value);
+                value = REMOVED_OBJECT;
+                removedSlots++;
             }
+            values[i] = value;
         }
 
         Map<K, V> defaults = (Map<K, V>) s.readObject();
-        // TODO: optimize to CompactHashMapClassEmptyDefaults.getNewDefaultClass
-        // Current implementation of getNewDefaultClass relies on identity equality, thus it does not fit
-        for (Map.Entry<K, V> entry : defaults.entrySet()) {
-            map.put(entry.getKey(), entry.getValue());
+        CompactHashMapClassInTree<K, V> klass = resolveClass(map.klass.getContext(), keys, size, defaults);
+        if (klass != null) {
+            map.klass = klass.withRemovedSlots(removedSlots);
+            if (size > 3) {
+                // Keep the length even to play well with 8 byte alignment
+                int length = size - 2;
+                Object[] array = new Object[length + (length & 1)];
+                System.arraycopy(values, 2, array, 0, length);
+                map.v1 = array;
+            } else if (size > 2) {
+                map.v1 = values[2];
+            }
+            if (size > 1) {
+                map.v2 = values[1];
+            }
+            if (size > 0) {
+                map.v3 = values[0];
+            }
+            return;
+        }
+
+        // The class differs from the written one (e.g. the registered default values differ), so let putAll sort it out
+        if (!defaults.isEmpty()) {
+            Object[] allKeys = new Object[size + defaults.size()];
+            Object[] allValues = new Object[allKeys.length];
+            System.arraycopy(keys, 0, allKeys, 0, size);
+            System.arraycopy(values, 0, allValues, 0, size);
+            keys = allKeys;
+            values = allValues;
+            for (Map.Entry<K, V> entry : defaults.entrySet()) {
+                keys[size] = entry.getKey();
+                values[size] = entry.getValue();
+                size++;
+            }
         }
+        map.klass.putAll(map, keys, values, size);
+    }
+
+    /**
+     * Returns the class that has the given keys in the given slots and the given default values.
+     * The class is resolved with a single walk of the transition tree, and the default values are looked up
+     * by equality, so the class is the same as the one {@code put} calls would produce.
+     *
+     * @param context  the context of the class
+     * @param keys     masked keys in the order of slots
+     * @param size     the number of keys
+     * @param defaults default values
+     * @return the class or null if the keys do not fit a shared class, or if the context would store
+     * some of the values differently (e.g. a value in a slot is registered as default, or vice versa)
+     */
+    static <K, V> CompactHashMapClassInTree<K, V> resolveClass(CompactMapContext context, Object[] keys, int size,
+                                                              Map<K, V> defaults) {
+        if (size > context.dictionaryThreshold
+                || context.defaults.findKeysWithDefaults(keys, size) != null) {
+            return null;
+        }
+        Map<K, V> defaultValues = defaults;
+        if (!defaults.isEmpty()) {
+            defaultValues = context.defaults.getCanonicalDefaultValues(defaults);
+            if (defaultValues == null) {
+                return null;
+            }
+        }
+        CompactHashMapClassEmptyDefaults<K, V> klass = context.root;
+        for (int i = 0; i < size; i++) {
+            klass = klass.getNextKlass(keys[i]);
+            if (!klass.isShared()) {
+                return null;
+            }
+        }
+        return klass.getNewDefaultClass(defaultValues);
     }
 
     static class KeySet<K, V> extends AbstractSet<K> {
@@ -369,62 +513,41 @@ abstract class CompactHashMapClass<K, V> {
     }
 
     static abstract class HashIterator<K, V, E> implements Iterator<E> {
-        boolean defValues = true;
-        private final CompactHashMap<K, V> map;
-        Iterator it;
-        Map.Entry<K, V> current, next;
+        final CompactHashMap<K, V> map;
+        private final MapCursor<K, V> cursor;
+        private boolean hasNext;
+        private boolean hasCurrent;
+        // The key is masked, so it can be passed to map.put
+        Object currentKey;
+        V currentValue;
 
         public HashIterator(CompactHashMap<K, V> map) {
             this.map = map;
-            if (map.isEmpty()) return;
-            this.it = map.klass.getDefaultValues().entrySet().iterator();
-            advance();
-        }
-
-        private void advance() {
-            if (!it.hasNext() && defValues) {
-                defValues = false;
-                it = map.klass.key2slot.asMap().entrySet().iterator();
-            }
-
-            if (!it.hasNext()) {
-                next = null;
-                return;
-            }
-
-            while (it.hasNext()) {
-                Map.Entry entry = (Map.Entry) it.next();
-                V value;
-                if (defValues)
-                    value = (V) entry.getValue();
-                else {
-                    value = (V) getValueFromSlot(map, (Integer) entry.getValue());
-                    if (value == REMOVED_OBJECT) continue;
-                }
-                next = new SimpleEntry<K, V>(map, (K) entry.getKey(), value);
-                return;
-            }
-            next = null;
+            this.cursor = new MapCursor<K, V>(map);
+            hasNext = cursor.next();
         }
 
         public boolean hasNext() {
-            return next != null;
+            return hasNext;
         }
 
-        public Map.Entry<K, V> nextEntry() {
-            if (next == null)
+        final void advance() {
+            if (!hasNext)
                 throw new NoSuchElementException();
-            current = next;
-            advance();
-            return current;
+            // The cursor moves ahead, so the current entry can be removed
+            MapCursor<K, V> cursor = this.cursor;
+            currentKey = cursor.maskedKey();
+            currentValue = cursor.value();
+            hasCurrent = true;
+            hasNext = cursor.next();
         }
 
         public void remove() {
-            if (current == null) {
+            if (!hasCurrent) {
                 throw new IllegalStateException();
             }
-            map.remove(current.getKey());
-            current = null;
+            map.remove(unmaskNull(currentKey));
+            hasCurrent = false;
         }
     }
 
@@ -435,7 +558,8 @@ abstract class CompactHashMapClass<K, V> {
         }
 
         public K next() {
-            return nextEntry().getKey();
+            advance();
+            return (K) unmaskNull(currentKey);
         }
     }
 
@@ -445,7 +569,8 @@ abstract class CompactHashMapClass<K, V> {
         }
 
         public V next() {
-            return nextEntry().getValue();
+            advance();
+            return currentValue;
         }
     }
 
@@ -455,7 +580,8 @@ abstract class CompactHashMapClass<K, V> {
         }
 
         public Map.Entry<K, V> next() {
-            return nextEntry();
+            advance();
+            return new SimpleEntry<K, V>(map, (K) currentKey, currentValue);
         }
     }
 
@@ -471,7 +597,7 @@ abstract class CompactHashMapClass<K, V> {
         }
 
         public K getKey() {
-            return map.klass.unmaskNull(key);
+            return unmaskNull(key);
         }
 
         public V getValue() {
@@ -503,7 +629,7 @@ abstract class CompactHashMapClass<K, V> {
 
         @Override
         public String toString() {
-            return map.klass.unmaskNull(key) + "=" + value;
+            return unmaskNull(key) + "=" + value;
         }
     }
 
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The class of maps in "dictionary mode" (like
+ * <a href="https://v8.dev/blog/fast-properties">V8's dictionary properties</a>): the map stores its entries
+ * in {@link CompactHashMapDictionary} in {@code v1}, so it no longer uses the transition tree.
+ *
+ * <p>A map switches to dictionary mode when it gets more than {@link CompactMapContext#getDictionaryThreshold()}
+ * keys (256 by default), or when the transition tree is full (see {@link CompactHashMapClassEmptyDefaults}).
+ * The default values are stored in the dictionary as regular values.</p>
+ *
+ * @author Vladimir Sitnikov
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+class CompactHashMapClassDictionary<K, V> extends CompactHashMapClass<K, V> {
+    private static final CompactHashMapKeyIndex NO_KEYS = new CompactHashMapKeyIndex(new Object[0]);
+
+    private final CompactMapContext context;
+
+    /**
+     * Creates the dictionary class of the context. Each context has just one.
+     *
+     * @param context the context of the maps
+     */
+    CompactHashMapClassDictionary(CompactMapContext context) {
+        super(0);
+        this.context = context;
+    }
+
+    /**
+     * Moves the entries of the map to a dictionary.
+     *
+     * @param map       map to convert
+     * @param extraKeys the number of keys the caller is going to add
+     * @param <K>       the type of keys
+     * @param <V>       the type of values
+     */
+    static <K, V> void toDictionary(CompactHashMap<K, V> map, int extraKeys) {
+        if (map.klass instanceof CompactHashMapClassDictionary) {
+            return;
+        }
+        CompactHashMapClassInTree<K, V> klass = (CompactHashMapClassInTree<K, V>) map.klass;
+        CompactHashMapDictionary dictionary = new CompactHashMapDictionary(klass.size(map) + extraKeys);
+        for (Map.Entry<K, V> entry : klass.getDefaultValues().entrySet()) {
+            dictionary.put(entry.getKey(), entry.getValue());
+        }
+        for (CompactHashMapClassEmptyDefaults<K, V> c = klass.getMapWithEmptyDefaults(); c.parent != null; c = c.parent) {
+            Object value = getValueFromSlot(map, c.keyCount - 3);
+            if (value != REMOVED_OBJECT) {
+                dictionary.put(c.key, value);
+            }
+        }
+        map.klass = klass.getContext().dictionary;
+        map.v1 = dictionary;
+        map.v2 = null;
+        map.v3 = null;
+    }
+
+    private static CompactHashMapDictionary dictionary(CompactHashMap<?, ?> map) {
+        return (CompactHashMapDictionary) map.v1;
+    }
+
+    @Override
+    CompactMapContext getContext() {
+        return context;
+    }
+
+    @Override
+    protected int getSlotWithoutIndex(Object key) {
+        return CompactHashMapKeyIndex.NO_SLOT;
+    }
+
+    @Override
+    protected CompactHashMapKeyIndex getKey2slot() {
+        return NO_KEYS;
+    }
+
+    @Override
+    public V get(CompactHashMap<K, V> map, K key) {
+        Object value = dictionary(map).get(maskNull(key));
+        return value == REMOVED_OBJECT ? null : (V) value;
+    }
+
+    @Override
+    public boolean containsKey(CompactHashMap<K, V> map, Object key) {
+        return dictionary(map).containsKey(maskNull(key));
+    }
+
+    @Override
+    public V put(CompactHashMap<K, V> map, K key, Object value) {
+        CompactHashMapDictionary dictionary = dictionary(map);
+        Object prevValue = value == REMOVED_OBJECT
+                ? dictionary.remove(maskNull(key))
+                : dictionary.put(maskNull(key), value);
+        return prevValue == REMOVED_OBJECT ? null : (V) prevValue;
+    }
+
+    @Override
+    public void putAll(CompactHashMap<K, V> map, Object[] keys, Object[] values, int size) {
+        dictionary(map).ensureCapacity(size);
+        for (int i = 0; i < size; i++) {
+            put(map, (K) keys[i], values[i]);
+        }
+    }
+
+    @Override
+    public int size(CompactHashMap<K, V> map) {
+        return dictionary(map).size();
+    }
+
+    @Override
+    int hashCode(CompactHashMap<K, V> map) {
+        CompactHashMapDictionary dictionary = dictionary(map);
+        int h = 0;
+        for (int i = 0; i < dictionary.capacity(); i++) {
+            Object key = dictionary.getKeyAt(i);
+            if (key == null) {
+                continue;
+            }
+            key = unmaskNull(key);
+            Object value = dictionary.getValueAt(i);
+            h += (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+        return h;
+    }
+
+    @Override
+    boolean equalValues(CompactHashMap<K, V> map, CompactHashMap<?, ?> other) {
+        // The sizes are equal, however the dictionaries might place the keys differently, so look up each key
+        CompactHashMapDictionary dictionary = dictionary(map);
+        CompactHashMapDictionary otherDictionary = dictionary(other);
+        for (int i = 0; i < dictionary.capacity(); i++) {
+            Object key = dictionary.getKeyAt(i);
+            if (key == null) {
+                continue;
+            }
+            Object value = dictionary.getValueAt(i);
+            Object otherValue = otherDictionary.get(key);
+            if (otherValue == REMOVED_OBJECT || (value == null ? otherValue != null : !value.equals(otherValue))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    void compact(CompactHashMap<K, V> map) {
+        dictionary(map).trim();
+    }
+
+    @Override
+    void copyValues(CompactHashMap<K, V> map) {
+        map.v1 = dictionary(map).copy();
+    }
+
+    @Override
+    public void serialize(CompactHashMap<K, V> map, ObjectOutputStream s) throws IOException {
+        // The same format as the regular maps use: a map in dictionary mode just has no default values
+        CompactHashMapDictionary dictionary = dictionary(map);
+        s.writeInt(dictionary.size());
+        for (int i = 0; i < dictionary.capacity(); i++) {
+            Object key = dictionary.getKeyAt(i);
+            if (key != null) {
+                s.writeObject(unmaskNull(key));
+                s.writeObject(dictionary.getValueAt(i));
+            }
+        }
+        s.writeObject(new HashMap<K, V>());
+    }
+}
@@ -16,88 +16,474 @@
 
 package vlsi.utils;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * This map represents CompactHashMapClass that has no default values (it can have nonempty key2slot).
  * It is used to determine the right CompactHashMapClass given the desired defaultValues map.
+ * The classes form a tree: each class refers to its parent and holds just the key it adds.
+ *
+ * <p>Each {@link CompactMapContext} has its own tree. The tree refers to the child classes via weak references,
+ * so the classes that are no longer used by maps are collected. The number of classes in the tree is limited
+ * with {@link CompactMapContext#maxShapes}: when the limit is reached, new classes are not added to the tree,
+ * so they are not shared between maps, and they are collected with the maps.</p>
+ *
+ * <p>The tree is lock-free: all the maps of a context start from its root, so a lock would make
+ * the threads that build maps wait for each other (and it would pin virtual threads). The transitions
+ * and the classes with default values are kept in immutable tables that are replaced
+ * with compare-and-set.</p>
  *
  * @author Vladimir Sitnikov
  * @param <K> the type of keys maintained by this map
  * @param <V> the type of mapped values
  */
-class CompactHashMapClassEmptyDefaults<K, V> extends CompactHashMapClass<K, V> {
-    private Map<K, CompactHashMapClassEmptyDefaults<K, V>> key2newKlass;
-    private Map<Map<K, V>, CompactHashMapClass<K, V>> defValues2Klass;
+class CompactHashMapClassEmptyDefaults<K, V> extends CompactHashMapClassInTree<K, V> {
+    /**
+     * Number of lookups after which the class builds {@link #key2slot} index.
+     * Before that, lookups just walk the chain of parent classes.
+     */
+    private static final int HOT_LOOKUPS = 16;
+
+    // The references to collected classes, so the tree can forget them
+    private static final ReferenceQueue<CompactHashMapClass<?, ?>> staleReferences =
+            new ReferenceQueue<CompactHashMapClass<?, ?>>();
+
+    // The keys are delta-encoded: the class stores its parent class and the key it adds
+    final CompactHashMapClassEmptyDefaults<K, V> parent;
+    final Object key;
 
-    public CompactHashMapClassEmptyDefaults(com.github.andrewoma.dexx.collection.Map<K, Integer> key2Slot) {
-        super(key2Slot);
+    // It is a hint, so lost updates are fine
+    private int lookups;
+
+    // The updater is created from class literals, so its type arguments are raw
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<CompactHashMapClassEmptyDefaults, Map> DEF_VALUES_2_KLASS =
+            AtomicReferenceFieldUpdater.newUpdater(CompactHashMapClassEmptyDefaults.class, Map.class, "defValues2Klass");
+
+    // The reference the parent uses to refer to this class. It holds the transitions of this class as well
+    private final KlassReference<K, V> transitions;
+    // Copy-on-write: a class has just a few variations with default values
+    private volatile Map<Map<K, V>, DefaultsReference<K, V>> defValues2Klass;
+
+    /**
+     * Creates the root class of the context.
+     *
+     * @param context the context that owns the tree
+     */
+    CompactHashMapClassEmptyDefaults(CompactMapContext context) {
+        super(0);
+        this.parent = null;
+        this.key = null;
+        this.transitions = new KlassReference<K, V>(this, context, null, null);
+    }
+
+    public CompactHashMapClassEmptyDefaults(CompactHashMapClassEmptyDefaults<K, V> parent, Object key) {
+        this(parent, key, true);
+    }
+
+    private CompactHashMapClassEmptyDefaults(CompactHashMapClassEmptyDefaults<K, V> parent, Object key,
+                                             boolean shared) {
+        super(parent.keyCount + 1);
+        this.parent = parent;
+        this.key = key;
+        this.transitions = new KlassReference<K, V>(this, parent.transitions.context,
+                shared ? parent.transitions : null, key);
     }
 
     @Override
-    protected CompactHashMapClassEmptyDefaults<K, V> getMapWithEmptyDefaults() {
-        return this;
+    CompactMapContext getContext() {
+        return transitions.context;
     }
 
-    protected CompactHashMapClass<K, V> getNewDefaultClass(Map<K, V> newDef) {
-        CompactHashMapClass<K, V> newClass;
-        if (newDef == null || newDef.isEmpty())
-            return this;
-        synchronized (this) {
-            Map<Map<K, V>, CompactHashMapClass<K, V>> defValues2Klass = this.defValues2Klass;
-            if (defValues2Klass == null)
-                this.defValues2Klass = defValues2Klass =
-                        new IdentityHashMap<Map<K, V>, CompactHashMapClass<K, V>>();
+    /**
+     * Returns true if the class is a part of the transition tree.
+     *
+     * @return true if the class is a part of the transition tree
+     */
+    boolean isShared() {
+        return parent == null || transitions.owner != null;
+    }
 
-            newClass = defValues2Klass.get(newDef);
-            if (newClass == null) {
-                newClass = new CompactHashMapClassWithDefaults<K, V>(key2slot, newDef, this);
-                defValues2Klass.put(newDef, newClass);
-            }
+    /**
+     * Weak reference from a class to the class it transitions to.
+     * The reference holds the transitions of the class it refers to, so the transitions are still reachable
+     * when the class is collected, and the tree can forget the whole subtree.
+     */
+    private static final class KlassReference<K, V> extends WeakReference<CompactHashMapClassEmptyDefaults<K, V>> {
+        // The updater is created from class literals, so its type arguments are raw
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<KlassReference, Object> KEY_2_NEW_KLASS =
+                AtomicReferenceFieldUpdater.newUpdater(KlassReference.class, Object.class, "key2newKlass");
+
+        /**
+         * Classes with more transitions keep them in a concurrent map, so adding a transition
+         * does not copy the whole table.
+         */
+        private static final int MAX_ARRAY_TRANSITIONS = 8;
+
+        final CompactMapContext context;
+        // null for the root class and for the classes that are not shared
+        final KlassReference<K, V> owner;
+        final Object key;
+
+        // null, the reference to the only next class (its key is the transition key),
+        // KlassReference[] with a few next classes, or ConcurrentMap<Object, KlassReference<K, V>>.
+        // The references and the arrays are replaced with compareAndSet, the concurrent map is updated in place
+        volatile Object key2newKlass;
+
+        KlassReference(CompactHashMapClassEmptyDefaults<K, V> klass, CompactMapContext context,
+                       KlassReference<K, V> owner, Object key) {
+            super(klass, staleReferences);
+            this.context = context;
+            this.owner = owner;
+            this.key = key;
         }
-        return newClass;
-    }
 
-    protected CompactHashMapClass<K, V> getNextKlass(K key, Map<K, V> defaultValues) {
-        CompactHashMapClassEmptyDefaults<K, V> newKlass = null;
-        synchronized (this) {
-            Map<K, CompactHashMapClassEmptyDefaults<K, V>> key2newKlass = this.key2newKlass;
-            if (key2newKlass != null)
-                newKlass = key2newKlass.get(key);
+        // key2newKlass of a class refers to the classes with the same K and V, so the casts below are safe
+
+        @SuppressWarnings("unchecked")
+        private static <K, V> KlassReference<K, V> asRef(Object key2newKlass) {
+            return (KlassReference<K, V>) key2newKlass;
         }
 
-        if (defaultValues.containsKey(key))
-            defaultValues = CompactHashMapDefaultValues.getNewDefaultValues(defaultValues, key, REMOVED_OBJECT);
+        @SuppressWarnings("unchecked")
+        private static <K, V> KlassReference<K, V>[] asRefs(Object key2newKlass) {
+            return (KlassReference<K, V>[]) key2newKlass;
+        }
 
-        if (newKlass != null)
-            return newKlass.getNewDefaultClass(defaultValues);
+        @SuppressWarnings("unchecked")
+        private static <K, V> ConcurrentMap<Object, KlassReference<K, V>> asMap(Object key2newKlass) {
+            return (ConcurrentMap<Object, KlassReference<K, V>>) key2newKlass;
+        }
 
-        int size = key2slot.size();
-        com.github.andrewoma.dexx.collection.Map<K, Integer> newKey2slot = key2slot;
+        @SuppressWarnings("unchecked")
+        private static <K, V> KlassReference<K, V>[] newRefs(int length) {
+            return (KlassReference<K, V>[]) new KlassReference<?, ?>[length];
+        }
 
-        newKey2slot = newKey2slot.put(key, size - 2);
+        /**
+         * Returns the reference to the next class for the given key.
+         */
+        KlassReference<K, V> getTransition(Object key) {
+            return getTransition(key2newKlass, key);
+        }
 
-        newKlass = new CompactHashMapClassEmptyDefaults<K, V>(newKey2slot);
-        synchronized (this) {
+        private static <K, V> KlassReference<K, V> getTransition(Object key2newKlass, Object key) {
+            if (key2newKlass instanceof KlassReference) {
+                KlassReference<K, V> ref = asRef(key2newKlass);
+                return key.equals(ref.key) ? ref : null;
+            }
+            if (key2newKlass instanceof KlassReference[]) {
+                for (KlassReference<K, V> ref : KlassReference.<K, V>asRefs(key2newKlass)) {
+                    if (key.equals(ref.key)) {
+                        return ref;
+                    }
+                }
+                return null;
+            }
             if (key2newKlass == null) {
-                key2newKlass = Collections.singletonMap(key, newKlass);
-            } else {
-                final CompactHashMapClassEmptyDefaults<K, V> anotherNewKlass = key2newKlass.get(key);
+                return null;
+            }
+            return KlassReference.<K, V>asMap(key2newKlass).get(key);
+        }
+
+        /**
+         * Adds the transition unless another thread has added a transition with the same key.
+         *
+         * @param newRef the reference to the new class
+         * @return the class another thread has added, or null if {@code newRef} is added
+         */
+        CompactHashMapClassEmptyDefaults<K, V> addTransition(KlassReference<K, V> newRef) {
+            Object key = newRef.key;
+            while (true) {
+                Object key2newKlass = this.key2newKlass;
+                if (key2newKlass instanceof ConcurrentMap) {
+                    ConcurrentMap<Object, KlassReference<K, V>> map = asMap(key2newKlass);
+                    KlassReference<K, V> prevRef = map.putIfAbsent(key, newRef);
+                    if (prevRef == null) {
+                        context.shapeCount.incrementAndGet();
+                        return null;
+                    }
+                    CompactHashMapClassEmptyDefaults<K, V> prevKlass = prevRef.get();
+                    if (prevKlass != null) {
+                        return prevKlass;
+                    }
+                    // The previous class has been collected, and its reference is replaced
+                    if (map.replace(key, prevRef, newRef)) {
+                        return null;
+                    }
+                    continue;
+                }
+
+                KlassReference<K, V> prevRef = getTransition(key2newKlass, key);
+                if (prevRef != null) {
+                    CompactHashMapClassEmptyDefaults<K, V> prevKlass = prevRef.get();
+                    if (prevKlass != null) {
+                        return prevKlass;
+                    }
+                }
+                if (KEY_2_NEW_KLASS.compareAndSet(this, key2newKlass, withTransition(key2newKlass, prevRef, newRef))) {
+                    if (prevRef == null) {
+                        context.shapeCount.incrementAndGet();
+                    }
+                    // else: the previous class has been collected, and its reference is replaced
+                    return null;
+                }
+            }
+        }
 
-                if (anotherNewKlass != null)
-                    newKlass = anotherNewKlass;
-                else {
-                    if (key2newKlass.size() == 1) {
-                        key2newKlass = new HashMap<K, CompactHashMapClassEmptyDefaults<K, V>>(key2newKlass);
+        private static <K, V> Object withTransition(Object key2newKlass, KlassReference<K, V> prevRef,
+                                                    KlassReference<K, V> newRef) {
+            if (key2newKlass == null || key2newKlass == prevRef) {
+                return newRef;
+            }
+            if (key2newKlass instanceof KlassReference) {
+                KlassReference<K, V>[] newRefs = newRefs(2);
+                newRefs[0] = asRef(key2newKlass);
+                newRefs[1] = newRef;
+                return newRefs;
+            }
+            KlassReference<K, V>[] refs = asRefs(key2newKlass);
+            if (prevRef != null) {
+                KlassReference<K, V>[] newRefs = refs.clone();
+                for (int i = 0; i < newRefs.length; i++) {
+                    if (newRefs[i] == prevRef) {
+                        newRefs[i] = newRef;
                     }
-                    key2newKlass.put(key, newKlass);
                 }
+                return newRefs;
+            }
+            if (refs.length < MAX_ARRAY_TRANSITIONS) {
+                KlassReference<K, V>[] newRefs = newRefs(refs.length + 1);
+                System.arraycopy(refs, 0, newRefs, 0, refs.length);
+                newRefs[refs.length] = newRef;
+                return newRefs;
+            }
+            ConcurrentMap<Object, KlassReference<K, V>> map =
+                    new ConcurrentHashMap<Object, KlassReference<K, V>>(refs.length * 4);
+            for (KlassReference<K, V> ref : refs) {
+                map.put(ref.key, ref);
             }
+            map.put(newRef.key, newRef);
+            return map;
         }
 
-        return newKlass.getNewDefaultClass(defaultValues);
+        /**
+         * Removes the transition unless it has already been replaced.
+         *
+         * @return true if the transition is removed
+         */
+        private boolean removeTransition(KlassReference<K, V> ref) {
+            while (true) {
+                Object key2newKlass = this.key2newKlass;
+                Object newKey2newKlass;
+                if (key2newKlass == ref) {
+                    newKey2newKlass = null;
+                } else if (key2newKlass instanceof KlassReference[]) {
+                    KlassReference<K, V>[] refs = asRefs(key2newKlass);
+                    int index = -1;
+                    for (int i = 0; i < refs.length; i++) {
+                        if (refs[i] == ref) {
+                            index = i;
+                        }
+                    }
+                    if (index == -1) {
+                        return false;
+                    }
+                    if (refs.length == 2) {
+                        newKey2newKlass = refs[1 - index];
+                    } else {
+                        KlassReference<K, V>[] newRefs = newRefs(refs.length - 1);
+                        System.arraycopy(refs, 0, newRefs, 0, index);
+                        System.arraycopy(refs, index + 1, newRefs, index, newRefs.length - index);
+                        newKey2newKlass = newRefs;
+                    }
+                } else if (key2newKlass instanceof ConcurrentMap) {
+                    return KlassReference.<K, V>asMap(key2newKlass).remove(ref.key, ref);
+                } else {
+                    return false;
+                }
+                if (KEY_2_NEW_KLASS.compareAndSet(this, key2newKlass, newKey2newKlass)) {
+                    return true;
+                }
+            }
+        }
+
+        void expunge() {
+            // The reference might have already been replaced
+            if (owner != null && owner.removeTransition(this)) {
+                context.shapeCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Weak reference from a class to its variation with default values.
+     */
+    private static final class DefaultsReference<K, V> extends WeakReference<CompactHashMapClass<K, V>> {
+        final CompactHashMapClassEmptyDefaults<K, V> owner;
+        final Map<K, V> defaultValues;
+
+        DefaultsReference(CompactHashMapClass<K, V> klass, CompactHashMapClassEmptyDefaults<K, V> owner,
+                          Map<K, V> defaultValues) {
+            super(klass, staleReferences);
+            this.owner = owner;
+            this.defaultValues = defaultValues;
+        }
+
+        void expunge() {
+            while (true) {
+                Map<Map<K, V>, DefaultsReference<K, V>> defValues2Klass = owner.defValues2Klass;
+                if (defValues2Klass == null || defValues2Klass.get(defaultValues) != this) {
+                    return;
+                }
+                Map<Map<K, V>, DefaultsReference<K, V>> newDefValues2Klass = null;
+                if (defValues2Klass.size() > 1) {
+                    newDefValues2Klass = new IdentityHashMap<Map<K, V>, DefaultsReference<K, V>>(defValues2Klass);
+                    newDefValues2Klass.remove(defaultValues);
+                }
+                if (DEF_VALUES_2_KLASS.compareAndSet(owner, defValues2Klass, newDefValues2Klass)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the collected classes from the trees.
+     */
+    static void expungeStaleReferences() {
+        Reference<? extends CompactHashMapClass<?, ?>> ref;
+        while ((ref = staleReferences.poll()) != null) {
+            if (ref instanceof KlassReference) {
+                ((KlassReference<?, ?>) ref).expunge();
+            } else {
+                ((DefaultsReference<?, ?>) ref).expunge();
+            }
+        }
+    }
+
+    @Override
+    protected CompactHashMapClassEmptyDefaults<K, V> getMapWithEmptyDefaults() {
+        return this;
+    }
+
+    @Override
+    protected int getSlotWithoutIndex(Object key) {
+        if (++lookups > HOT_LOOKUPS) {
+            getKey2slot();
+            return getSlot(key);
+        }
+        for (CompactHashMapClassEmptyDefaults<K, V> klass = this; klass.parent != null; klass = klass.parent) {
+            Object k = klass.key;
+            if (k == key || key.equals(k)) {
+                return klass.keyCount - 3;
+            }
+        }
+        return CompactHashMapKeyIndex.NO_SLOT;
+    }
+
+    /**
+     * Returns the only next class, or null if there are several ones.
+     */
+    private CompactHashMapClassEmptyDefaults<K, V> getSoleTransition() {
+        Object key2newKlass = transitions.key2newKlass;
+        if (key2newKlass instanceof KlassReference) {
+            return KlassReference.<K, V>asRef(key2newKlass).get();
+        }
+        return null;
+    }
+
+    @Override
+    protected CompactHashMapKeyIndex getKey2slot() {
+        CompactHashMapKeyIndex key2slot = this.key2slot;
+        if (key2slot != null) {
+            return key2slot;
+        }
+        // The keys of a class are a prefix of the keys of its descendants, so one index can serve
+        // the whole chain. Build the index for the deepest class reachable via sole transitions.
+        CompactHashMapClassEmptyDefaults<K, V> leaf = this;
+        for (CompactHashMapClassEmptyDefaults<K, V> next = getSoleTransition(); next != null;
+             next = leaf.getSoleTransition()) {
+            leaf = next;
+        }
+        Object[] keys = new Object[leaf.keyCount];
+        for (CompactHashMapClassEmptyDefaults<K, V> klass = leaf; klass.parent != null; klass = klass.parent) {
+            keys[klass.keyCount - 1] = klass.key;
+        }
+        key2slot = new CompactHashMapKeyIndex(keys);
+
+        // Share the index with ancestors. If a class already has an index, its ancestors have one as well
+        for (CompactHashMapClassEmptyDefaults<K, V> klass = leaf; klass != null; klass = klass.parent) {
+            CompactHashMapKeyIndex prevIndex = klass.key2slot;
+            if (prevIndex == null || prevIndex.size() < key2slot.size()) {
+                klass.key2slot = key2slot;
+            } else if (klass.keyCount < keyCount) {
+                break;
+            }
+        }
+        return key2slot;
+    }
+
+    protected CompactHashMapClassInTree<K, V> getNewDefaultClass(Map<K, V> newDef) {
+        if (newDef == null || newDef.isEmpty())
+            return this;
+        CompactHashMapClassInTree<K, V> newClass = null;
+        while (true) {
+            Map<Map<K, V>, DefaultsReference<K, V>> defValues2Klass = this.defValues2Klass;
+            DefaultsReference<K, V> ref = defValues2Klass == null ? null : defValues2Klass.get(newDef);
+            CompactHashMapClass<K, V> prevClass = ref == null ? null : ref.get();
+            if (prevClass != null) {
+                return (CompactHashMapClassInTree<K, V>) prevClass;
+            }
+            if (newClass == null) {
+                newClass = new CompactHashMapClassWithDefaults<K, V>(newDef, this);
+            }
+            Map<Map<K, V>, DefaultsReference<K, V>> newDefValues2Klass = defValues2Klass == null
+                    ? new IdentityHashMap<Map<K, V>, DefaultsReference<K, V>>()
+                    : new IdentityHashMap<Map<K, V>, DefaultsReference<K, V>>(defValues2Klass);
+            newDefValues2Klass.put(newDef, new DefaultsReference<K, V>(newClass, this, newDef));
+            if (DEF_VALUES_2_KLASS.compareAndSet(this, defValues2Klass, newDefValues2Klass)) {
+                return newClass;
+            }
+        }
+    }
+
+    protected CompactHashMapClassInTree<K, V> getNextKlass(K key, Map<K, V> defaultValues) {
+        if (defaultValues.containsKey(key))
+            defaultValues = getContext().defaults.getNewDefaultValues(defaultValues, key, REMOVED_OBJECT);
+
+        return getNextKlass(key).getNewDefaultClass(defaultValues);
+    }
+
+    /**
+     * Returns the class that has all the keys of the current one plus the given key.
+     *
+     * @param key key to add
+     * @return next class in the transition tree
+     */
+    protected CompactHashMapClassEmptyDefaults<K, V> getNextKlass(Object key) {
+        KlassReference<K, V> ref = transitions.getTransition(key);
+        CompactHashMapClassEmptyDefaults<K, V> newKlass = ref == null ? null : ref.get();
+        if (newKlass != null)
+            return newKlass;
+
+        expungeStaleReferences();
+        CompactMapContext context = transitions.context;
+        if (context.shapeCount.get() >= context.maxShapes || !isShared()) {
+            // The tree is full, so the class is not shared
+            // The descendants of a class that is not shared are not shared either, so they are collected together
+            return new CompactHashMapClassEmptyDefaults<K, V>(this, key, false);
+        }
+        newKlass = new CompactHashMapClassEmptyDefaults<K, V>(this, key);
+        CompactHashMapClassEmptyDefaults<K, V> anotherNewKlass = transitions.addTransition(newKlass.transitions);
+        return anotherNewKlass != null ? anotherNewKlass : newKlass;
     }
 }
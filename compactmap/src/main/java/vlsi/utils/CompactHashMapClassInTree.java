@@ -0,0 +1,413 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * The class of the maps that store values in slots: a class of the transition tree
+ * ({@link CompactHashMapClassEmptyDefaults}) or its variation with default values
+ * ({@link CompactHashMapClassWithDefaults}). The maps in dictionary mode
+ * ({@link CompactHashMapClassDictionary}) are not in the tree, so they do not have these operations.
+ *
+ * @author Vladimir Sitnikov
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+abstract class CompactHashMapClassInTree<K, V> extends CompactHashMapClass<K, V> {
+    // The updater is created from class literals, so its type arguments are raw
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<CompactHashMapClassInTree, CompactHashMapClassInTree[]> REMOVED_SLOTS_CLASSES =
+            AtomicReferenceFieldUpdater.newUpdater(CompactHashMapClassInTree.class, CompactHashMapClassInTree[].class,
+                    "removedSlotsClasses");
+
+    // Copy-on-write: the variations of the class indexed by the number of removed slots
+    private volatile CompactHashMapClassInTree<?, ?>[] removedSlotsClasses;
+
+    CompactHashMapClassInTree(int keyCount) {
+        super(keyCount);
+    }
+
+    /**
+     * Returns the class of the transition tree that has the same keys and no default values.
+     *
+     * @return the class with the same keys and no default values
+     */
+    protected abstract CompactHashMapClassEmptyDefaults<K, V> getMapWithEmptyDefaults();
+
+    @Override
+    CompactMapContext getContext() {
+        return getMapWithEmptyDefaults().getContext();
+    }
+
+    /**
+     * Returns the variation of this class whose maps have the given number of removed slots.
+     * The variations are created on demand, and the class without removed slots caches them,
+     * so the maps with the same keys and the same number of removed slots share the class.
+     *
+     * @param removedSlots the number of slots that hold {@link #REMOVED_OBJECT}
+     * @return the class with the same keys and default values
+     */
+    CompactHashMapClassInTree<K, V> withRemovedSlots(int removedSlots) {
+        if (removedSlots == 0) {
+            return this;
+        }
+        CompactHashMapClassInTree<K, V> newClass = null;
+        while (true) {
+            CompactHashMapClassInTree<?, ?>[] classes = removedSlotsClasses;
+            CompactHashMapClassInTree<?, ?> prevClass = classes == null ? null : classes[removedSlots];
+            if (prevClass != null) {
+                return (CompactHashMapClassInTree<K, V>) prevClass;
+            }
+            if (newClass == null) {
+                newClass = new CompactHashMapClassWithRemovedSlots<K, V>(this, removedSlots);
+            }
+            // A map can't have more removed slots than keys
+            CompactHashMapClassInTree<?, ?>[] newClasses = classes == null
+                    ? new CompactHashMapClassInTree<?, ?>[keyCount + 1]
+                    : classes.clone();
+            newClasses[removedSlots] = newClass;
+            if (REMOVED_SLOTS_CLASSES.compareAndSet(this, classes, newClasses)) {
+                return newClass;
+            }
+        }
+    }
+
+    @Override
+    public V put(CompactHashMap<K, V> map, K key, Object value) {
+        K nonNullKey = maskNull(key);
+        int slot = getSlot(nonNullKey);
+        Object prevValue = REMOVED_OBJECT;
+        boolean newSlot = slot == CompactHashMapKeyIndex.NO_SLOT;
+        if (newSlot) {
+            prevValue = getDefaultValues().get(nonNullKey);
+
+            // Try put value as "default"
+            Map<K, V> newDef = getContext().defaults.getNewDefaultValues(getDefaultValues(), nonNullKey, value);
+            if (newDef != null) {
+                map.klass = getMapWithEmptyDefaults().getNewDefaultClass(newDef).withRemovedSlots(getRemovedSlots());
+                return (V) prevValue;
+            }
+
+            if (value == REMOVED_OBJECT)
+                return (V) prevValue;
+            // The value is not default -- put using regular way
+            slot = createNewSlot(map, nonNullKey);
+            if (slot == CompactHashMapKeyIndex.NO_SLOT) {
+                // The map has switched to dictionary mode, or it has been compacted
+                return map.klass.put(map, key, value);
+            }
+        }
+
+        switch (slot) {
+            case -1:
+                if (prevValue == REMOVED_OBJECT)
+                    prevValue = map.v2;
+                map.v2 = value;
+                break;
+            case -2:
+                if (prevValue == REMOVED_OBJECT)
+                    prevValue = map.v3;
+                map.v3 = value;
+                break;
+            default:
+                if (slot == 0 && keyCount <= 3) {
+                    if (prevValue == REMOVED_OBJECT)
+                        prevValue = map.v1;
+                    map.v1 = value;
+                    break;
+                }
+
+                Object[] array = (Object[]) map.v1;
+                if (prevValue == REMOVED_OBJECT)
+                    prevValue = array[slot];
+                array[slot] = value;
+                break;
+        }
+
+        if (!newSlot) {
+            // prevValue is the previous contents of the slot, and the class counts the removed slots
+            if (value == REMOVED_OBJECT) {
+                if (prevValue != REMOVED_OBJECT)
+                    map.klass = withRemovedSlots(getRemovedSlots() + 1);
+            } else if (prevValue == REMOVED_OBJECT) {
+                map.klass = withRemovedSlots(getRemovedSlots() - 1);
+            }
+        }
+
+        if (value == REMOVED_OBJECT && slot == keyCount - 3) {
+            // The last added key is removed, so the map can go back to the parent class
+            removeTrailingSlots(map);
+        }
+
+        // The slot might hold a removed value
+        return prevValue == REMOVED_OBJECT ? null : (V) prevValue;
+    }
+
+    /**
+     * Puts several entries at once. Unlike a sequence of {@link #put(CompactHashMap, Object, Object)}
+     * calls, it walks the transition tree just once, it resolves the class for the final default values
+     * just once, and it resizes the array of values at most once.
+     *
+     * @param map    the map to update, its class must be {@code this}
+     * @param keys   distinct keys, the method replaces nulls with the masked value
+     * @param values values, {@link #REMOVED_OBJECT} allocates a slot for a key, yet it keeps the key absent
+     * @param size   number of entries to put
+     */
+    @Override
+    public void putAll(CompactHashMap<K, V> map, Object[] keys, Object[] values, int size) {
+        final CompactHashMapClassEmptyDefaults<K, V> prevKlass = getMapWithEmptyDefaults();
+        final Map<K, V> prevDefaultValues = getDefaultValues();
+        final int prevSize = keyCount;
+        int removedSlots = getRemovedSlots();
+
+        CompactHashMapClassEmptyDefaults<K, V> newKlass = prevKlass;
+        Map<K, V> defaultValues = prevDefaultValues;
+        // Values for the new slots: they are written when the array of values is resized
+        Object[] newValues = null;
+        int newSlots = 0;
+        // The entries starting from this one are put after the map switches to dictionary mode
+        int dictionaryStart = size;
+        for (int i = 0; i < size; i++) {
+            keys[i] = maskNull(keys[i]);
+        }
+        boolean[] keysWithDefaults = getContext().defaults.findKeysWithDefaults(keys, size);
+        for (int i = 0; i < size; i++) {
+            K nonNullKey = (K) keys[i];
+            Object value = values[i];
+            int slot = prevSize == 0 ? CompactHashMapKeyIndex.NO_SLOT : getSlot(nonNullKey);
+            if (slot != CompactHashMapKeyIndex.NO_SLOT) {
+                if (getValueFromSlot(map, slot) == REMOVED_OBJECT)
+                    removedSlots--;
+                if (value == REMOVED_OBJECT)
+                    removedSlots++;
+                setValueInSlot(map, slot, value);
+                continue;
+            }
+
+            if (value == REMOVED_OBJECT) {
+                if (defaultValues.containsKey(nonNullKey)) {
+                    defaultValues = getContext().defaults.getNewDefaultValues(defaultValues, nonNullKey, value);
+                    continue;
+                }
+            } else {
+                // Try put value as "default"
+                if (keysWithDefaults != null && keysWithDefaults[i]) {
+                    Map<K, V> newDef = getContext().defaults.getNewDefaultValues(defaultValues, nonNullKey, value);
+                    if (newDef != null) {
+                        defaultValues = newDef;
+                        continue;
+                    }
+                }
+                if (defaultValues.containsKey(nonNullKey))
+                    defaultValues = getContext().defaults.getNewDefaultValues(defaultValues, nonNullKey, REMOVED_OBJECT);
+            }
+
+            // The value is not default -- the key gets the next slot
+            if (newKlass.keyCount >= getContext().dictionaryThreshold) {
+                dictionaryStart = i;
+                break;
+            }
+            CompactHashMapClassEmptyDefaults<K, V> nextKlass = newKlass.getNextKlass(nonNullKey);
+            if (!nextKlass.isShared()) {
+                dictionaryStart = i;
+                break;
+            }
+            newKlass = nextKlass;
+            if (newValues == null) {
+                newValues = new Object[size - i];
+            }
+            newValues[newSlots++] = value;
+        }
+
+        if (newKlass != prevKlass || defaultValues != prevDefaultValues) {
+            commitPutAll(map, newKlass, defaultValues, newValues, newSlots, removedSlots);
+        } else if (removedSlots != getRemovedSlots()) {
+            map.klass = withRemovedSlots(removedSlots);
+        }
+
+        if (dictionaryStart < size) {
+            CompactHashMapClassDictionary.toDictionary(map, size - dictionaryStart);
+            for (int i = dictionaryStart; i < size; i++) {
+                map.klass.put(map, (K) keys[i], values[i]);
+            }
+        }
+    }
+
+    private void commitPutAll(CompactHashMap<K, V> map, CompactHashMapClassEmptyDefaults<K, V> newKlass,
+                              Map<K, V> defaultValues, Object[] newValues, int newSlots, int removedSlots) {
+        final int prevSize = keyCount;
+        int newSize = newKlass.keyCount;
+        if (newSize > 3 && newSize > prevSize) {
+            // The array holds slots 0..newSize-3
+            int length = newSize - 2;
+            Object[] array = prevSize > 3 ? (Object[]) map.v1 : null;
+            if (array == null || array.length < length) {
+                // Keep the length even to play well with 8 byte alignment
+                Object[] newArray = new Object[length + (length & 1)];
+                if (array != null) {
+                    System.arraycopy(array, 0, newArray, 0, prevSize - 2);
+                } else if (prevSize == 3) {
+                    newArray[0] = map.v1;
+                }
+                map.v1 = newArray;
+            }
+        }
+
+        for (int i = 0; i < newSlots; i++) {
+            if (newValues[i] == REMOVED_OBJECT)
+                removedSlots++;
+        }
+        map.klass = newKlass.getNewDefaultClass(defaultValues).withRemovedSlots(removedSlots);
+        for (int i = 0; i < newSlots; i++) {
+            setValueInSlot(map, prevSize - 2 + i, newValues[i]);
+        }
+    }
+
+    /**
+     * Moves the map to the class with one more key.
+     *
+     * @return the slot for the new key or {@link CompactHashMapKeyIndex#NO_SLOT} if the map has switched
+     * to another class (dictionary mode or compacted class), so the caller should retry
+     */
+    private int createNewSlot(CompactHashMap<K, V> map, K key) {
+        if (keyCount >= getContext().dictionaryThreshold) {
+            CompactHashMapClassDictionary.toDictionary(map, 1);
+            return CompactHashMapKeyIndex.NO_SLOT;
+        }
+        if (keyCount > 3 && ((Object[]) map.v1).length < keyCount - 1
+                && getRemovedSlots() * 2 >= keyCount) {
+            // The array is full, and at least half of the slots hold removed values,
+            // so compact the map rather than grow the array
+            compact(map);
+            return CompactHashMapKeyIndex.NO_SLOT;
+        }
+        final CompactHashMapClassInTree<K, V> nextKlass = getMapWithEmptyDefaults().getNextKlass(key, getDefaultValues());
+        if (!nextKlass.getMapWithEmptyDefaults().isShared()) {
+            // The transition tree is full, so a map with unique keys would just create a new class for every key
+            CompactHashMapClassDictionary.toDictionary(map, 1);
+            return CompactHashMapKeyIndex.NO_SLOT;
+        }
+        map.klass = nextKlass.withRemovedSlots(getRemovedSlots());
+
+        int prevSize = keyCount;
+
+        if (prevSize == 3) {
+            // Array length should be odd to play well with 8 byte alignment of object size
+            //  1.5 refs (object header) + 1 int (array length) + n*length refs (contents)
+            Object[] array = new Object[4];
+            array[0] = map.v1;
+            map.v1 = array;
+        } else if (prevSize > 3) {
+            Object[] array = (Object[]) map.v1;
+            if (array.length < prevSize - 1) {
+                int newSize = array.length * 3 / 2;
+                newSize += newSize & 1; // If odd, round to next even
+                Object[] newArray = new Object[newSize];
+                System.arraycopy(array, 0, newArray, 0, array.length);
+                map.v1 = newArray;
+            }
+        }
+
+        // The new key always gets the next slot
+        return prevSize - 2;
+    }
+
+    /**
+     * Moves the map to the parent class while the last slot holds a removed value.
+     */
+    private void removeTrailingSlots(CompactHashMap<K, V> map) {
+        CompactHashMapClassEmptyDefaults<K, V> klass = getMapWithEmptyDefaults();
+        while (klass.parent != null && getValueFromSlot(map, klass.keyCount - 3) == REMOVED_OBJECT) {
+            klass = klass.parent;
+        }
+        int prevSize = keyCount;
+        int newSize = klass.keyCount;
+        if (prevSize > 3) {
+            Object[] array = (Object[]) map.v1;
+            if (newSize <= 3) {
+                map.v1 = newSize == 3 ? array[0] : null;
+            } else {
+                for (int i = newSize - 2; i < prevSize - 2; i++) {
+                    array[i] = null;
+                }
+            }
+        } else if (newSize < 3) {
+            map.v1 = null;
+        }
+        if (newSize < 2) {
+            map.v2 = null;
+        }
+        if (newSize < 1) {
+            map.v3 = null;
+        }
+        // The dropped slots held removed values. The caller might have moved the map to the variation
+        // that counts the just removed slot, so take the count from the current class of the map
+        int removedSlots = map.klass.getRemovedSlots() - (prevSize - newSize);
+        map.klass = klass.getNewDefaultClass(getDefaultValues()).withRemovedSlots(removedSlots);
+    }
+
+    /**
+     * Moves the map to the class that has just the live keys (in the order they were added),
+     * and shrinks the array of values to fit.
+     *
+     * @param map the map to compact
+     */
+    @Override
+    void compact(CompactHashMap<K, V> map) {
+        int liveSlots = keyCount - getRemovedSlots();
+        if (liveSlots == keyCount) {
+            // Drop the spare capacity
+            copyValues(map);
+            return;
+        }
+        Object[] keys = new Object[liveSlots];
+        Object[] values = new Object[liveSlots];
+        int i = liveSlots;
+        for (CompactHashMapClassEmptyDefaults<K, V> klass = getMapWithEmptyDefaults(); klass.parent != null; klass = klass.parent) {
+            Object value = getValueFromSlot(map, klass.keyCount - 3);
+            if (value != REMOVED_OBJECT) {
+                i--;
+                keys[i] = klass.key;
+                values[i] = value;
+            }
+        }
+
+        CompactHashMapClassEmptyDefaults<K, V> newKlass = getContext().root;
+        for (Object key : keys) {
+            newKlass = newKlass.getNextKlass(key);
+            if (!newKlass.isShared()) {
+                CompactHashMapClassDictionary.toDictionary(map, 0);
+                return;
+            }
+        }
+
+        if (liveSlots > 3) {
+            int length = liveSlots - 2;
+            map.v1 = new Object[length + (length & 1)];
+        } else {
+            map.v1 = null;
+        }
+        map.v2 = null;
+        map.v3 = null;
+        map.klass = newKlass.getNewDefaultClass(getDefaultValues());
+        for (i = 0; i < liveSlots; i++) {
+            setValueInSlot(map, i - 2, values[i]);
+        }
+    }
+}
@@ -18,15 +18,14 @@ package vlsi.utils;
 
 import java.util.Map;
 
-class CompactHashMapClassWithDefaults<K, V> extends CompactHashMapClass<K, V> {
+class CompactHashMapClassWithDefaults<K, V> extends CompactHashMapClassInTree<K, V> {
     private final Map<K, V> defaultValues;
     private final CompactHashMapClassEmptyDefaults<K, V> mapClassEmptyDefaults;
 
     public CompactHashMapClassWithDefaults(
-            com.github.andrewoma.dexx.collection.Map<K, Integer> key2Slot,
             Map<K, V> defaultValues,
             CompactHashMapClassEmptyDefaults<K, V> mapClassEmptyDefaults) {
-        super(key2Slot);
+        super(mapClassEmptyDefaults.keyCount);
         this.defaultValues = defaultValues;
         this.mapClassEmptyDefaults = mapClassEmptyDefaults;
     }
@@ -40,4 +39,24 @@ class CompactHashMapClassWithDefaults<K, V> extends CompactHashMapClass<K, V> {
     protected CompactHashMapClassEmptyDefaults<K, V> getMapWithEmptyDefaults() {
         return mapClassEmptyDefaults;
     }
+
+    @Override
+    protected int getSlotWithoutIndex(Object key) {
+        CompactHashMapKeyIndex key2slot = mapClassEmptyDefaults.key2slot;
+        if (key2slot == null) {
+            // Lookups count towards "hotness" of the class with empty defaults
+            return mapClassEmptyDefaults.getSlot(key);
+        }
+        this.key2slot = key2slot;
+        return getSlot(key);
+    }
+
+    @Override
+    protected CompactHashMapKeyIndex getKey2slot() {
+        CompactHashMapKeyIndex key2slot = this.key2slot;
+        if (key2slot == null) {
+            this.key2slot = key2slot = mapClassEmptyDefaults.getKey2slot();
+        }
+        return key2slot;
+    }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.util.Map;
+
+/**
+ * The variation of a class whose maps have some slots that hold {@link #REMOVED_OBJECT}.
+ * It has the same keys, slots and default values as the base class, so removal is just a transition
+ * to another variation, and {@link #size(CompactHashMap)} does not need to scan the values.
+ *
+ * @author Vladimir Sitnikov
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ * @see CompactHashMapClassInTree#withRemovedSlots(int)
+ */
+class CompactHashMapClassWithRemovedSlots<K, V> extends CompactHashMapClassInTree<K, V> {
+    // The class without removed slots. The reference keeps it reachable, since the tree refers to it weakly
+    private final CompactHashMapClassInTree<K, V> base;
+    private final int removedSlots;
+
+    CompactHashMapClassWithRemovedSlots(CompactHashMapClassInTree<K, V> base, int removedSlots) {
+        super(base.keyCount);
+        this.base = base;
+        this.removedSlots = removedSlots;
+    }
+
+    @Override
+    int getRemovedSlots() {
+        return removedSlots;
+    }
+
+    @Override
+    CompactHashMapClassInTree<K, V> withRemovedSlots(int removedSlots) {
+        return base.withRemovedSlots(removedSlots);
+    }
+
+    @Override
+    protected Map<K, V> getDefaultValues() {
+        return base.getDefaultValues();
+    }
+
+    @Override
+    protected CompactHashMapClassEmptyDefaults<K, V> getMapWithEmptyDefaults() {
+        return base.getMapWithEmptyDefaults();
+    }
+
+    @Override
+    protected int getSlotWithoutIndex(Object key) {
+        CompactHashMapKeyIndex key2slot = base.key2slot;
+        if (key2slot == null) {
+            // Lookups count towards "hotness" of the class with empty defaults
+            return base.getSlot(key);
+        }
+        this.key2slot = key2slot;
+        return getSlot(key);
+    }
+
+    @Override
+    protected CompactHashMapKeyIndex getKey2slot() {
+        CompactHashMapKeyIndex key2slot = this.key2slot;
+        if (key2slot == null) {
+            this.key2slot = key2slot = base.getKey2slot();
+        }
+        return key2slot;
+    }
+}
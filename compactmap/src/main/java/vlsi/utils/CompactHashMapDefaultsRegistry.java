@@ -0,0 +1,250 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Registry of the values that are stored in the map classes rather than in the maps.
+ * Each {@link CompactMapContext} has its own registry.
+ *
+ * <p>{@link #getNewDefaultValues} is called on every put of a key the map class does not know,
+ * so it does not take locks: the registry is an immutable snapshot that {@link #add} replaces
+ * (copy-on-write), and the cache of default value maps is replaced with compare-and-set.</p>
+ *
+ * @author Vladimir Sitnikov
+ */
+final class CompactHashMapDefaultsRegistry {
+    // Key -> Value -> OldMap -> NewMap
+    // The outer map is an immutable snapshot. NewMap is weakly referenced, so the maps that are no longer
+    // used by the classes are collected
+    private volatile Map<Object, ConcurrentMap<Object, Transitions>> defaultValues =
+            Collections.emptyMap();
+
+    // Guards the updates of defaultValues snapshot
+    private final Object updateLock = new Object();
+
+    // The references to collected maps, so the caches can forget them
+    private static final ReferenceQueue<Map<?, ?>> staleReferences = new ReferenceQueue<Map<?, ?>>();
+
+    // ConcurrentHashMap does not permit null keys, so null default values are stored as this marker
+    private static final Object NULL_VALUE = new Object();
+
+    /**
+     * The default values that are produced when a (key, value) pair is added to the given default values.
+     */
+    private static final class Transitions {
+        // The updater is created from class literals, so its type arguments are raw
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Transitions, Map> OLD_2_NEW =
+                AtomicReferenceFieldUpdater.newUpdater(Transitions.class, Map.class, "identityOld2New");
+
+        // Copy-on-write, so the readers do not need locks
+        volatile Map<Map<?, ?>, MapReference> identityOld2New = Collections.emptyMap();
+
+        Map<?, ?> get(Map<?, ?> prevDefaultValues) {
+            MapReference newMapRef = identityOld2New.get(prevDefaultValues);
+            return newMapRef == null ? null : newMapRef.get();
+        }
+
+        /**
+         * Caches the new map unless another thread has just cached one.
+         *
+         * @return the cached map
+         */
+        Map<?, ?> putIfAbsent(Map<?, ?> prevDefaultValues, Map<?, ?> newMap) {
+            MapReference newMapRef = new MapReference(newMap, this, prevDefaultValues);
+            while (true) {
+                Map<Map<?, ?>, MapReference> identityOld2New = this.identityOld2New;
+                MapReference anotherNewMapRef = identityOld2New.get(prevDefaultValues);
+                Map<?, ?> anotherNewMap = anotherNewMapRef == null ? null : anotherNewMapRef.get();
+                if (anotherNewMap != null) return anotherNewMap;
+
+                Map<Map<?, ?>, MapReference> newIdentityOld2New =
+                        new IdentityHashMap<Map<?, ?>, MapReference>(identityOld2New);
+                newIdentityOld2New.put(prevDefaultValues, newMapRef);
+                if (OLD_2_NEW.compareAndSet(this, identityOld2New, newIdentityOld2New)) return newMap;
+            }
+        }
+
+        void remove(MapReference mapRef) {
+            while (true) {
+                Map<Map<?, ?>, MapReference> identityOld2New = this.identityOld2New;
+                if (identityOld2New.get(mapRef.prevDefaultValues) != mapRef) return;
+
+                Map<Map<?, ?>, MapReference> newIdentityOld2New =
+                        new IdentityHashMap<Map<?, ?>, MapReference>(identityOld2New);
+                newIdentityOld2New.remove(mapRef.prevDefaultValues);
+                if (OLD_2_NEW.compareAndSet(this, identityOld2New, newIdentityOld2New)) return;
+            }
+        }
+    }
+
+    /**
+     * Weak reference to the new default values, it knows the cache entry it belongs to.
+     */
+    private static final class MapReference extends WeakReference<Map<?, ?>> {
+        final Transitions owner;
+        final Map<?, ?> prevDefaultValues;
+
+        MapReference(Map<?, ?> newDefaultValues, Transitions owner, Map<?, ?> prevDefaultValues) {
+            super(newDefaultValues, staleReferences);
+            this.owner = owner;
+            this.prevDefaultValues = prevDefaultValues;
+        }
+    }
+
+    /**
+     * Removes the cache entries for the collected maps.
+     */
+    private static void expungeStaleReferences() {
+        Reference<? extends Map<?, ?>> ref;
+        while ((ref = staleReferences.poll()) != null) {
+            MapReference mapRef = (MapReference) ref;
+            mapRef.owner.remove(mapRef);
+        }
+    }
+
+    void clear() {
+        synchronized (updateLock) {
+            defaultValues = Collections.emptyMap();
+        }
+    }
+
+    boolean add(Object key, Object value) {
+        synchronized (updateLock) {
+            ConcurrentMap<Object, Transitions> m = defaultValues.get(key);
+            if (m == null) {
+                m = new ConcurrentHashMap<Object, Transitions>();
+                Map<Object, ConcurrentMap<Object, Transitions>> newDefaultValues =
+                        new HashMap<Object, ConcurrentMap<Object, Transitions>>(defaultValues);
+                newDefaultValues.put(key, m);
+                defaultValues = newDefaultValues;
+            }
+
+            // false means the value is already marked as default
+            return m.putIfAbsent(value == null ? NULL_VALUE : value, new Transitions()) == null;
+        }
+    }
+
+    /**
+     * Finds the keys that have default values registered.
+     * It reads the registry snapshot just once, so it is cheaper than {@link #getNewDefaultValues} for every key.
+     *
+     * @param keys keys to check
+     * @param size number of keys to check
+     * @return null when none of the keys has default values, otherwise {@code result[i]} is true
+     * when {@code keys[i]} has default values
+     */
+    boolean[] findKeysWithDefaults(Object[] keys, int size) {
+        Map<Object, ConcurrentMap<Object, Transitions>> defaultValues = this.defaultValues;
+        if (defaultValues.isEmpty()) return null;
+        boolean[] result = null;
+        for (int i = 0; i < size; i++) {
+            if (defaultValues.containsKey(keys[i])) {
+                if (result == null) result = new boolean[size];
+                result[i] = true;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the registered map that is equal to the given default values, so it can be used
+     * for {@link CompactHashMapClassEmptyDefaults#getNewDefaultClass(Map)} that looks up the classes by identity.
+     * The entries are replayed through the cached transitions in their order, so the lookup does not allocate
+     * when the maps with the same default values exist.
+     *
+     * @param defaults default values, for instance, the ones that are deserialized
+     * @return the registered map or null if some of the values are not registered as default ones
+     */
+    <K, V> Map<K, V> getCanonicalDefaultValues(Map<K, V> defaults) {
+        Map<K, V> result = Collections.emptyMap();
+        for (Map.Entry<K, V> entry : defaults.entrySet()) {
+            result = getNewDefaultValues(result, entry.getKey(), entry.getValue());
+            if (result == null) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    <K, V> Map<K, V> getNewDefaultValues(Map<K, V> prevDefaultValues, K key, Object value) {
+        if (value != CompactHashMapClass.REMOVED_OBJECT
+                && prevDefaultValues.get(key) == value && prevDefaultValues.containsKey(key)) {
+            // The value is already there, so the new map would be a copy of the previous one
+            return prevDefaultValues;
+        }
+
+        final ConcurrentMap<Object, Transitions> m = defaultValues.get(key);
+        final Object valueKey = value == null ? NULL_VALUE : value;
+        Transitions transitions;
+        if (m == null) {
+            // The key is not default, however it might have been default before clear()
+            if (value != CompactHashMapClass.REMOVED_OBJECT || !prevDefaultValues.containsKey(key))
+                return null;
+            transitions = null;
+        } else if ((transitions = m.get(valueKey)) == null) {
+            if (value != CompactHashMapClass.REMOVED_OBJECT && m.get(CompactHashMapDefaultValues.ALL_VALUES_MATCH) == null)
+                return null; // The value is not default
+        } else {
+            Map<K, V> newMap = cast(transitions.get(prevDefaultValues));
+            if (newMap != null) return newMap;
+        }
+
+        // Keep the order of entries in the default values, so we have a consistent subset of "default class"
+        Map<Object, Object> newMap = new LinkedHashMap<Object, Object>((int) ((prevDefaultValues.size() + 1) / 0.75f));
+
+        newMap.putAll(prevDefaultValues);
+
+        if (value == CompactHashMapClass.REMOVED_OBJECT)
+            newMap.remove(key);
+        else
+            newMap.put(key, value);
+
+        if (m == null) return cast(newMap); // The key is no longer registered, so there's nothing to cache
+
+        if (transitions == null) {
+            Transitions newTransitions = new Transitions();
+            transitions = m.putIfAbsent(valueKey, newTransitions);
+            if (transitions == null) transitions = newTransitions;
+        }
+
+        expungeStaleReferences();
+        // In case another thread has just created new map, use that one
+        return cast(transitions.putIfAbsent(prevDefaultValues, newMap));
+    }
+
+    /**
+     * The registry does not know the types of keys and values, so the caller is responsible for putting
+     * the values of the proper types, and the maps that are derived from {@code Map<K, V>} are {@code Map<K, V>}.
+     */
+    @SuppressWarnings("unchecked")
+    private static <K, V> Map<K, V> cast(Map<?, ?> map) {
+        return (Map<K, V>) map;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+/**
+ * Open addressing hash table that stores the entries of a map in "dictionary mode".
+ * Keys and values are interleaved in a single array, and collisions are resolved with linear probing.
+ * Removed keys leave tombstones, so the positions of the other keys do not change (it keeps iterators valid).
+ *
+ * <p>The keys are never null: the caller masks them.</p>
+ *
+ * @author Vladimir Sitnikov
+ */
+final class CompactHashMapDictionary {
+    private static final int KEY_MULTIPLIER = 0x9E3779B9;
+
+    // Marks the cell of a removed key
+    private static final Object DELETED = new Object();
+
+    // table[2 * i] is a key, table[2 * i + 1] is its value
+    private Object[] table;
+    private int shift;
+    private int size;
+    // Live keys plus tombstones
+    private int used;
+
+    CompactHashMapDictionary(int expectedSize) {
+        allocate(expectedSize);
+    }
+
+    private CompactHashMapDictionary(CompactHashMapDictionary dictionary) {
+        this.table = dictionary.table.clone();
+        this.shift = dictionary.shift;
+        this.size = dictionary.size;
+        this.used = dictionary.used;
+    }
+
+    private void allocate(int expectedSize) {
+        // The table is at most 3/4 full, and at least half empty after the resize
+        int capacity = Math.max(8, Integer.highestOneBit(expectedSize * 2 - 1) << 1);
+        table = new Object[capacity * 2];
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+        used = 0;
+    }
+
+    /**
+     * Returns a copy of this dictionary.
+     *
+     * @return copy of this dictionary
+     */
+    public CompactHashMapDictionary copy() {
+        return new CompactHashMapDictionary(this);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of cells, use it to iterate over the dictionary.
+     *
+     * @return the number of cells
+     */
+    public int capacity() {
+        return table.length >> 1;
+    }
+
+    /**
+     * Returns the key in the given cell.
+     *
+     * @param cell cell number
+     * @return key or null if the cell is empty
+     */
+    public Object getKeyAt(int cell) {
+        Object key = table[cell * 2];
+        return key == DELETED ? null : key;
+    }
+
+    public Object getValueAt(int cell) {
+        return table[cell * 2 + 1];
+    }
+
+    private int find(Object key) {
+        Object[] table = this.table;
+        int mask = (table.length >> 1) - 1;
+        for (int cell = (key.hashCode() * KEY_MULTIPLIER) >>> shift; ; cell = (cell + 1) & mask) {
+            Object k = table[cell * 2];
+            if (k == key || (k != null && k != DELETED && key.equals(k))) {
+                return cell;
+            }
+            if (k == null) {
+                return -1;
+            }
+        }
+    }
+
+    public boolean containsKey(Object key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Returns the value for the given key.
+     *
+     * @param key non-null key
+     * @return value or {@link CompactHashMapClass#REMOVED_OBJECT} if the key is absent
+     */
+    public Object get(Object key) {
+        int cell = find(key);
+        return cell < 0 ? CompactHashMapClass.REMOVED_OBJECT : table[cell * 2 + 1];
+    }
+
+    /**
+     * Associates the value with the key.
+     *
+     * @param key   non-null key
+     * @param value value
+     * @return previous value or {@link CompactHashMapClass#REMOVED_OBJECT} if the key was absent
+     */
+    public Object put(Object key, Object value) {
+        int cell = find(key);
+        if (cell >= 0) {
+            Object prevValue = table[cell * 2 + 1];
+            table[cell * 2 + 1] = value;
+            return prevValue;
+        }
+        if ((used + 1) * 4 > capacity() * 3) {
+            rehash(size + 1);
+        }
+        insert(key, value);
+        return CompactHashMapClass.REMOVED_OBJECT;
+    }
+
+    /**
+     * Makes sure the given number of keys can be added without resizing.
+     *
+     * @param keys number of keys to add
+     */
+    public void ensureCapacity(int keys) {
+        if ((used + keys) * 4 > capacity() * 3) {
+            rehash(size + keys);
+        }
+    }
+
+    /**
+     * Drops the tombstones, and shrinks the table to fit the keys.
+     */
+    public void trim() {
+        rehash(size);
+    }
+
+    /**
+     * Adds the key that is known to be absent. The caller ensures there's a free cell.
+     */
+    private void insert(Object key, Object value) {
+        Object[] table = this.table;
+        int mask = (table.length >> 1) - 1;
+        for (int cell = (key.hashCode() * KEY_MULTIPLIER) >>> shift; ; cell = (cell + 1) & mask) {
+            Object k = table[cell * 2];
+            if (k == null || k == DELETED) {
+                if (k == null) {
+                    used++;
+                }
+                table[cell * 2] = key;
+                table[cell * 2 + 1] = value;
+                size++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the key.
+     *
+     * @param key non-null key
+     * @return previous value or {@link CompactHashMapClass#REMOVED_OBJECT} if the key was absent
+     */
+    public Object remove(Object key) {
+        int cell = find(key);
+        if (cell < 0) {
+            return CompactHashMapClass.REMOVED_OBJECT;
+        }
+        Object prevValue = table[cell * 2 + 1];
+        table[cell * 2] = DELETED;
+        table[cell * 2 + 1] = null;
+        size--;
+        return prevValue;
+    }
+
+    private void rehash(int expectedSize) {
+        Object[] oldTable = table;
+        allocate(expectedSize);
+        size = 0;
+        for (int i = 0; i < oldTable.length; i += 2) {
+            Object key = oldTable[i];
+            if (key != null && key != DELETED) {
+                insert(key, oldTable[i + 1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+/**
+ * Reusable accessor for a single key of {@link CompactHashMap}. The handle remembers where the key
+ * is stored for the first few map classes it sees (like
+ * <a href="https://v8.dev/blog/fast-properties">V8's inline caches</a>),
+ * so the access to a map of a known class does not hash the key: it is just an identity check of the
+ * class and a read of a field or an array element.
+ *
+ * <p>Handles are thread-safe, so they can be kept in static final fields:</p>
+ * <pre>
+ * private static final CompactHashMapKeyHandle&lt;String, Object&gt; ID = CompactHashMap.handle("id");
+ * ...
+ * Object id = ID.get(map);
+ * </pre>
+ *
+ * @author Vladimir Sitnikov
+ * @param <K> the type of keys maintained by the map
+ * @param <V> the type of mapped values
+ */
+public final class CompactHashMapKeyHandle<K, V> {
+    /**
+     * The number of map classes a handle remembers. When the handle sees more classes (it becomes
+     * "megamorphic"), the rest of the classes use regular hash lookups.
+     */
+    private static final int CACHE_SIZE = 4;
+
+    private final K key;
+
+    // Copy-on-write array, so it is safe to read it without synchronization.
+    // The elements might appear as null when the array is published racily, so readers skip nulls
+    private Location[] cache = new Location[0];
+
+    CompactHashMapKeyHandle(K key) {
+        this.key = key;
+    }
+
+    /**
+     * Where the key is stored for a given map class.
+     */
+    private static final class Location {
+        static final int CONSTANT = 0;
+        static final int V1 = 1;
+        static final int V2 = 2;
+        static final int V3 = 3;
+        static final int ARRAY = 4;
+
+        final CompactHashMapClass<?, ?> klass;
+        final int kind;
+        final int index;
+        // Default value for CONSTANT, or REMOVED_OBJECT when the key is absent
+        final Object value;
+
+        Location(CompactHashMapClass<?, ?> klass, int kind, int index, Object value) {
+            this.klass = klass;
+            this.kind = kind;
+            this.index = index;
+            this.value = value;
+        }
+
+        Object read(CompactHashMap<?, ?> map) {
+            switch (kind) {
+                case V1:
+                    return map.v1;
+                case V2:
+                    return map.v2;
+                case V3:
+                    return map.v3;
+                case ARRAY:
+                    return ((Object[]) map.v1)[index];
+                default:
+                    return value;
+            }
+        }
+
+        void write(CompactHashMap<?, ?> map, Object value) {
+            switch (kind) {
+                case V1:
+                    map.v1 = value;
+                    break;
+                case V2:
+                    map.v2 = value;
+                    break;
+                case V3:
+                    map.v3 = value;
+                    break;
+                default:
+                    ((Object[]) map.v1)[index] = value;
+            }
+        }
+    }
+
+    /**
+     * Returns the key this handle accesses.
+     *
+     * @return the key
+     */
+    public K getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the location of the key for the given class.
+     *
+     * @param klass map class
+     * @return location or null if the handle is megamorphic and the class is not cached,
+     * or if the map is in dictionary mode
+     */
+    private Location locate(CompactHashMapClass<?, ?> klass) {
+        Location[] cache = this.cache;
+        for (int i = 0; i < cache.length; i++) {
+            Location location = cache[i];
+            if (location != null && location.klass == klass) {
+                return location;
+            }
+        }
+        if (cache.length == CACHE_SIZE) {
+            return null;
+        }
+        return resolve(klass, cache);
+    }
+
+    private Location resolve(CompactHashMapClass<?, ?> klass, Location[] cache) {
+        if (klass instanceof CompactHashMapClassDictionary) {
+            // Maps in dictionary mode do not have fixed locations for keys
+            return null;
+        }
+        Object nonNullKey = CompactHashMapClass.maskNull(key);
+        int slot = klass.getSlot(nonNullKey);
+        Location location;
+        if (slot == CompactHashMapKeyIndex.NO_SLOT) {
+            Object value = klass.getDefaultValues().containsKey(nonNullKey)
+                    ? klass.getDefaultValues().get(nonNullKey)
+                    : CompactHashMapClass.REMOVED_OBJECT;
+            location = new Location(klass, Location.CONSTANT, 0, value);
+        } else if (slot == -2) {
+            location = new Location(klass, Location.V3, 0, null);
+        } else if (slot == -1) {
+            location = new Location(klass, Location.V2, 0, null);
+        } else if (slot == 0 && klass.keyCount <= 3) {
+            location = new Location(klass, Location.V1, 0, null);
+        } else {
+            location = new Location(klass, Location.ARRAY, slot, null);
+        }
+
+        Location[] newCache = new Location[cache.length + 1];
+        System.arraycopy(cache, 0, newCache, 0, cache.length);
+        newCache[cache.length] = location;
+        this.cache = newCache;
+        return location;
+    }
+
+    /**
+     * Returns the value of the key in the given map.
+     *
+     * @param map map to read
+     * @return the value or null if the map does not contain the key
+     * @see CompactHashMap#get(Object)
+     */
+    public V get(CompactHashMap<K, V> map) {
+        map = map.published();
+        Location location = locate(map.klass);
+        if (location == null) {
+            return map.get(key);
+        }
+        Object value = location.read(map);
+        return value == CompactHashMapClass.REMOVED_OBJECT ? null : (V) value;
+    }
+
+    /**
+     * Checks if the given map contains the key.
+     *
+     * @param map map to check
+     * @return true if the map contains the key
+     * @see CompactHashMap#containsKey(Object)
+     */
+    public boolean containsKey(CompactHashMap<K, V> map) {
+        map = map.published();
+        Location location = locate(map.klass);
+        if (location == null) {
+            return map.containsKey(key);
+        }
+        return location.read(map) != CompactHashMapClass.REMOVED_OBJECT;
+    }
+
+    /**
+     * Associates the value with the key in the given map.
+     * When the map already holds the key in a slot, the value is written in place.
+     * Frozen maps take the regular {@link CompactHashMap#put(Object, Object)} path, so they reject the update.
+     *
+     * @param map map to update
+     * @param value new value
+     * @return previous value or null if the map did not contain the key
+     * @see CompactHashMap#put(Object, Object)
+     */
+    public V put(CompactHashMap<K, V> map, V value) {
+        if (map instanceof FrozenCompactHashMap) {
+            return map.put(key, value);
+        }
+        Location location = locate(map.klass);
+        if (location != null && location.kind != Location.CONSTANT) {
+            Object prevValue = location.read(map);
+            if (prevValue != CompactHashMapClass.REMOVED_OBJECT) {
+                location.write(map, value);
+                return (V) prevValue;
+            }
+        }
+        return map.put(key, value);
+    }
+
+    @Override
+    public String toString() {
+        return "CompactHashMapKeyHandle{" + key + '}';
+    }
+}
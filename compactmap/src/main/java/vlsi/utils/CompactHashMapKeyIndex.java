@@ -0,0 +1,274 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.util.Arrays;
+
+/**
+ * Immutable key to slot mapping of a {@link CompactHashMapClass}.
+ *
+ * <p>The set of keys of a class never changes, so the lookup table is built once
+ * (when the class turns out to be used often). Ancestor classes reuse the index of their
+ * descendant since their keys are a prefix of the descendant keys.
+ * The index uses "hash and displace" perfect hashing: keys are split into buckets, and each bucket
+ * gets a displacement that sends all its keys to distinct free cells. Thus {@link #get(Object)}
+ * inspects exactly one cell, and it does not allocate.</p>
+ *
+ * <p>Keys with identical hash codes cannot be separated, so in that (rare) case the index
+ * falls back to linear probing.</p>
+ *
+ * <p>Call sites tend to look up the same keys over and over, so the index remembers the slots
+ * of the first found keys in a small direct-mapped cache. A cache entry is just an int, and it is
+ * validated against {@code slotKeys} by key identity, so concurrent updates cannot produce a wrong
+ * slot, and the cache needs no locks.</p>
+ *
+ * @author Vladimir Sitnikov
+ */
+final class CompactHashMapKeyIndex {
+    /**
+     * Returned by {@link #get(Object)} when the key is not present.
+     */
+    static final int NO_SLOT = Integer.MIN_VALUE;
+
+    private static final int KEY_MULTIPLIER = 0x9E3779B9;
+    private static final int CELL_MULTIPLIER = 0x85EBCA6B;
+
+    /**
+     * The number of entries in the lookup cache.
+     */
+    private static final int CACHED_SLOTS = 8;
+    private static final int CACHED_SHIFT = 32 - Integer.numberOfTrailingZeros(CACHED_SLOTS);
+
+    // Keys in the order of slots: slotKeys[i] is the key of slot i-2
+    private final Object[] slotKeys;
+    // Map.Entry-compatible hash codes of slotKeys (null key has 0), so hashCode of a map just adds value hashes
+    private final int[] keyHashCodes;
+
+    private final Object[] keys;
+    private final int[] slots;
+    private final int[] displacements;
+    private final int bucketShift;
+    private final int cellShift;
+    private final boolean perfect;
+
+    // slot + 3 of a found key, 0 means "empty". Entries are indexed by the top bits of the hash
+    private final int[] cachedSlots = new int[CACHED_SLOTS];
+
+    /**
+     * Creates the index.
+     *
+     * @param slotKeys non-null keys, {@code slotKeys[i]} gets slot {@code i-2}
+     */
+    CompactHashMapKeyIndex(Object[] slotKeys) {
+        this.slotKeys = slotKeys;
+        int size = slotKeys.length;
+        int[] keyHashCodes = new int[size];
+        for (int i = 0; i < size; i++) {
+            Object key = CompactHashMapClass.unmaskNull(slotKeys[i]);
+            keyHashCodes[i] = key == null ? 0 : key.hashCode();
+        }
+        this.keyHashCodes = keyHashCodes;
+
+        int cells = tableSize(size + size / 4);
+        int buckets = tableSize(size / 2);
+        int[] displacements = new int[buckets];
+        Object[] keys = new Object[cells];
+        int[] slots = new int[cells];
+        int bucketShift = 32 - Integer.numberOfTrailingZeros(buckets);
+        int cellShift = 32 - Integer.numberOfTrailingZeros(cells);
+
+        boolean perfect = place(slotKeys, keys, slots, displacements, bucketShift, cellShift);
+        if (!perfect) {
+            // Two keys share the hash code (or we failed to find displacements), use linear probing
+            // Half-full table keeps probe sequences short
+            cells = tableSize(size * 2);
+            keys = new Object[cells];
+            slots = new int[cells];
+            displacements = new int[2];
+            bucketShift = 31;
+            cellShift = 32 - Integer.numberOfTrailingZeros(cells);
+            for (int i = 0; i < size; i++) {
+                Object key = slotKeys[i];
+                int cell = cell(hash(key), 0, cellShift);
+                while (keys[cell] != null) {
+                    cell = (cell + 1) & (cells - 1);
+                }
+                keys[cell] = key;
+                slots[cell] = i - 2;
+            }
+        }
+
+        this.keys = keys;
+        this.slots = slots;
+        this.displacements = displacements;
+        this.bucketShift = bucketShift;
+        this.cellShift = cellShift;
+        this.perfect = perfect;
+    }
+
+    /**
+     * Returns the smallest power of two that is at least {@code size}, but not less than 2.
+     * Power of two sizes allow to compute cell numbers with a shift.
+     */
+    private static int tableSize(int size) {
+        return size <= 2 ? 2 : Integer.highestOneBit(size - 1) << 1;
+    }
+
+    private static int hash(Object key) {
+        return key.hashCode() * KEY_MULTIPLIER;
+    }
+
+    private static int cell(int hash, int displacement, int cellShift) {
+        return ((hash ^ displacement) * CELL_MULTIPLIER) >>> cellShift;
+    }
+
+    /**
+     * Places keys into cells, so no cells collide.
+     * Buckets are processed largest first, since they are the hardest to place.
+     *
+     * @return false if no collision-free placement was found
+     */
+    private static boolean place(Object[] slotKeys, Object[] keys, int[] slots, int[] displacements,
+                                 int bucketShift, int cellShift) {
+        int size = slotKeys.length;
+        if (size == 0) {
+            return true;
+        }
+        int[] hashes = new int[size];
+        int[] bucketSize = new int[displacements.length];
+        for (int i = 0; i < size; i++) {
+            int hash = hash(slotKeys[i]);
+            hashes[i] = hash;
+            bucketSize[hash >>> bucketShift]++;
+        }
+
+        // Sort keys by bucket size (descending), so keys of the same bucket are adjacent
+        // Each element packs (buckets - bucketSize, bucket, key index), so plain long sort does the job
+        long[] order = new long[size];
+        for (int i = 0; i < size; i++) {
+            int bucket = hashes[i] >>> bucketShift;
+            order[i] = ((long) (displacements.length - bucketSize[bucket]) << 48)
+                    | ((long) bucket << 24)
+                    | i;
+        }
+        Arrays.sort(order);
+
+        int maxAttempts = keys.length * 4 + 64;
+        int[] bucketCells = new int[size];
+        for (int start = 0; start < size; ) {
+            int bucket = hashes[(int) (order[start] & 0xFFFFFF)] >>> bucketShift;
+            int end = start + bucketSize[bucket];
+
+            boolean placed = false;
+            for (int attempt = 0; attempt < maxAttempts && !placed; attempt++) {
+                int displacement = attempt * KEY_MULTIPLIER;
+                placed = true;
+                for (int j = start; j < end && placed; j++) {
+                    int cell = cell(hashes[(int) (order[j] & 0xFFFFFF)], displacement, cellShift);
+                    if (keys[cell] != null) {
+                        placed = false;
+                        break;
+                    }
+                    for (int k = start; k < j; k++) {
+                        if (bucketCells[k] == cell) {
+                            placed = false;
+                            break;
+                        }
+                    }
+                    bucketCells[j] = cell;
+                }
+                if (placed) {
+                    displacements[bucket] = displacement;
+                    for (int j = start; j < end; j++) {
+                        int i = (int) (order[j] & 0xFFFFFF);
+                        keys[bucketCells[j]] = slotKeys[i];
+                        slots[bucketCells[j]] = i - 2;
+                    }
+                }
+            }
+            if (!placed) {
+                return false;
+            }
+            start = end;
+        }
+        return true;
+    }
+
+    public int size() {
+        return slotKeys.length;
+    }
+
+    /**
+     * Returns the slot of the given key.
+     *
+     * @param key non-null key
+     * @return slot number or {@link #NO_SLOT} when the key is absent
+     */
+    public int get(Object key) {
+        int hash = hash(key);
+        int cacheCell = hash >>> CACHED_SHIFT;
+        int cachedSlot = cachedSlots[cacheCell];
+        if (cachedSlot != 0 && slotKeys[cachedSlot - 1] == key) {
+            CompactHashMapStats.lookupCacheHit();
+            return cachedSlot - 3;
+        }
+        CompactHashMapStats.lookupCacheMiss();
+
+        Object[] keys = this.keys;
+        int cell = cell(hash, displacements[hash >>> bucketShift], cellShift);
+        while (true) {
+            Object k = keys[cell];
+            if (k == key) {
+                int slot = slots[cell];
+                // Entries are not replaced: a scan over many distinct keys would just thrash the cache
+                // and keep writing to the memory that is shared between threads
+                if (cachedSlot == 0) {
+                    cachedSlots[cacheCell] = slot + 3;
+                }
+                return slot;
+            }
+            if (k != null && key.equals(k)) {
+                // Equal, but not the same key: the cache would not validate it, so it is not cached
+                return slots[cell];
+            }
+            if (perfect || k == null) {
+                return NO_SLOT;
+            }
+            cell = (cell + 1) & (keys.length - 1);
+        }
+    }
+
+    /**
+     * Returns the key that is stored in the given slot.
+     *
+     * @param slot slot number, {@code -2..size()-3}
+     * @return key
+     */
+    public Object getKey(int slot) {
+        return slotKeys[slot + 2];
+    }
+
+    /**
+     * Returns the hash code of the key that is stored in the given slot, {@code null} key has hash code 0.
+     *
+     * @param slot slot number, {@code -2..size()-3}
+     * @return hash code of the key
+     */
+    public int getKeyHashCode(int slot) {
+        return keyHashCodes[slot + 2];
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runtime statistics of {@link CompactHashMap} internals.
+ *
+ * <p>The statistics are collected only when {@code -Dcompactmap.stats=true} system property is set
+ * (the counters are shared between threads, so they are not free). Otherwise all the counters stay at zero.</p>
+ *
+ * @author Vladimir Sitnikov
+ */
+public final class CompactHashMapStats {
+    static final boolean ENABLED = Boolean.getBoolean("compactmap.stats");
+
+    private static final AtomicLong lookupCacheHits = new AtomicLong();
+    private static final AtomicLong lookupCacheMisses = new AtomicLong();
+
+    private CompactHashMapStats() {
+    }
+
+    static void lookupCacheHit() {
+        if (ENABLED) {
+            lookupCacheHits.incrementAndGet();
+        }
+    }
+
+    static void lookupCacheMiss() {
+        if (ENABLED) {
+            lookupCacheMisses.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns true if statistics are collected.
+     *
+     * @return true if statistics are collected
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Returns the number of key lookups that were served by the lookup cache.
+     * Note: lookups in classes that are not "hot" yet do not use the cache, and they are not counted.
+     *
+     * @return the number of cache hits
+     */
+    public static long getLookupCacheHits() {
+        return lookupCacheHits.get();
+    }
+
+    /**
+     * Returns the number of key lookups that missed the lookup cache.
+     *
+     * @return the number of cache misses
+     */
+    public static long getLookupCacheMisses() {
+        return lookupCacheMisses.get();
+    }
+
+    /**
+     * Returns the share of key lookups that were served by the lookup cache.
+     *
+     * @return hit rate from 0 to 1, or 0 if there were no lookups
+     */
+    public static double getLookupCacheHitRate() {
+        long hits = getLookupCacheHits();
+        long total = hits + getLookupCacheMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Returns the number of map classes (shapes) in the transition tree of the default context.
+     * Unlike the other statistics, it is always available.
+     *
+     * @return the number of shapes
+     */
+    public static int getShapeCount() {
+        return CompactMapContext.getDefault().getShapeCount();
+    }
+
+    /**
+     * Resets all the counters to zero.
+     */
+    public static void reset() {
+        lookupCacheHits.set(0);
+        lookupCacheMisses.set(0);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+/**
+ * Map from objects to {@code long} values that does not box the values. The keys are shared with
+ * {@link CompactHashMap} maps of the same context, and the map stores just a {@code long[]} of values,
+ * so it is much smaller than {@code CompactHashMap<K, Long>} that stores a {@link Long} per value.
+ * <pre>
+ * CompactLongMap&lt;String&gt; counters = new CompactLongMap&lt;String&gt;();
+ * counters.addLong("requests", 1);
+ * long requests = counters.getLong("requests", 0);
+ * </pre>
+ *
+ * <p>The map permits {@code null} keys. <strong>Note that this implementation is not synchronized.</strong></p>
+ *
+ * @author Vladimir Sitnikov
+ * @param <K> the type of keys maintained by this map
+ */
+public final class CompactLongMap<K> extends CompactPrimitiveMap<K> {
+    private static final long[] EMPTY = new long[0];
+
+    private long[] values = EMPTY;
+
+    /**
+     * Creates an empty map that uses {@link CompactMapContext#getDefault() the default context}.
+     */
+    public CompactLongMap() {
+        this(CompactMapContext.getDefault());
+    }
+
+    /**
+     * Creates an empty map that uses the given context.
+     *
+     * @param context the context that provides the classes
+     */
+    public CompactLongMap(CompactMapContext context) {
+        super(context);
+    }
+
+    /**
+     * Returns the value of the key.
+     *
+     * @param key     the key
+     * @param missing the value to return when the key is absent
+     * @return the value of the key or {@code missing}
+     */
+    public long getLong(Object key, long missing) {
+        int index = indexOf(key);
+        return index < 0 ? missing : values[index];
+    }
+
+    /**
+     * Associates the value with the key.
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    public void putLong(K key, long value) {
+        int index = indexOf(key);
+        if (index < 0) {
+            index = addKey(key);
+        }
+        values[index] = value;
+    }
+
+    /**
+     * Adds the delta to the value of the key, a missing key is treated as zero.
+     *
+     * @param key   the key
+     * @param delta the value to add
+     * @return the new value of the key
+     */
+    public long addLong(K key, long delta) {
+        int index = indexOf(key);
+        if (index < 0) {
+            index = addKey(key);
+        }
+        return values[index] += delta;
+    }
+
+    @Override
+    int capacity() {
+        return values.length;
+    }
+
+    @Override
+    void resize(int length) {
+        long[] newValues = length == 0 ? EMPTY : new long[length];
+        System.arraycopy(values, 0, newValues, 0, Math.min(length, size()));
+        values = newValues;
+    }
+
+    @Override
+    void removeValue(int index, int size) {
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        // The new keys start with zero
+        values[size - 1] = 0;
+    }
+
+    @Override
+    int valueHashCode(int index) {
+        return (int) (values[index] ^ (values[index] >>> 32));
+    }
+
+    @Override
+    boolean valueEquals(int index, CompactPrimitiveMap<?> other, int otherIndex) {
+        return values[index] == ((CompactLongMap<?>) other).values[otherIndex];
+    }
+
+    @Override
+    void appendValue(StringBuilder sb, int index) {
+        sb.append(values[index]);
+    }
+
+    /**
+     * Returns a copy of this map.
+     *
+     * @return a copy of this map
+     */
+    @Override
+    public CompactLongMap<K> clone() {
+        CompactLongMap<K> result = (CompactLongMap<K>) super.clone();
+        result.values = values.clone();
+        return result;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns the shared metadata of {@link CompactHashMap}: the root of the transition tree (so the tree itself),
+ * and the registry of default values. The maps of different contexts do not share classes, so a library
+ * can register its own default values without affecting the other maps in the JVM, and the threads
+ * that build maps of different contexts do not touch the same metadata.
+ *
+ * <p>{@code new CompactHashMap()} and {@link CompactHashMapDefaultValues} use {@link #getDefault() the default
+ * context}. The copies of a map belong to the context of the source map.</p>
+ * <pre>
+ * CompactMapContext context = new CompactMapContext();
+ * context.addDefaultValue("status", "active");
+ * CompactHashMap&lt;String, Object&gt; map = context.newMap();
+ * </pre>
+ *
+ * @author Vladimir Sitnikov
+ */
+public final class CompactMapContext {
+    // The number of transitions in the tree (each class except the root has exactly one)
+    final AtomicInteger shapeCount = new AtomicInteger();
+
+    /**
+     * Maximum number of classes in the transition tree.
+     */
+    final int maxShapes;
+
+    /**
+     * The maximum number of keys in a map that uses shapes, the larger maps switch to dictionary mode.
+     */
+    final int dictionaryThreshold;
+
+    final CompactHashMapDefaultsRegistry defaults = new CompactHashMapDefaultsRegistry();
+    final CompactHashMapClassEmptyDefaults root;
+    final CompactHashMapClassDictionary dictionary;
+    // Enum class or the number of small-int keys -> the class of CompactOrdinalMap without default values.
+    // Guarded by itself
+    final WeakHashMap<Object, WeakReference<CompactOrdinalMapClass<?, ?>>> ordinalRoots =
+            new WeakHashMap<Object, WeakReference<CompactOrdinalMapClass<?, ?>>>();
+
+    /**
+     * Creates a context, the number of shapes is limited with {@code -Dcompactmap.maxShapes=100000},
+     * and the number of keys in a map that uses shapes is limited with
+     * {@code -Dcompactmap.dictionaryThreshold=256}.
+     */
+    public CompactMapContext() {
+        this(Integer.getInteger("compactmap.maxShapes", 100000));
+    }
+
+    /**
+     * Creates a context.
+     *
+     * @param maxShapes the maximum number of shared classes in the transition tree
+     */
+    public CompactMapContext(int maxShapes) {
+        this(maxShapes, Integer.getInteger("compactmap.dictionaryThreshold", 256));
+    }
+
+    /**
+     * Creates a context.
+     *
+     * @param maxShapes           the maximum number of shared classes in the transition tree
+     * @param dictionaryThreshold the maximum number of keys in a map that uses shapes,
+     *                            the larger maps switch to dictionary mode
+     */
+    public CompactMapContext(int maxShapes, int dictionaryThreshold) {
+        this.maxShapes = maxShapes;
+        this.dictionaryThreshold = dictionaryThreshold;
+        this.root = new CompactHashMapClassEmptyDefaults(this);
+        this.dictionary = new CompactHashMapClassDictionary(this);
+    }
+
+    /**
+     * Returns the context of {@code new CompactHashMap()}.
+     *
+     * @return the default context
+     */
+    public static CompactMapContext getDefault() {
+        return CompactHashMapClass.EMPTY.getContext();
+    }
+
+    /**
+     * Creates an empty map that uses this context.
+     *
+     * @param <K> the type of keys
+     * @param <V> the type of values
+     * @return new map
+     */
+    public <K, V> CompactHashMap<K, V> newMap() {
+        return new CompactHashMap<K, V>(this);
+    }
+
+    /**
+     * Creates an empty map with enum keys that uses this context.
+     *
+     * @param keyType the class of the keys
+     * @param <E>     the type of keys
+     * @param <V>     the type of values
+     * @return new map
+     */
+    public <E extends Enum<E>, V> CompactEnumMap<E, V> newEnumMap(Class<E> keyType) {
+        return new CompactEnumMap<E, V>(this, keyType);
+    }
+
+    /**
+     * Creates an empty map with the keys {@code 0..keyCount-1} that uses this context.
+     *
+     * @param keyCount the number of possible keys
+     * @param <V>      the type of values
+     * @return new map
+     */
+    public <V> CompactSmallIntMap<V> newSmallIntMap(int keyCount) {
+        return new CompactSmallIntMap<V>(this, keyCount);
+    }
+
+    /**
+     * Creates the shape for the given keys, so the maps with these keys can be created
+     * right in their final class.
+     *
+     * @param keys distinct keys in the order of insertion
+     * @param <K>  the type of keys
+     * @param <V>  the type of values
+     * @return the shape
+     * @throws IllegalArgumentException if the keys are not distinct
+     */
+    public <K, V> CompactMapShape<K, V> shape(K... keys) {
+        return new CompactMapShape<K, V>(this, keys);
+    }
+
+    /**
+     * Registers a default value for the key, so the maps of this context store it in their classes.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return false if the value is already registered
+     * @see CompactHashMapDefaultValues#add(Object, Object)
+     */
+    public boolean addDefaultValue(Object key, Object value) {
+        return defaults.add(key, value);
+    }
+
+    /**
+     * Registers all the values of the key as default ones.
+     *
+     * @param key the key
+     * @return false if the key is already registered that way
+     * @see CompactHashMapDefaultValues#add(Object)
+     */
+    public boolean addDefaultKey(Object key) {
+        return defaults.add(key, CompactHashMapDefaultValues.ALL_VALUES_MATCH);
+    }
+
+    /**
+     * Forgets the registered default values of this context. The existing maps keep their values.
+     */
+    public void clearDefaultValues() {
+        defaults.clear();
+    }
+
+    /**
+     * Returns the maximum number of keys in a map that uses shapes, the larger maps switch to dictionary mode.
+     *
+     * @return the maximum number of keys in a map that uses shapes
+     */
+    public int getDictionaryThreshold() {
+        return dictionaryThreshold;
+    }
+
+    /**
+     * Returns the number of shared classes in the transition tree of this context.
+     *
+     * @return the number of shapes
+     */
+    public int getShapeCount() {
+        CompactHashMapClassEmptyDefaults.expungeStaleReferences();
+        return shapeCount.get();
+    }
+}
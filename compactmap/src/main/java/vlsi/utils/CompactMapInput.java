@@ -0,0 +1,170 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the maps that are written with {@link CompactMapOutput}. The class of each shape is resolved once,
+ * when the description of the shape is read, and the subsequent maps of the shape are created right in
+ * that class: reading such a map is a copy of the values into the slots.
+ *
+ * <p>The maps belong to the context of the input. The default values are the ones that are registered
+ * in the context of the input: if the reading context has no default value that the writing one had,
+ * the value is stored in a slot, so the map still has the same entries.</p>
+ *
+ * @author Vladimir Sitnikov
+ * @see CompactMapOutput
+ */
+public final class CompactMapInput {
+    private final ObjectInput in;
+    private final CompactMapContext context;
+    // Empty maps that have the resolved class of each shape, the slots of the written keys are removed
+    private final List<Shape> shapes = new ArrayList<Shape>();
+
+    private static final class Shape {
+        final Object[] keys;
+        final CompactHashMap<Object, Object> template;
+
+        Shape(Object[] keys, CompactHashMap<Object, Object> template) {
+            this.keys = keys;
+            this.template = template;
+        }
+    }
+
+    /**
+     * Creates an input that creates the maps in {@link CompactMapContext#getDefault() the default context}.
+     *
+     * @param in the stream to read the maps from
+     */
+    public CompactMapInput(ObjectInput in) {
+        this(in, CompactMapContext.getDefault());
+    }
+
+    /**
+     * Creates an input that creates the maps in the given context.
+     *
+     * @param in      the stream to read the maps from
+     * @param context the context of the maps
+     */
+    public CompactMapInput(ObjectInput in, CompactMapContext context) {
+        this.in = in;
+        this.context = context;
+    }
+
+    /**
+     * Reads the next map from the stream.
+     *
+     * @param <K> the type of keys
+     * @param <V> the type of values
+     * @return the map
+     * @throws IOException            if the stream fails or it is corrupted
+     * @throws ClassNotFoundException if the class of a key or a value cannot be found
+     */
+    public <K, V> CompactHashMap<K, V> readMap() throws IOException, ClassNotFoundException {
+        ObjectInput in = this.in;
+        int tag = readVarInt(in);
+        if (tag == CompactMapOutput.DICTIONARY) {
+            int size = readVarInt(in);
+            Object[] keys = new Object[size];
+            Object[] values = new Object[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = in.readObject();
+                values[i] = in.readObject();
+            }
+            CompactHashMap<K, V> map = new CompactHashMap<K, V>(context);
+            CompactHashMapClassDictionary.toDictionary(map, size);
+            map.klass.putAll(map, keys, values, size);
+            return map;
+        }
+        Shape shape;
+        if (tag == CompactMapOutput.NEW_SHAPE) {
+            shape = readShape(in);
+            shapes.add(shape);
+        } else {
+            int id = tag - CompactMapOutput.FIRST_SHAPE_ID;
+            if (id >= shapes.size()) {
+                throw new StreamCorruptedException("Unknown shape id " + id + ", the stream has "
+                        + shapes.size() + " shapes so far");
+            }
+            shape = shapes.get(id);
+        }
+        CompactHashMap<Object, Object> map = shape.template.clone();
+        Object[] keys = shape.keys;
+        boolean dictionary = map.klass instanceof CompactHashMapClassDictionary;
+        int removedSlots = 0;
+        for (int i = 0; i < keys.length; i++) {
+            Object value = in.readObject();
+            if (value == CompactHashMapClass.RemovedObjectMarker.INSTANCE) {
+                removedSlots++;
+            } else if (dictionary) {
+                map.klass.put(map, keys[i], value);
+            } else {
+                // The written keys come first, so they have the same slots as in the written map
+                CompactHashMapClass.setValueInSlot(map, i - 2, value);
+            }
+        }
+        if (!dictionary) {
+            // The template counts all the written keys as removed, and the class tracks the count
+            map.klass = ((CompactHashMapClassInTree<Object, Object>) map.klass).withRemovedSlots(
+                    map.klass.getRemovedSlots() - keys.length + removedSlots);
+        }
+        return (CompactHashMap<K, V>) map;
+    }
+
+    private Shape readShape(ObjectInput in) throws IOException, ClassNotFoundException {
+        int keyCount = readVarInt(in);
+        Object[] keys = new Object[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = in.readObject();
+        }
+        int defaultCount = readVarInt(in);
+        int size = keyCount + defaultCount;
+        Object[] allKeys = new Object[size];
+        Object[] allValues = new Object[size];
+        System.arraycopy(keys, 0, allKeys, 0, keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            allValues[i] = CompactHashMapClass.REMOVED_OBJECT;
+        }
+        for (int i = keyCount; i < size; i++) {
+            allKeys[i] = in.readObject();
+            allValues[i] = in.readObject();
+        }
+        // putAll allocates slots for the removed values first, and it registers the default values
+        // of the reading context, so the class is resolved just once per shape
+        CompactHashMap<Object, Object> template = new CompactHashMap<Object, Object>(context);
+        template.klass.putAll(template, allKeys, allValues, size);
+        System.arraycopy(allKeys, 0, keys, 0, keyCount);
+        return new Shape(keys, template);
+    }
+
+    private static int readVarInt(ObjectInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed variable-length int");
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.io.IOException;
+import java.io.ObjectOutput;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Writes a sequence of {@link CompactHashMap} instances, so the maps of the same class share the description
+ * of their keys. The first map of each class writes the keys and the default values of the class,
+ * and the subsequent maps write just the id of the class and the values of the slots.
+ * The maps are read back with {@link CompactMapInput}.
+ * <pre>
+ * ObjectOutputStream oos = new ObjectOutputStream(out);
+ * CompactMapOutput maps = new CompactMapOutput(oos);
+ * oos.writeInt(rows.size());
+ * for (CompactHashMap&lt;String, Object&gt; row : rows) {
+ *     maps.writeMap(row);
+ * }
+ * oos.flush();
+ * </pre>
+ *
+ * <p>The keys and values are written with {@link ObjectOutput#writeObject(Object)}, so the stream may contain
+ * other objects in between the maps. The output keeps the classes it has written, so it is meant to be used
+ * for a single stream.</p>
+ *
+ * @author Vladimir Sitnikov
+ * @see CompactMapInput
+ */
+public final class CompactMapOutput {
+    /**
+     * The map is in dictionary mode: the map writes its size and the entries.
+     */
+    static final int DICTIONARY = 0;
+    /**
+     * The map has a class that was not written yet: the description of the class follows.
+     * Known classes are written as {@code FIRST_SHAPE_ID + id}.
+     */
+    static final int NEW_SHAPE = 1;
+    static final int FIRST_SHAPE_ID = 2;
+
+    private final ObjectOutput out;
+    private final Map<CompactHashMapClass<?, ?>, Integer> shapeIds =
+            new IdentityHashMap<CompactHashMapClass<?, ?>, Integer>();
+
+    /**
+     * Creates an output that writes the maps to the given stream.
+     *
+     * @param out the stream to write the maps to
+     */
+    public CompactMapOutput(ObjectOutput out) {
+        this.out = out;
+    }
+
+    /**
+     * Returns the number of distinct classes that are written to the stream so far.
+     *
+     * @return the number of distinct classes
+     */
+    public int getShapeCount() {
+        return shapeIds.size();
+    }
+
+    /**
+     * Writes the map to the stream.
+     *
+     * @param map the map to write
+     * @throws IOException if the stream fails
+     */
+    public void writeMap(CompactHashMap<?, ?> map) throws IOException {
+        map = map.published();
+        CompactHashMapClass<?, ?> klass = map.klass;
+        ObjectOutput out = this.out;
+        if (klass instanceof CompactHashMapClassDictionary) {
+            writeVarInt(out, DICTIONARY);
+            CompactHashMapDictionary dictionary = (CompactHashMapDictionary) map.v1;
+            writeVarInt(out, dictionary.size());
+            for (int i = 0; i < dictionary.capacity(); i++) {
+                Object key = dictionary.getKeyAt(i);
+                if (key != null) {
+                    out.writeObject(CompactHashMapClass.unmaskNull(key));
+                    out.writeObject(dictionary.getValueAt(i));
+                }
+            }
+            return;
+        }
+        int keyCount = klass.keyCount;
+        Integer shapeId = shapeIds.get(klass);
+        if (shapeId != null) {
+            writeVarInt(out, FIRST_SHAPE_ID + shapeId);
+        } else {
+            shapeIds.put(klass, shapeIds.size());
+            writeVarInt(out, NEW_SHAPE);
+            writeShape(out, klass);
+        }
+        if (keyCount == 0) {
+            return;
+        }
+        Object[] values = keyCount > 3 ? (Object[]) map.v1 : null;
+        for (int slot = -2; slot < keyCount - 2; slot++) {
+            Object value = slot == -2 ? map.v3 : slot == -1 ? map.v2 : values == null ? map.v1 : values[slot];
+            // Removed entries keep their slots, so all the maps of the class have the same number of values
+            out.writeObject(value == CompactHashMapClass.REMOVED_OBJECT
+                    ? CompactHashMapClass.RemovedObjectMarker.INSTANCE : value);
+        }
+    }
+
+    private static void writeShape(ObjectOutput out, CompactHashMapClass<?, ?> klass) throws IOException {
+        int keyCount = klass.keyCount;
+        writeVarInt(out, keyCount);
+        if (keyCount > 0) {
+            CompactHashMapKeyIndex key2slot = klass.getKey2slot();
+            for (int slot = -2; slot < keyCount - 2; slot++) {
+                out.writeObject(CompactHashMapClass.unmaskNull(key2slot.getKey(slot)));
+            }
+        }
+        Map<?, ?> defaultValues = klass.getDefaultValues();
+        writeVarInt(out, defaultValues.size());
+        for (Map.Entry<?, ?> entry : defaultValues.entrySet()) {
+            out.writeObject(CompactHashMapClass.unmaskNull(entry.getKey()));
+            out.writeObject(entry.getValue());
+        }
+    }
+
+    /**
+     * Writes non-negative value with 7 bits per byte, so small values take a single byte.
+     */
+    private static void writeVarInt(ObjectOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+}
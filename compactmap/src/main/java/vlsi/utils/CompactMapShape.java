@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A predeclared set of keys (for instance, the columns of a query). The shape resolves the map class once,
+ * so the maps are created right in their final class, and the array of values is allocated with the exact size.
+ * The maps are regular {@link CompactHashMap} instances: they share the class with the maps that get the same keys
+ * in the same order via {@link CompactHashMap#put(Object, Object)}.
+ * <pre>
+ * private static final CompactMapShape&lt;String, Object&gt; ROW = CompactMapShape.of("id", "name", "price");
+ * ...
+ * CompactHashMap&lt;String, Object&gt; row = ROW.newMap(id, name, price);
+ * </pre>
+ *
+ * <p>The shape keeps its class alive, so the maps of a shape do not depend on the garbage collection
+ * of the transition tree. Shapes are immutable and thread-safe.</p>
+ *
+ * @author Vladimir Sitnikov
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public final class CompactMapShape<K, V> {
+    private final CompactMapContext context;
+    // The keys with nulls masked
+    private final Object[] keys;
+    // null when the maps cannot use a shared class: there are too many keys, or the transition tree is full
+    private final CompactHashMapClassEmptyDefaults<K, V> klass;
+
+    CompactMapShape(CompactMapContext context, Object[] keys) {
+        this.context = context;
+        Object[] maskedKeys = new Object[keys.length];
+        Set<Object> seenKeys = new HashSet<Object>();
+        for (int i = 0; i < keys.length; i++) {
+            Object key = CompactHashMapClass.maskNull(keys[i]);
+            if (!seenKeys.add(key)) {
+                throw new IllegalArgumentException("Duplicate key " + keys[i] + " at position " + i);
+            }
+            maskedKeys[i] = key;
+        }
+        this.keys = maskedKeys;
+
+        CompactHashMapClassEmptyDefaults<K, V> klass = null;
+        if (maskedKeys.length <= context.dictionaryThreshold) {
+            klass = context.root;
+            for (Object key : maskedKeys) {
+                klass = klass.getNextKlass(key);
+                if (!klass.isShared()) {
+                    klass = null;
+                    break;
+                }
+            }
+        }
+        this.klass = klass;
+    }
+
+    /**
+     * Creates the shape for the given keys in {@link CompactMapContext#getDefault() the default context}.
+     *
+     * @param keys distinct keys in the order of insertion
+     * @param <K>  the type of keys
+     * @param <V>  the type of values
+     * @return the shape
+     * @throws IllegalArgumentException if the keys are not distinct
+     * @see CompactMapContext#shape(Object[])
+     */
+    public static <K, V> CompactMapShape<K, V> of(K... keys) {
+        return CompactMapContext.getDefault().shape(keys);
+    }
+
+    /**
+     * Returns the number of keys in the shape.
+     *
+     * @return the number of keys
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * Returns the keys of the shape.
+     *
+     * @return the keys in the order of insertion
+     */
+    public List<K> getKeys() {
+        List<K> result = new ArrayList<K>(keys.length);
+        for (Object key : keys) {
+            result.add((K) CompactHashMapClass.unmaskNull(key));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Creates an empty map that has the slots for all the keys of the shape, so the puts of the keys
+     * neither add keys to the class of the map nor resize the array of values: the map just moves between
+     * the variations of the class that count the removed slots.
+     * Note: the keys are stored in the slots even if their values are registered as default ones.
+     *
+     * @return an empty map
+     */
+    public CompactHashMap<K, V> newMap() {
+        CompactHashMap<K, V> map = new CompactHashMap<K, V>(context);
+        if (klass == null) {
+            return map;
+        }
+        allocate(map);
+        for (int i = 0; i < keys.length; i++) {
+            CompactHashMapClass.setValueInSlot(map, i - 2, CompactHashMapClass.REMOVED_OBJECT);
+        }
+        map.klass = klass.withRemovedSlots(keys.length);
+        return map;
+    }
+
+    /**
+     * Creates a map with the given values of the keys.
+     *
+     * @param values the values in the order of the keys
+     * @return a new map
+     * @throws IllegalArgumentException if the number of values does not match the number of keys
+     */
+    public CompactHashMap<K, V> newMap(Object... values) {
+        if (values.length != keys.length) {
+            throw new IllegalArgumentException("The shape has " + keys.length + " keys, got "
+                    + values.length + " values");
+        }
+        CompactHashMap<K, V> map = new CompactHashMap<K, V>(context);
+        if (klass == null || context.defaults.findKeysWithDefaults(keys, keys.length) != null) {
+            // Some values might be default ones, so let putAll figure out the class
+            map.klass.putAll(map, keys.clone(), values, values.length);
+            return map;
+        }
+        allocate(map);
+        for (int i = 0; i < values.length; i++) {
+            CompactHashMapClass.setValueInSlot(map, i - 2, values[i]);
+        }
+        return map;
+    }
+
+    private void allocate(CompactHashMap<K, V> map) {
+        map.klass = klass;
+        int length = keys.length - 2;
+        if (length > 1) {
+            // Keep the length even to play well with 8 byte alignment
+            map.v1 = new Object[length + (length & 1)];
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CompactMapShape" + getKeys();
+    }
+}
@@ -0,0 +1,791 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Append-only store of maps that keeps the values off-heap, in a memory-mapped file, so millions of records
+ * do not add to the heap (and to the garbage collection work).
+ * The keys are stored once per shape: the store has a shape table (the keys in the order of
+ * {@link CompactHashMapClass} slots plus the default values of the class), and each record holds just
+ * the id of the shape and the values.
+ * <pre>
+ * CompactMapStore store = CompactMapStore.open(new File("rows.cms"));
+ * long id = store.add(row);
+ * ...
+ * Map&lt;String, Object&gt; view = store.get(id); // decodes the values on access
+ * store.close();
+ * </pre>
+ *
+ * <p>The store consists of two files: the data file (a header and the records) and the shape table
+ * ({@code <file>.shapes}). The data file is mapped in segments of {@code 64 MiB}, and the segments are mapped
+ * on the first access, so opening a store reads just the shape table. A record never crosses a segment
+ * boundary.</p>
+ *
+ * <p>{@link #get(long)} returns a read-only flyweight {@link Map} that decodes the values of the record
+ * when they are accessed: the view costs a small object on the heap. A lookup finds the index of the key
+ * in the shape, and the record has a table of value offsets, so the lookup decodes just the requested value.
+ * Strings, boxed primitives and {@code null} are stored in a binary form, other values use
+ * Java serialization. The records are immutable: {@link #add(Map)} stores a snapshot of the map.</p>
+ *
+ * <p>The store is thread-safe: {@link #add(Map)} is serialized, and the reads do not take locks.
+ * {@link #flush()} forces the data to the disk; the store reopens the records that were added before
+ * the last {@link #flush()} or {@link #close()}.</p>
+ *
+ * @author Vladimir Sitnikov
+ */
+public final class CompactMapStore implements Closeable {
+    private static final int MAGIC = 0x434D5354; // CMST
+    private static final int VERSION = 2;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int SEGMENT_SHIFT_OFFSET = 8;
+    private static final int END_OFFSET = 16;
+    private static final int FIRST_RECORD = 24;
+
+    // Record header: shape id, the length of the record in bytes, the number of entries.
+    // The header is followed by the offsets of the values (relative to the start of the record)
+    // in the order of the shape keys, and then by the values
+    private static final int RECORD_HEADER = 12;
+    // The records up to this length use 2-byte offsets, the longer ones use 4-byte offsets
+    private static final int MAX_SHORT_RECORD = 0xFFFF;
+    // Shape id that marks the unused tail of a segment
+    private static final int PADDING = -1;
+
+    // log2 of the segment size for the new stores
+    private static final int DEFAULT_SEGMENT_SHIFT = 26;
+
+    private final File file;
+    private final CompactMapContext context;
+    private final RandomAccessFile data;
+    private final RandomAccessFile shapeTable;
+    private final int shift;
+    private final int segmentSize;
+
+    private volatile MappedByteBuffer[] segments;
+    private volatile List<Shape> shapes;
+    // The position after the last record
+    private volatile long end;
+
+    // The fields below are guarded by this
+    private final Map<CompactHashMapClass<?, ?>, Shape> classShapes =
+            new IdentityHashMap<CompactHashMapClass<?, ?>, Shape>();
+    private final Map<Shape, Shape> knownShapes = new HashMap<Shape, Shape>();
+    private boolean closed;
+
+    private CompactMapStore(File file, CompactMapContext context, int segmentShift) throws IOException {
+        this.file = file;
+        this.context = context;
+        boolean exists = file.length() >= FIRST_RECORD;
+        data = new RandomAccessFile(file, "rw");
+        try {
+            shapeTable = new RandomAccessFile(new File(file.getPath() + ".shapes"), "rw");
+        } catch (IOException e) {
+            data.close();
+            throw e;
+        }
+        int shift = segmentShift;
+        if (exists) {
+            if (data.readInt() != MAGIC) {
+                closeFiles();
+                throw new IOException("File " + file + " is not a CompactMapStore");
+            }
+            int version = data.readInt();
+            if (version != VERSION) {
+                closeFiles();
+                throw new IOException("Unsupported CompactMapStore version " + version + " in " + file);
+            }
+            shift = data.readInt();
+        }
+        this.shift = shift;
+        this.segmentSize = 1 << shift;
+        segments = new MappedByteBuffer[0];
+        MappedByteBuffer header = segment(0);
+        if (!exists) {
+            header.putInt(MAGIC_OFFSET, MAGIC);
+            header.putInt(VERSION_OFFSET, VERSION);
+            header.putInt(SEGMENT_SHIFT_OFFSET, shift);
+            header.putLong(END_OFFSET, FIRST_RECORD);
+        }
+        end = header.getLong(END_OFFSET);
+        shapes = readShapes();
+        for (Shape shape : shapes) {
+            knownShapes.put(shape, shape);
+        }
+    }
+
+    /**
+     * Opens the store, creates the files if they do not exist.
+     * The maps that are read with {@link #read(long)} belong to {@link CompactMapContext#getDefault()}.
+     *
+     * @param file the data file, the shape table is stored next to it
+     * @return the store
+     * @throws IOException if the files cannot be opened
+     */
+    public static CompactMapStore open(File file) throws IOException {
+        return open(file, CompactMapContext.getDefault());
+    }
+
+    /**
+     * Opens the store, creates the files if they do not exist.
+     *
+     * @param file    the data file, the shape table is stored next to it
+     * @param context the context of the maps that are read with {@link #read(long)}
+     * @return the store
+     * @throws IOException if the files cannot be opened
+     */
+    public static CompactMapStore open(File file, CompactMapContext context) throws IOException {
+        return open(file, context, DEFAULT_SEGMENT_SHIFT);
+    }
+
+    /**
+     * Opens the store, creates the files if they do not exist.
+     *
+     * @param file         the data file, the shape table is stored next to it
+     * @param context      the context of the maps that are read with {@link #read(long)}
+     * @param segmentShift log2 of the segment size when the store is created,
+     *                     the existing stores keep their segment size
+     * @return the store
+     * @throws IOException if the files cannot be opened
+     */
+    static CompactMapStore open(File file, CompactMapContext context, int segmentShift) throws IOException {
+        return new CompactMapStore(file, context, segmentShift);
+    }
+
+    /**
+     * Returns the data file of the store.
+     *
+     * @return the data file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of distinct shapes in the store.
+     *
+     * @return the number of shapes
+     */
+    public int getShapeCount() {
+        return shapes.size();
+    }
+
+    /**
+     * Adds a snapshot of the map to the store.
+     *
+     * @param map the map to store
+     * @return the id of the record
+     * @throws IOException              if the store cannot be extended
+     * @throws IllegalArgumentException if the record does not fit in a segment
+     */
+    public synchronized long add(Map<?, ?> map) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("The store is closed");
+        }
+        CompactHashMap<?, ?> compactMap = map instanceof CompactHashMap
+                ? ((CompactHashMap<?, ?>) map).published()
+                : new CompactHashMap<Object, Object>((Map<Object, Object>) map);
+        Shape shape = shapeOf(compactMap);
+        Object[] keys = shape.keys;
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(keys.length * 8);
+        DataOutputStream out = new DataOutputStream(bos);
+        int[] offsets = new int[keys.length];
+        CompactHashMapClass<?, ?> klass = compactMap.klass;
+        if (klass instanceof CompactHashMapClassDictionary) {
+            CompactHashMapDictionary dictionary = (CompactHashMapDictionary) compactMap.v1;
+            for (int i = 0; i < keys.length; i++) {
+                offsets[i] = out.size();
+                CompactMapStoreCodec.write(out, dictionary.get(keys[i]));
+            }
+        } else {
+            for (int i = 0; i < keys.length; i++) {
+                offsets[i] = out.size();
+                CompactMapStoreCodec.write(out, CompactHashMapClass.getValueFromSlot(compactMap, i - 2));
+            }
+        }
+        out.flush();
+        int valuesStart = RECORD_HEADER + keys.length * 2;
+        boolean wideOffsets = valuesStart + bos.size() > MAX_SHORT_RECORD;
+        if (wideOffsets) {
+            valuesStart = RECORD_HEADER + keys.length * 4;
+        }
+        long length = (long) valuesStart + bos.size();
+        if (length > segmentSize - FIRST_RECORD) {
+            throw new IllegalArgumentException("The record takes " + length + " bytes, and it does not fit"
+                    + " in a segment of " + segmentSize + " bytes");
+        }
+        ByteBuffer record = ByteBuffer.allocate((int) length);
+        record.putInt(shape.id);
+        record.putInt((int) length);
+        record.putInt(compactMap.size());
+        for (int offset : offsets) {
+            if (wideOffsets) {
+                record.putInt(valuesStart + offset);
+            } else {
+                record.putShort((short) (valuesStart + offset));
+            }
+        }
+        record.put(bos.toByteArray());
+
+        long position = end;
+        int offset = (int) (position & (segmentSize - 1));
+        if (offset + length > segmentSize) {
+            if (segmentSize - offset >= 4) {
+                segment((int) (position >>> shift)).putInt(offset, PADDING);
+            }
+            position = (position >>> shift) + 1 << shift;
+            offset = 0;
+        }
+        ByteBuffer segment = segment((int) (position >>> shift)).duplicate();
+        segment.position(offset);
+        segment.put(record.array());
+        end = position + length;
+        segment(0).putLong(END_OFFSET, end);
+        return position;
+    }
+
+    /**
+     * Returns a read-only view of the record. The view decodes the values on access.
+     *
+     * @param id  the id of the record
+     * @param <K> the type of keys
+     * @param <V> the type of values
+     * @return the view of the record
+     * @throws IllegalArgumentException if there is no record with the given id
+     */
+    public <K, V> Map<K, V> get(long id) {
+        if (id < FIRST_RECORD || id >= end) {
+            throw new IllegalArgumentException("No record " + id + ", the records are in ["
+                    + FIRST_RECORD + ", " + end + ")");
+        }
+        ByteBuffer segment = segment((int) (id >>> shift));
+        int offset = (int) (id & (segmentSize - 1));
+        int shapeId = segment.getInt(offset);
+        List<Shape> shapes = this.shapes;
+        if (shapeId < 0 || shapeId >= shapes.size()) {
+            throw new IllegalArgumentException("No record " + id + ", shape id " + shapeId + " is not known");
+        }
+        return new RecordView<K, V>(shapes.get(shapeId), segment, offset);
+    }
+
+    /**
+     * Decodes the record into a regular map.
+     *
+     * @param id  the id of the record
+     * @param <K> the type of keys
+     * @param <V> the type of values
+     * @return new map with the entries of the record
+     * @throws IllegalArgumentException if there is no record with the given id
+     */
+    public <K, V> CompactHashMap<K, V> read(long id) {
+        RecordView<K, V> view = (RecordView<K, V>) this.<K, V>get(id);
+        Shape shape = view.shape;
+        Object[] keys = shape.keys;
+        int size = keys.length + shape.defaults.size();
+        Object[] allKeys = new Object[size];
+        Object[] values = new Object[size];
+        System.arraycopy(keys, 0, allKeys, 0, keys.length);
+        int position = view.valuesStart();
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = CompactMapStoreCodec.read(view.segment, position);
+            position = CompactMapStoreCodec.skip(view.segment, position);
+        }
+        int i = keys.length;
+        for (Map.Entry<Object, Object> entry : shape.defaults.entrySet()) {
+            allKeys[i] = entry.getKey();
+            values[i] = entry.getValue();
+            i++;
+        }
+        CompactHashMap<K, V> map = new CompactHashMap<K, V>(context);
+        map.klass.putAll(map, allKeys, values, size);
+        return map;
+    }
+
+    /**
+     * Returns the id of the first record.
+     *
+     * @return the id of the first record or -1 if the store is empty
+     */
+    public long firstId() {
+        return normalize(FIRST_RECORD);
+    }
+
+    /**
+     * Returns the id of the record that follows the given one.
+     *
+     * @param id the id of a record
+     * @return the id of the next record or -1 if the record is the last one
+     */
+    public long nextId(long id) {
+        ByteBuffer segment = segment((int) (id >>> shift));
+        int length = segment.getInt((int) (id & (segmentSize - 1)) + 4);
+        return normalize(id + length);
+    }
+
+    /**
+     * Skips the padding at the end of a segment.
+     */
+    private long normalize(long position) {
+        long end = this.end;
+        if (position >= end) {
+            return -1;
+        }
+        int offset = (int) (position & (segmentSize - 1));
+        if (segmentSize - offset < RECORD_HEADER
+                || segment((int) (position >>> shift)).getInt(offset) == PADDING) {
+            position = (position >>> shift) + 1 << shift;
+        }
+        return position < end ? position : -1;
+    }
+
+    /**
+     * Forces the records and the shapes to the disk.
+     *
+     * @throws IOException if the shape table cannot be synchronized
+     */
+    public synchronized void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        shapeTable.getFD().sync();
+        for (MappedByteBuffer segment : segments) {
+            if (segment != null) {
+                segment.force();
+            }
+        }
+    }
+
+    /**
+     * Flushes the data and closes the files.
+     * Note: the mapped segments are released when the store is garbage-collected, so the views of
+     * the records remain readable.
+     *
+     * @throws IOException if the files cannot be closed
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closed = true;
+            closeFiles();
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        try {
+            data.close();
+        } finally {
+            shapeTable.close();
+        }
+    }
+
+    private MappedByteBuffer segment(int index) {
+        MappedByteBuffer[] segments = this.segments;
+        if (index < segments.length) {
+            MappedByteBuffer segment = segments[index];
+            if (segment != null) {
+                return segment;
+            }
+        }
+        return mapSegment(index);
+    }
+
+    private synchronized MappedByteBuffer mapSegment(int index) {
+        MappedByteBuffer[] segments = this.segments;
+        if (index < segments.length && segments[index] != null) {
+            return segments[index];
+        }
+        MappedByteBuffer segment;
+        try {
+            // The mapping extends the file when the segment is new
+            segment = data.getChannel().map(FileChannel.MapMode.READ_WRITE, (long) index << shift, segmentSize);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to map segment " + index + " of " + file, e);
+        }
+        // The readers use the array without locks, so the new segment goes to a copy of the array,
+        // and the volatile write publishes both
+        MappedByteBuffer[] newSegments = new MappedByteBuffer[Math.max(index + 1, segments.length)];
+        System.arraycopy(segments, 0, newSegments, 0, segments.length);
+        newSegments[index] = segment;
+        this.segments = newSegments;
+        return segment;
+    }
+
+    private Shape shapeOf(CompactHashMap<?, ?> map) throws IOException {
+        CompactHashMapClass<?, ?> klass = map.klass;
+        boolean dictionary = klass instanceof CompactHashMapClassDictionary;
+        if (!dictionary) {
+            Shape shape = classShapes.get(klass);
+            if (shape != null) {
+                return shape;
+            }
+        }
+        Object[] keys;
+        Map<Object, Object> defaults;
+        if (dictionary) {
+            CompactHashMapDictionary d = (CompactHashMapDictionary) map.v1;
+            keys = new Object[d.size()];
+            int i = 0;
+            for (int cell = 0; cell < d.capacity(); cell++) {
+                Object key = d.getKeyAt(cell);
+                if (key != null) {
+                    keys[i++] = key;
+                }
+            }
+            defaults = Collections.emptyMap();
+        } else {
+            keys = new Object[klass.keyCount];
+            CompactHashMapKeyIndex key2slot = klass.getKey2slot();
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = key2slot.getKey(i - 2);
+            }
+            defaults = (Map<Object, Object>) klass.getDefaultValues();
+        }
+        Shape shape = new Shape(shapes.size(), keys, defaults);
+        Shape knownShape = knownShapes.get(shape);
+        if (knownShape != null) {
+            shape = knownShape;
+        } else {
+            writeShape(shape);
+            knownShapes.put(shape, shape);
+            List<Shape> newShapes = new ArrayList<Shape>(shapes);
+            newShapes.add(shape);
+            shapes = newShapes;
+        }
+        if (!dictionary) {
+            classShapes.put(klass, shape);
+        }
+        return shape;
+    }
+
+    private void writeShape(Shape shape) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(0); // length, patched below
+        out.writeInt(shape.keys.length);
+        for (Object key : shape.keys) {
+            CompactMapStoreCodec.write(out, key);
+        }
+        out.writeInt(shape.defaults.size());
+        for (Map.Entry<Object, Object> entry : shape.defaults.entrySet()) {
+            CompactMapStoreCodec.write(out, entry.getKey());
+            CompactMapStoreCodec.write(out, entry.getValue());
+        }
+        out.flush();
+        byte[] bytes = bos.toByteArray();
+        ByteBuffer.wrap(bytes).putInt(0, bytes.length - 4);
+        // The shape is written before the records that use it
+        shapeTable.seek(shapeTable.length());
+        shapeTable.write(bytes);
+    }
+
+    private List<Shape> readShapes() throws IOException {
+        List<Shape> shapes = new ArrayList<Shape>();
+        long length = shapeTable.length();
+        long position = 0;
+        while (position + 4 <= length) {
+            shapeTable.seek(position);
+            int size = shapeTable.readInt();
+            if (position + 4 + size > length) {
+                // The shape was being written when the process stopped, so no record uses it
+                break;
+            }
+            byte[] bytes = new byte[size];
+            shapeTable.readFully(bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int keyCount = buffer.getInt(0);
+            int offset = 4;
+            Object[] keys = new Object[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                keys[i] = CompactHashMapClass.maskNull(CompactMapStoreCodec.read(buffer, offset));
+                offset = CompactMapStoreCodec.skip(buffer, offset);
+            }
+            int defaultCount = buffer.getInt(offset);
+            offset += 4;
+            Map<Object, Object> defaults = defaultCount == 0
+                    ? Collections.emptyMap()
+                    : new LinkedHashMap<Object, Object>();
+            for (int i = 0; i < defaultCount; i++) {
+                Object key = CompactHashMapClass.maskNull(CompactMapStoreCodec.read(buffer, offset));
+                offset = CompactMapStoreCodec.skip(buffer, offset);
+                defaults.put(key, CompactMapStoreCodec.read(buffer, offset));
+                offset = CompactMapStoreCodec.skip(buffer, offset);
+            }
+            shapes.add(new Shape(shapes.size(), keys, defaults));
+            position += 4 + size;
+        }
+        return shapes;
+    }
+
+    /**
+     * The keys of the records (masked, in the order of slots) and the default values.
+     */
+    private static final class Shape {
+        final int id;
+        final Object[] keys;
+        final Map<Object, Object> defaults;
+        private volatile Map<Object, Integer> index;
+
+        Shape(int id, Object[] keys, Map<Object, Object> defaults) {
+            this.id = id;
+            this.keys = keys;
+            this.defaults = defaults;
+        }
+
+        /**
+         * Returns the position of the value of the key in the record.
+         *
+         * @param key masked key
+         * @return the position of the value or -1 if the key is not stored in the record
+         */
+        int indexOf(Object key) {
+            Map<Object, Integer> index = this.index;
+            if (index == null) {
+                index = new HashMap<Object, Integer>((int) (keys.length / 0.75f) + 1);
+                for (int i = 0; i < keys.length; i++) {
+                    index.put(keys[i], i);
+                }
+                this.index = index;
+            }
+            Integer result = index.get(key);
+            return result == null ? -1 : result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Shape)) {
+                return false;
+            }
+            Shape shape = (Shape) o;
+            return Arrays.equals(keys, shape.keys) && defaults.equals(shape.defaults);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(keys) * 31 + defaults.hashCode();
+        }
+    }
+
+    /**
+     * Read-only view of a record.
+     */
+    private static final class RecordView<K, V> extends AbstractMap<K, V> {
+        final Shape shape;
+        final ByteBuffer segment;
+        final int offset;
+
+        RecordView(Shape shape, ByteBuffer segment, int offset) {
+            this.shape = shape;
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        private boolean hasWideOffsets() {
+            return segment.getInt(offset + 4) > MAX_SHORT_RECORD;
+        }
+
+        /**
+         * Returns the position of the first value.
+         */
+        int valuesStart() {
+            return offset + RECORD_HEADER + shape.keys.length * (hasWideOffsets() ? 4 : 2);
+        }
+
+        /**
+         * Returns the position of the value with the given index.
+         */
+        private int position(int index) {
+            ByteBuffer segment = this.segment;
+            int table = offset + RECORD_HEADER;
+            if (hasWideOffsets()) {
+                return offset + segment.getInt(table + index * 4);
+            }
+            return offset + (segment.getShort(table + index * 2) & 0xFFFF);
+        }
+
+        @Override
+        public int size() {
+            return segment.getInt(offset + 8);
+        }
+
+        @Override
+        public V get(Object key) {
+            Object maskedKey = CompactHashMapClass.maskNull(key);
+            int index = shape.indexOf(maskedKey);
+            if (index < 0) {
+                return (V) shape.defaults.get(maskedKey);
+            }
+            Object value = CompactMapStoreCodec.read(segment, position(index));
+            return value == CompactHashMapClass.REMOVED_OBJECT ? null : (V) value;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            Object maskedKey = CompactHashMapClass.maskNull(key);
+            int index = shape.indexOf(maskedKey);
+            if (index < 0) {
+                return shape.defaults.containsKey(maskedKey);
+            }
+            return segment.get(position(index)) != CompactMapStoreCodec.REMOVED;
+        }
+
+        @Override
+        public Set<Entry<K, V>> entrySet() {
+            return new AbstractSet<Entry<K, V>>() {
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    return new RecordIterator<K, V>(RecordView.this);
+                }
+
+                @Override
+                public int size() {
+                    return RecordView.this.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * Iterates over the default values and then over the values of the record.
+     */
+    private static final class RecordIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        private final RecordView<K, V> view;
+        private final Iterator<Map.Entry<Object, Object>> defaults;
+        private int index = -1;
+        private int position;
+        private Map.Entry<K, V> next;
+
+        RecordIterator(RecordView<K, V> view) {
+            this.view = view;
+            this.defaults = view.shape.defaults.entrySet().iterator();
+            this.position = view.valuesStart();
+            advance();
+        }
+
+        private void advance() {
+            if (defaults.hasNext()) {
+                Map.Entry<Object, Object> entry = defaults.next();
+                next = new RecordEntry<K, V>(
+                        (K) CompactHashMapClass.unmaskNull(entry.getKey()), (V) entry.getValue());
+                return;
+            }
+            Object[] keys = view.shape.keys;
+            ByteBuffer segment = view.segment;
+            while (++index < keys.length) {
+                int position = this.position;
+                this.position = CompactMapStoreCodec.skip(segment, position);
+                if (segment.get(position) == CompactMapStoreCodec.REMOVED) {
+                    continue;
+                }
+                next = new RecordEntry<K, V>(
+                        (K) CompactHashMapClass.unmaskNull(keys[index]),
+                        (V) CompactMapStoreCodec.read(segment, position));
+                return;
+            }
+            next = null;
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Map.Entry<K, V> next() {
+            Map.Entry<K, V> next = this.next;
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            advance();
+            return next;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("The records are read-only");
+        }
+    }
+
+    private static final class RecordEntry<K, V> implements Map.Entry<K, V> {
+        private final K key;
+        private final V value;
+
+        RecordEntry(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public V setValue(V value) {
+            throw new UnsupportedOperationException("The records are read-only");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return (key == null ? e.getKey() == null : key.equals(e.getKey()))
+                    && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+}
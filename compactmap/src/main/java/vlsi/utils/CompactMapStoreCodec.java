@@ -0,0 +1,171 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary encoding of keys and values for {@link CompactMapStore}. Each value starts with a type byte.
+ * Strings, boxed primitives and {@code null} have compact encodings, the other values are written
+ * with Java serialization.
+ *
+ * <p>The values are decoded with absolute {@link ByteBuffer} methods, so several threads can decode
+ * from the same buffer.</p>
+ *
+ * @author Vladimir Sitnikov
+ */
+final class CompactMapStoreCodec {
+    static final byte NULL = 0;
+    static final byte STRING = 1;
+    static final byte INTEGER = 2;
+    static final byte LONG = 3;
+    static final byte DOUBLE = 4;
+    static final byte TRUE = 5;
+    static final byte FALSE = 6;
+    /**
+     * The slot of the key is removed, see {@link CompactHashMapClass#REMOVED_OBJECT}.
+     */
+    static final byte REMOVED = 7;
+    static final byte SERIALIZED = 8;
+
+    private CompactMapStoreCodec() {
+    }
+
+    /**
+     * Writes the value, {@link CompactHashMapClass#REMOVED_OBJECT} and masked null are supported.
+     *
+     * @param out   the output
+     * @param value the value to write
+     * @throws IOException if the value cannot be serialized
+     */
+    static void write(DataOutputStream out, Object value) throws IOException {
+        value = CompactHashMapClass.unmaskNull(value);
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value == CompactHashMapClass.REMOVED_OBJECT) {
+            out.writeByte(REMOVED);
+        } else if (value instanceof String) {
+            String s = (String) value;
+            out.writeByte(STRING);
+            out.writeInt(s.length());
+            out.writeChars(s);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeObject(value);
+            oos.close();
+            out.writeByte(SERIALIZED);
+            out.writeInt(bos.size());
+            bos.writeTo(out);
+        }
+    }
+
+    /**
+     * Decodes the value at the given position.
+     *
+     * @param buffer   the buffer
+     * @param position the position of the type byte
+     * @return the value, {@link CompactHashMapClass#REMOVED_OBJECT} for removed slots
+     */
+    static Object read(ByteBuffer buffer, int position) {
+        byte type = buffer.get(position);
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                int length = buffer.getInt(position + 1);
+                char[] chars = new char[length];
+                int offset = position + 5;
+                for (int i = 0; i < length; i++) {
+                    chars[i] = buffer.getChar(offset + 2 * i);
+                }
+                return new String(chars);
+            case INTEGER:
+                return buffer.getInt(position + 1);
+            case LONG:
+                return buffer.getLong(position + 1);
+            case DOUBLE:
+                return Double.longBitsToDouble(buffer.getLong(position + 1));
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case REMOVED:
+                return CompactHashMapClass.REMOVED_OBJECT;
+            case SERIALIZED:
+                byte[] bytes = new byte[buffer.getInt(position + 1)];
+                ByteBuffer src = buffer.duplicate();
+                src.position(position + 5);
+                src.get(bytes);
+                try {
+                    return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to deserialize the value at " + position, e);
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalStateException("Unable to deserialize the value at " + position, e);
+                }
+            default:
+                throw new IllegalStateException("Unknown value type " + type + " at " + position);
+        }
+    }
+
+    /**
+     * Returns the position that follows the value at the given position.
+     *
+     * @param buffer   the buffer
+     * @param position the position of the type byte
+     * @return the position of the next value
+     */
+    static int skip(ByteBuffer buffer, int position) {
+        byte type = buffer.get(position);
+        switch (type) {
+            case NULL:
+            case TRUE:
+            case FALSE:
+            case REMOVED:
+                return position + 1;
+            case STRING:
+                return position + 5 + 2 * buffer.getInt(position + 1);
+            case INTEGER:
+                return position + 5;
+            case LONG:
+            case DOUBLE:
+                return position + 9;
+            case SERIALIZED:
+                return position + 5 + buffer.getInt(position + 1);
+            default:
+                throw new IllegalStateException("Unknown value type " + type + " at " + position);
+        }
+    }
+}
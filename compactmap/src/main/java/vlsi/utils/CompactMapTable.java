@@ -0,0 +1,616 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Columnar collection of maps. The rows are grouped by their {@link CompactHashMapClass}, and each group
+ * stores a column array per slot, so a row costs just its values (plus 8 bytes of row index), while
+ * a {@code List<CompactHashMap>} pays for the map object and for the array of values of each row.
+ * The values of a column are adjacent in memory, so {@link #scan(Object) column scans} are fast.
+ * <pre>
+ * CompactMapTable&lt;String, Object&gt; table = new CompactMapTable&lt;String, Object&gt;();
+ * table.addAll(rows);
+ * double total = 0;
+ * for (CompactMapTable.ColumnCursor&lt;Object&gt; c = table.scan("price"); c.next(); ) {
+ *     total += (Double) c.value();
+ * }
+ * Map&lt;String, Object&gt; row = table.get(42); // lightweight read-only view
+ * </pre>
+ *
+ * <p>The table stores snapshots of the maps: the subsequent modifications of the added maps do not affect
+ * the table. The maps in dictionary mode (see {@link CompactHashMapClassDictionary}) are stored as copies.
+ * The table is not thread-safe.</p>
+ *
+ * @author Vladimir Sitnikov
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public final class CompactMapTable<K, V> implements Iterable<Map<K, V>> {
+    private final CompactMapContext context;
+    private final List<Group> groups = new ArrayList<Group>();
+    private final Map<CompactHashMapClass<?, ?>, Group> classGroups =
+            new IdentityHashMap<CompactHashMapClass<?, ?>, Group>();
+    // The group of the last added row, the rows of the same class tend to come together
+    private Group lastGroup;
+
+    // The group (index in groups) and the position in the group of each row
+    private int[] rowGroup = new int[0];
+    private int[] rowIndex = new int[0];
+    private int size;
+
+    /**
+     * Creates an empty table, the maps that are not {@link CompactHashMap} are converted with
+     * {@link CompactMapContext#getDefault() the default context}.
+     */
+    public CompactMapTable() {
+        this(CompactMapContext.getDefault());
+    }
+
+    /**
+     * Creates an empty table.
+     *
+     * @param context the context for the conversion of the maps that are not {@link CompactHashMap}
+     */
+    public CompactMapTable(CompactMapContext context) {
+        this.context = context;
+    }
+
+    /**
+     * The rows of the same class. {@code columns[slot + 2][index]} is the value of the slot in the row.
+     * The maps in dictionary mode are kept in a group without class: its single column holds the copies
+     * of the maps.
+     */
+    private static final class Group {
+        final int id;
+        final CompactHashMapClass<?, ?> klass;
+        final Object[][] columns;
+        int size;
+        // The number of rows addAll is going to add
+        int pending;
+
+        Group(int id, CompactHashMapClass<?, ?> klass, int columnCount) {
+            this.id = id;
+            this.klass = klass;
+            this.columns = new Object[columnCount][];
+            for (int i = 0; i < columnCount; i++) {
+                columns[i] = new Object[0];
+            }
+        }
+
+        void ensureCapacity(int capacity) {
+            Object[][] columns = this.columns;
+            if (columns.length == 0 || columns[0].length >= capacity) {
+                return;
+            }
+            // Grow geometrically, so a series of small batches does not copy the columns every time
+            int length = columns[0].length;
+            capacity = Math.max(capacity, length < 4 ? 4 : length * 3 / 2);
+            for (int i = 0; i < columns.length; i++) {
+                Object[] column = new Object[capacity];
+                System.arraycopy(columns[i], 0, column, 0, size);
+                columns[i] = column;
+            }
+        }
+
+        int add(CompactHashMap<?, ?> map) {
+            int index = size;
+            Object[][] columns = this.columns;
+            ensureCapacity(index + 1);
+            if (klass == null) {
+                columns[0][index] = map.clone();
+            } else if (columns.length > 0) {
+                columns[0][index] = map.v3;
+                if (columns.length > 1) {
+                    columns[1][index] = map.v2;
+                    if (columns.length == 3) {
+                        columns[2][index] = map.v1;
+                    } else if (columns.length > 3) {
+                        Object[] values = (Object[]) map.v1;
+                        for (int i = 2; i < columns.length; i++) {
+                            columns[i][index] = values[i - 2];
+                        }
+                    }
+                }
+            }
+            size = index + 1;
+            return index;
+        }
+    }
+
+    private Group groupOf(CompactHashMapClass<?, ?> klass) {
+        Group group = lastGroup;
+        if (group != null && group.klass == klass) {
+            return group;
+        }
+        boolean dictionary = klass instanceof CompactHashMapClassDictionary;
+        CompactHashMapClass<?, ?> groupKlass = dictionary ? null : klass;
+        group = classGroups.get(groupKlass);
+        if (group == null) {
+            group = new Group(groups.size(), groupKlass, dictionary ? 1 : klass.keyCount);
+            groups.add(group);
+            classGroups.put(groupKlass, group);
+        }
+        lastGroup = group;
+        return group;
+    }
+
+    private CompactHashMap<?, ?> toCompactMap(Map<? extends K, ? extends V> map) {
+        if (map instanceof CompactHashMap) {
+            return ((CompactHashMap<?, ?>) map).published();
+        }
+        CompactHashMap<K, V> result = new CompactHashMap<K, V>(context);
+        result.putAll(map);
+        return result;
+    }
+
+    private void ensureRowCapacity(int capacity) {
+        int length = rowGroup.length;
+        if (length >= capacity) {
+            return;
+        }
+        // Grow geometrically, so a series of small batches does not copy the rows every time
+        capacity = Math.max(capacity, length < 8 ? 8 : length * 3 / 2);
+        int[] newRowGroup = new int[capacity];
+        int[] newRowIndex = new int[capacity];
+        System.arraycopy(rowGroup, 0, newRowGroup, 0, size);
+        System.arraycopy(rowIndex, 0, newRowIndex, 0, size);
+        rowGroup = newRowGroup;
+        rowIndex = newRowIndex;
+    }
+
+    /**
+     * Appends a snapshot of the map to the table.
+     *
+     * @param map the row to add
+     * @return the index of the row
+     */
+    public int add(Map<? extends K, ? extends V> map) {
+        CompactHashMap<?, ?> compactMap = toCompactMap(map);
+        int row = size;
+        ensureRowCapacity(row + 1);
+        Group group = groupOf(compactMap.klass);
+        rowIndex[row] = group.add(compactMap);
+        rowGroup[row] = group.id;
+        size = row + 1;
+        return row;
+    }
+
+    /**
+     * Appends snapshots of the maps to the table. The columns are resized at most once per class.
+     *
+     * @param maps the rows to add
+     */
+    public void addAll(Collection<? extends Map<? extends K, ? extends V>> maps) {
+        int row = size;
+        ensureRowCapacity(row + maps.size());
+        // The first pass resolves the groups and counts their new rows, so the columns are resized once
+        CompactHashMap<?, ?>[] compactMaps = new CompactHashMap<?, ?>[maps.size()];
+        int count = 0;
+        for (Map<? extends K, ? extends V> map : maps) {
+            CompactHashMap<?, ?> compactMap = toCompactMap(map);
+            compactMaps[count] = compactMap;
+            Group group = groupOf(compactMap.klass);
+            group.pending++;
+            rowGroup[row + count] = group.id;
+            count++;
+        }
+        List<Group> groups = this.groups;
+        for (int i = 0; i < groups.size(); i++) {
+            Group group = groups.get(i);
+            if (group.pending != 0) {
+                group.ensureCapacity(group.size + group.pending);
+                group.pending = 0;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            rowIndex[row + i] = groups.get(rowGroup[row + i]).add(compactMaps[i]);
+        }
+        size = row + count;
+    }
+
+    /**
+     * Returns the number of rows.
+     *
+     * @return the number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of distinct classes of the rows.
+     *
+     * @return the number of groups of rows
+     */
+    public int getGroupCount() {
+        return groups.size();
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + ", the table has " + size + " rows");
+        }
+    }
+
+    /**
+     * Returns a read-only view of the row.
+     *
+     * @param row the index of the row
+     * @return the view of the row
+     * @throws IndexOutOfBoundsException if there is no such row
+     */
+    public Map<K, V> get(int row) {
+        checkRow(row);
+        Group group = groups.get(rowGroup[row]);
+        int index = rowIndex[row];
+        if (group.klass == null) {
+            return Collections.unmodifiableMap((Map<K, V>) group.columns[0][index]);
+        }
+        return new RowView<K, V>(group, index);
+    }
+
+    /**
+     * Returns a copy of the row as a regular map of the same class as the added one.
+     *
+     * @param row the index of the row
+     * @return new map
+     * @throws IndexOutOfBoundsException if there is no such row
+     */
+    public CompactHashMap<K, V> toMap(int row) {
+        checkRow(row);
+        Group group = groups.get(rowGroup[row]);
+        int index = rowIndex[row];
+        Object[][] columns = group.columns;
+        if (group.klass == null) {
+            return ((CompactHashMap<K, V>) columns[0][index]).clone();
+        }
+        CompactHashMap<K, V> map = new CompactHashMap<K, V>(context);
+        map.klass = (CompactHashMapClass<K, V>) group.klass;
+        int keyCount = columns.length;
+        if (keyCount > 3) {
+            // Keep the length even to play well with 8 byte alignment
+            int length = keyCount - 2;
+            map.v1 = new Object[length + (length & 1)];
+        }
+        // The rows of a group have the same class, so they have the same number of removed slots as well
+        for (int i = 0; i < keyCount; i++) {
+            CompactHashMapClass.setValueInSlot(map, i - 2, columns[i][index]);
+        }
+        return map;
+    }
+
+    /**
+     * Returns a cursor over the rows that have the given key. The cursor walks the column of the key
+     * in the order of rows, and it does not allocate.
+     *
+     * @param key the key of the column
+     * @return the cursor that is positioned before the first row
+     */
+    public ColumnCursor<V> scan(K key) {
+        return new ColumnCursor<V>(this, key);
+    }
+
+    /**
+     * Returns the values of the column: {@code result[row]} is the value of the key in the row or
+     * {@code null} when the row has no such key.
+     *
+     * @param key the key of the column
+     * @return the values of the column
+     */
+    public Object[] column(K key) {
+        Object[] result = new Object[size];
+        for (ColumnCursor<V> cursor = scan(key); cursor.next(); ) {
+            result[cursor.row()] = cursor.value();
+        }
+        return result;
+    }
+
+    public Iterator<Map<K, V>> iterator() {
+        return new Iterator<Map<K, V>>() {
+            private int row;
+
+            public boolean hasNext() {
+                return row < size;
+            }
+
+            public Map<K, V> next() {
+                if (row >= size) {
+                    throw new NoSuchElementException();
+                }
+                return get(row++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("The rows cannot be removed");
+            }
+        };
+    }
+
+    /**
+     * Walks the values of a column in the order of rows, the rows that do not have the key are skipped.
+     *
+     * @param <V> the type of values
+     */
+    public static final class ColumnCursor<V> {
+        // Values for the groups that have the key in the class rather than in the rows
+        private static final Object NO_DEFAULT = new Object();
+
+        private final int[] rowGroup;
+        private final int[] rowIndex;
+        private final int size;
+        private final Object maskedKey;
+        // The column of the key in each group, null when the key is in the default values or in dictionaries
+        private final Object[][] columns;
+        // The default value of the key in each group or NO_DEFAULT
+        private final Object[] defaults;
+        // The maps of the dictionary group, or null
+        private final Object[] dictionaryMaps;
+        private final int dictionaryGroup;
+        private int row = -1;
+        private Object value;
+
+        ColumnCursor(CompactMapTable<?, V> table, Object key) {
+            this.rowGroup = table.rowGroup;
+            this.rowIndex = table.rowIndex;
+            this.size = table.size;
+            this.maskedKey = CompactHashMapClass.maskNull(key);
+            List<Group> groups = table.groups;
+            columns = new Object[groups.size()][];
+            defaults = new Object[groups.size()];
+            Object[] dictionaryMaps = null;
+            int dictionaryGroup = -1;
+            for (int i = 0; i < groups.size(); i++) {
+                Group group = groups.get(i);
+                defaults[i] = NO_DEFAULT;
+                if (group.klass == null) {
+                    dictionaryMaps = group.columns[0];
+                    dictionaryGroup = i;
+                    continue;
+                }
+                int slot = group.klass.getSlot(maskedKey);
+                if (slot != CompactHashMapKeyIndex.NO_SLOT) {
+                    columns[i] = group.columns[slot + 2];
+                    continue;
+                }
+                Map<?, ?> defaultValues = group.klass.getDefaultValues();
+                if (defaultValues.containsKey(maskedKey)) {
+                    defaults[i] = defaultValues.get(maskedKey);
+                }
+            }
+            this.dictionaryMaps = dictionaryMaps;
+            this.dictionaryGroup = dictionaryGroup;
+        }
+
+        /**
+         * Moves to the next row that has the key.
+         *
+         * @return true if the cursor points to a row, false if there are no more rows
+         */
+        public boolean next() {
+            int[] rowGroup = this.rowGroup;
+            while (++row < size) {
+                int group = rowGroup[row];
+                Object[] column = columns[group];
+                if (column != null) {
+                    Object value = column[rowIndex[row]];
+                    if (value != CompactHashMapClass.REMOVED_OBJECT) {
+                        this.value = value;
+                        return true;
+                    }
+                    continue;
+                }
+                Object value = defaults[group];
+                if (value != NO_DEFAULT) {
+                    this.value = value;
+                    return true;
+                }
+                if (group == dictionaryGroup) {
+                    Map<?, ?> map = (Map<?, ?>) dictionaryMaps[rowIndex[row]];
+                    Object key = CompactHashMapClass.unmaskNull(maskedKey);
+                    if (map.containsKey(key)) {
+                        this.value = map.get(key);
+                        return true;
+                    }
+                }
+            }
+            row = size;
+            return false;
+        }
+
+        /**
+         * Returns the index of the current row.
+         *
+         * @return the index of the current row
+         */
+        public int row() {
+            return row;
+        }
+
+        /**
+         * Returns the value of the key in the current row.
+         *
+         * @return the value of the key in the current row
+         */
+        public V value() {
+            return (V) value;
+        }
+    }
+
+    /**
+     * Read-only view of a row: the values are read from the columns.
+     */
+    private static final class RowView<K, V> extends AbstractMap<K, V> {
+        final Group group;
+        final int index;
+
+        RowView(Group group, int index) {
+            this.group = group;
+            this.index = index;
+        }
+
+        @Override
+        public int size() {
+            // The rows of a group have the same class, and the class counts the removed slots
+            CompactHashMapClass<?, ?> klass = group.klass;
+            return klass.keyCount + klass.getDefaultValues().size() - klass.getRemovedSlots();
+        }
+
+        @Override
+        public V get(Object key) {
+            Object maskedKey = CompactHashMapClass.maskNull(key);
+            int slot = group.klass.getSlot(maskedKey);
+            if (slot == CompactHashMapKeyIndex.NO_SLOT) {
+                return (V) group.klass.getDefaultValues().get(maskedKey);
+            }
+            Object value = group.columns[slot + 2][index];
+            return value == CompactHashMapClass.REMOVED_OBJECT ? null : (V) value;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            Object maskedKey = CompactHashMapClass.maskNull(key);
+            int slot = group.klass.getSlot(maskedKey);
+            if (slot == CompactHashMapKeyIndex.NO_SLOT) {
+                return group.klass.getDefaultValues().containsKey(maskedKey);
+            }
+            return group.columns[slot + 2][index] != CompactHashMapClass.REMOVED_OBJECT;
+        }
+
+        @Override
+        public Set<Entry<K, V>> entrySet() {
+            return new AbstractSet<Entry<K, V>>() {
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    return new RowIterator<K, V>(RowView.this);
+                }
+
+                @Override
+                public int size() {
+                    return RowView.this.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * Iterates over the default values of the class and then over the slots, like {@link MapCursor}.
+     */
+    private static final class RowIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        private final RowView<K, V> view;
+        private final Iterator<? extends Map.Entry<?, ?>> defaults;
+        private final CompactHashMapKeyIndex key2slot;
+        private int column = -1;
+        private Map.Entry<K, V> next;
+
+        RowIterator(RowView<K, V> view) {
+            this.view = view;
+            CompactHashMapClass<?, ?> klass = view.group.klass;
+            this.defaults = klass.getDefaultValues().entrySet().iterator();
+            this.key2slot = klass.keyCount == 0 ? null : klass.getKey2slot();
+            advance();
+        }
+
+        private void advance() {
+            if (defaults.hasNext()) {
+                Map.Entry<?, ?> entry = defaults.next();
+                next = new RowEntry<K, V>(CompactHashMapClass.unmaskNull(entry.getKey()), entry.getValue());
+                return;
+            }
+            Object[][] columns = view.group.columns;
+            while (++column < columns.length) {
+                Object value = columns[column][view.index];
+                if (value != CompactHashMapClass.REMOVED_OBJECT) {
+                    Object key = CompactHashMapClass.unmaskNull(key2slot.getKey(column - 2));
+                    next = new RowEntry<K, V>(key, value);
+                    return;
+                }
+            }
+            next = null;
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Map.Entry<K, V> next() {
+            Map.Entry<K, V> next = this.next;
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            advance();
+            return next;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("The rows are read-only");
+        }
+    }
+
+    private static final class RowEntry<K, V> implements Map.Entry<K, V> {
+        private final K key;
+        private final V value;
+
+        RowEntry(Object key, Object value) {
+            this.key = (K) key;
+            this.value = (V) value;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public V setValue(V value) {
+            throw new UnsupportedOperationException("The rows are read-only");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return (key == null ? e.getKey() == null : key.equals(e.getKey()))
+                    && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+}
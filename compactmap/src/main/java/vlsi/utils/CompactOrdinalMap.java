@@ -0,0 +1,608 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map with keys that have ordinals: {@link CompactEnumMap} and {@link CompactSmallIntMap}.
+ * The set of keys (the shape of the map) is a bitmask of the ordinals of the present keys,
+ * and the values are stored densely in the order of the ordinals, so the slot of a key is the number of
+ * present keys with smaller ordinals ({@link Long#bitCount(long)} of the lower bits). The lookups neither
+ * hash the keys nor compare them with {@code equals}.
+ *
+ * <p>The universes with more than 64 keys do not fit in the bitmask, so for them the map stores a value
+ * per key like {@link java.util.EnumMap}.</p>
+ *
+ * <p>The values that are registered as default ones in the context (see
+ * {@link CompactMapContext#addDefaultValue(Object, Object)}) are stored in the shared
+ * {@link CompactOrdinalMapClass}, so the maps with common values do not store them.
+ * A key is either in the bitmask of the map or in the default values of its class.</p>
+ *
+ * @author Vladimir Sitnikov
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+abstract class CompactOrdinalMap<K, V> implements Map<K, V>, Cloneable {
+    private static final Object[] EMPTY = new Object[0];
+
+    transient CompactOrdinalMapClass<K, V> klass;
+    // The bitmask of the ordinals of the keys stored in the map.
+    // For the universes with more than 64 keys it is the number of the keys stored in the map
+    private transient long bits;
+    // The values of the keys stored in the map in the order of ordinals.
+    // For the universes with more than 64 keys it is indexed by ordinal, and null means "absent"
+    private transient Object[] values;
+    // It fits in the alignment gap after the object header
+    private transient int modCount;
+
+    CompactOrdinalMap() {
+    }
+
+    /**
+     * Initializes an empty map.
+     *
+     * @param klass the class without default values
+     */
+    final void init(CompactOrdinalMapClass<K, V> klass) {
+        this.klass = klass;
+        bits = 0;
+        values = emptyValues();
+    }
+
+    /**
+     * Initializes a copy of the map.
+     *
+     * @param m the map to copy
+     */
+    final void init(CompactOrdinalMap<K, ? extends V> m) {
+        klass = (CompactOrdinalMapClass<K, V>) m.klass;
+        bits = m.bits;
+        values = m.values.clone();
+    }
+
+    /**
+     * Returns the ordinal of the key.
+     *
+     * @param key the key
+     * @return the ordinal or -1 if the key is not in the universe of the map
+     */
+    abstract int ordinal(Object key);
+
+    /**
+     * Returns the exception for the key that is not in the universe of the map.
+     *
+     * @param key the key
+     * @return the exception to throw
+     */
+    abstract RuntimeException invalidKey(Object key);
+
+    private boolean isDense() {
+        return klass.keys.length > 64;
+    }
+
+    private Object[] emptyValues() {
+        return isDense() ? new Object[klass.keys.length] : EMPTY;
+    }
+
+    private boolean isStored(int ordinal) {
+        return isDense() ? values[ordinal] != null : (bits & (1L << ordinal)) != 0;
+    }
+
+    private int slot(int ordinal) {
+        return Long.bitCount(bits & ((1L << ordinal) - 1));
+    }
+
+    final boolean containsOrdinal(int ordinal) {
+        if (isStored(ordinal)) {
+            return true;
+        }
+        Object[] defaults = klass.defaults;
+        return defaults != null && defaults[ordinal] != null;
+    }
+
+    final V getOrdinal(int ordinal) {
+        if (isDense()) {
+            Object value = values[ordinal];
+            if (value != null) {
+                return (V) CompactHashMapClass.unmaskNull(value);
+            }
+        } else {
+            long bit = 1L << ordinal;
+            if ((bits & bit) != 0) {
+                return (V) values[Long.bitCount(bits & (bit - 1))];
+            }
+        }
+        Object[] defaults = klass.defaults;
+        return defaults == null ? null : (V) CompactHashMapClass.unmaskNull(defaults[ordinal]);
+    }
+
+    final V putOrdinal(int ordinal, V value) {
+        if (isStored(ordinal)) {
+            return isDense() ? putDense(ordinal, value) : putSlot(ordinal, value);
+        }
+        K key = klass.keys[ordinal];
+        CompactOrdinalMapClass<K, V> klass = this.klass;
+        Object[] defaults = klass.defaults;
+        Object prevDefault = defaults == null ? null : defaults[ordinal];
+        // Try put value as "default"
+        CompactHashMapDefaultsRegistry registry = klass.context.defaults;
+        Map<K, V> newDef = registry.getNewDefaultValues(klass.defaultValues, key, value);
+        if (newDef == null && prevDefault != null) {
+            // The value is not default, so the key is no longer in the default values
+            newDef = registry.getNewDefaultValues(klass.defaultValues, key, CompactHashMapClass.REMOVED_OBJECT);
+            this.klass = klass.withDefaults(newDef);
+            newDef = null;
+        }
+        if (newDef != null) {
+            this.klass = klass.withDefaults(newDef);
+            if (prevDefault == null) {
+                modCount++;
+            }
+            return (V) CompactHashMapClass.unmaskNull(prevDefault);
+        }
+        int modCount = this.modCount;
+        if (isDense()) {
+            putDense(ordinal, value);
+        } else {
+            putSlot(ordinal, value);
+        }
+        if (prevDefault != null) {
+            // The key moves from the default values to a slot, so the set of keys is the same,
+            // and the iterators (e.g. the one that calls Entry.setValue) remain valid
+            this.modCount = modCount;
+        }
+        return (V) CompactHashMapClass.unmaskNull(prevDefault);
+    }
+
+    private V putSlot(int ordinal, V value) {
+        long bit = 1L << ordinal;
+        int slot = slot(ordinal);
+        Object[] values = this.values;
+        if ((bits & bit) != 0) {
+            Object prevValue = values[slot];
+            values[slot] = value;
+            return (V) prevValue;
+        }
+        int size = Long.bitCount(bits);
+        if (size == values.length) {
+            // The same growth as the array of CompactHashMap, however start small
+            int length = size < 2 ? 2 : size * 3 / 2;
+            Object[] newValues = new Object[length + (length & 1)];
+            System.arraycopy(values, 0, newValues, 0, slot);
+            if (slot < size) {
+                System.arraycopy(values, slot, newValues, slot + 1, size - slot);
+            }
+            this.values = values = newValues;
+        } else if (slot < size) {
+            // The keys are often added in the order of ordinals, so nothing needs to be moved
+            System.arraycopy(values, slot, values, slot + 1, size - slot);
+        }
+        values[slot] = value;
+        bits |= bit;
+        modCount++;
+        return null;
+    }
+
+    private V putDense(int ordinal, V value) {
+        Object[] values = this.values;
+        Object prevValue = values[ordinal];
+        values[ordinal] = CompactHashMapClass.maskNull(value);
+        if (prevValue == null) {
+            bits++;
+            modCount++;
+        }
+        return (V) CompactHashMapClass.unmaskNull(prevValue);
+    }
+
+    final V removeOrdinal(int ordinal) {
+        Object[] values = this.values;
+        if (isDense()) {
+            Object prevValue = values[ordinal];
+            if (prevValue != null) {
+                values[ordinal] = null;
+                bits--;
+                modCount++;
+                return (V) CompactHashMapClass.unmaskNull(prevValue);
+            }
+        } else {
+            long bit = 1L << ordinal;
+            if ((bits & bit) != 0) {
+                int slot = slot(ordinal);
+                int size = Long.bitCount(bits);
+                Object prevValue = values[slot];
+                System.arraycopy(values, slot + 1, values, slot, size - slot - 1);
+                values[size - 1] = null;
+                bits &= ~bit;
+                modCount++;
+                return (V) prevValue;
+            }
+        }
+        CompactOrdinalMapClass<K, V> klass = this.klass;
+        Object[] defaults = klass.defaults;
+        Object prevDefault = defaults == null ? null : defaults[ordinal];
+        if (prevDefault == null) {
+            return null;
+        }
+        this.klass = klass.withDefaults(klass.context.defaults.getNewDefaultValues(
+                klass.defaultValues, klass.keys[ordinal], CompactHashMapClass.REMOVED_OBJECT));
+        modCount++;
+        return (V) CompactHashMapClass.unmaskNull(prevDefault);
+    }
+
+    public int size() {
+        return (isDense() ? (int) bits : Long.bitCount(bits)) + klass.defaultCount();
+    }
+
+    public boolean isEmpty() {
+        return bits == 0 && klass.defaults == null;
+    }
+
+    public boolean containsKey(Object key) {
+        int ordinal = ordinal(key);
+        return ordinal >= 0 && containsOrdinal(ordinal);
+    }
+
+    public V get(Object key) {
+        int ordinal = ordinal(key);
+        return ordinal < 0 ? null : getOrdinal(ordinal);
+    }
+
+    public V put(K key, V value) {
+        int ordinal = ordinal(key);
+        if (ordinal < 0) {
+            throw invalidKey(key);
+        }
+        return putOrdinal(ordinal, value);
+    }
+
+    public V remove(Object key) {
+        int ordinal = ordinal(key);
+        return ordinal < 0 ? null : removeOrdinal(ordinal);
+    }
+
+    public void clear() {
+        klass = klass.root;
+        bits = 0;
+        values = emptyValues();
+        modCount++;
+    }
+
+    public boolean containsValue(Object value) {
+        return values().contains(value);
+    }
+
+    public void putAll(Map<? extends K, ? extends V> m) {
+        for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public Set<K> keySet() {
+        return new KeySet();
+    }
+
+    public Collection<V> values() {
+        return new Values();
+    }
+
+    public Set<Entry<K, V>> entrySet() {
+        return new EntrySet();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o instanceof CompactOrdinalMap && ((CompactOrdinalMap<?, ?>) o).klass == klass && !isDense()) {
+            CompactOrdinalMap<?, ?> m = (CompactOrdinalMap<?, ?>) o;
+            // The same keys and default values, so the values are in the same slots
+            if (m.bits != bits) {
+                return false;
+            }
+            for (int i = Long.bitCount(bits) - 1; i >= 0; i--) {
+                Object value = values[i];
+                if (value == null ? m.values[i] != null : !value.equals(m.values[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (!(o instanceof Map)) {
+            return false;
+        }
+        Map<?, ?> m = (Map<?, ?>) o;
+        if (m.size() != size()) {
+            return false;
+        }
+        for (Entry<K, V> e : entrySet()) {
+            K key = e.getKey();
+            V value = e.getValue();
+            if (value == null) {
+                if (m.get(key) != null || !m.containsKey(key)) {
+                    return false;
+                }
+            } else {
+                if (!value.equals(m.get(key))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 0;
+        for (Entry<K, V> entry : entrySet()) {
+            h += entry.hashCode();
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        Iterator<Entry<K, V>> it = entrySet().iterator();
+        if (!it.hasNext())
+            return "{}";
+
+        StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        while (it.hasNext()) {
+            Entry<K, V> e = it.next();
+            sb.append(e.getKey()).append('=').append(e.getValue());
+            sb.append(',').append(' ');
+        }
+        sb.setLength(sb.length() - 2);
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Returns a shallow copy of this map: the keys and values themselves are not cloned.
+     *
+     * @return a copy of this map
+     */
+    @Override
+    protected CompactOrdinalMap<K, V> clone() {
+        CompactOrdinalMap<K, V> result;
+        try {
+            result = (CompactOrdinalMap<K, V>) super.clone();
+        } catch (CloneNotSupportedException e) {
+            // this shouldn't happen, since we are Cloneable
+            throw new InternalError();
+        }
+        result.values = values.clone();
+        return result;
+    }
+
+    private final class KeySet extends AbstractSet<K> {
+        @Override
+        public Iterator<K> iterator() {
+            final EntryIterator it = new EntryIterator();
+            return new Iterator<K>() {
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                public K next() {
+                    return it.next().getKey();
+                }
+
+                public void remove() {
+                    it.remove();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return CompactOrdinalMap.this.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!containsKey(o)) {
+                return false;
+            }
+            CompactOrdinalMap.this.remove(o);
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            CompactOrdinalMap.this.clear();
+        }
+    }
+
+    private final class Values extends AbstractCollection<V> {
+        @Override
+        public Iterator<V> iterator() {
+            final EntryIterator it = new EntryIterator();
+            return new Iterator<V>() {
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                public V next() {
+                    return it.next().getValue();
+                }
+
+                public void remove() {
+                    it.remove();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return CompactOrdinalMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+            CompactOrdinalMap.this.clear();
+        }
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<K, V>> {
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return CompactOrdinalMap.this.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            Object key = e.getKey();
+            if (!containsKey(key)) {
+                return false;
+            }
+            Object value = get(key);
+            return value == null ? e.getValue() == null : value.equals(e.getValue());
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!contains(o)) {
+                return false;
+            }
+            CompactOrdinalMap.this.remove(((Entry<?, ?>) o).getKey());
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            CompactOrdinalMap.this.clear();
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Entry<K, V>> {
+        private int nextOrdinal = -1;
+        private int lastOrdinal = -1;
+        private int expectedModCount = modCount;
+
+        EntryIterator() {
+            advance(0);
+        }
+
+        private void advance(int from) {
+            if (isDense()) {
+                int length = klass.keys.length;
+                for (int i = from; i < length; i++) {
+                    if (containsOrdinal(i)) {
+                        nextOrdinal = i;
+                        return;
+                    }
+                }
+                nextOrdinal = -1;
+                return;
+            }
+            long remaining = from >= 64 ? 0 : (bits | klass.defaultBits) & (-1L << from);
+            nextOrdinal = remaining == 0 ? -1 : Long.numberOfTrailingZeros(remaining);
+        }
+
+        public boolean hasNext() {
+            return nextOrdinal >= 0;
+        }
+
+        public Entry<K, V> next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (nextOrdinal < 0) {
+                throw new NoSuchElementException();
+            }
+            lastOrdinal = nextOrdinal;
+            advance(nextOrdinal + 1);
+            return new MapEntry(lastOrdinal);
+        }
+
+        public void remove() {
+            if (lastOrdinal < 0) {
+                throw new IllegalStateException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeOrdinal(lastOrdinal);
+            expectedModCount = modCount;
+            lastOrdinal = -1;
+        }
+    }
+
+    private final class MapEntry implements Entry<K, V> {
+        private final int ordinal;
+
+        MapEntry(int ordinal) {
+            this.ordinal = ordinal;
+        }
+
+        public K getKey() {
+            return klass.keys[ordinal];
+        }
+
+        public V getValue() {
+            return getOrdinal(ordinal);
+        }
+
+        public V setValue(V value) {
+            return putOrdinal(ordinal, value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            V value = getValue();
+            return getKey().equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            V value = getValue();
+            return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
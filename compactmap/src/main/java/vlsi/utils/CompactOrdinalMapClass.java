@@ -0,0 +1,204 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The shared metadata of {@link CompactOrdinalMap}: the keys of the universe (indexed by ordinal) and
+ * the default values, so the maps with common values store them here rather than in each map,
+ * like {@link CompactHashMapClassWithDefaults} does for {@link CompactHashMap}.
+ *
+ * <p>Each context has a root class (no default values) per universe, and the root caches its variations
+ * with the default values. The default value maps come from the registry of the context, so they are
+ * canonical, and the variations are looked up by identity.</p>
+ *
+ * @author Vladimir Sitnikov
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+final class CompactOrdinalMapClass<K, V> {
+    // The most recently used root, so the maps of the same universe do not take the lock.
+    // It is referenced weakly, so it does not keep the enum class from unloading
+    private static volatile WeakReference<CompactOrdinalMapClass<?, ?>> lastRoot =
+            new WeakReference<CompactOrdinalMapClass<?, ?>>(null);
+
+    final CompactMapContext context;
+    // Enum class or the number of small-int keys, it identifies the universe in the context
+    final Object universeKey;
+    // keys[ordinal] is the key with the given ordinal
+    final K[] keys;
+    final CompactOrdinalMapClass<K, V> root;
+
+    // The canonical map from the registry of the context
+    final Map<K, V> defaultValues;
+    // The values of the keys with default values by ordinal (null values are masked),
+    // or null if the class has no default values
+    final Object[] defaults;
+    // The ordinals of the keys with default values, the ordinals above 63 are not included
+    final long defaultBits;
+
+    // Copy-on-write, the root class only
+    private volatile Map<Map<K, V>, WeakReference<CompactOrdinalMapClass<K, V>>> defValues2Klass;
+
+    private CompactOrdinalMapClass(CompactMapContext context, Object universeKey, K[] keys) {
+        this.context = context;
+        this.universeKey = universeKey;
+        this.keys = keys;
+        this.root = this;
+        this.defaultValues = Collections.emptyMap();
+        this.defaults = null;
+        this.defaultBits = 0;
+    }
+
+    private CompactOrdinalMapClass(CompactOrdinalMapClass<K, V> root, Map<K, V> defaultValues, Object[] defaults,
+                                   long defaultBits) {
+        this.context = root.context;
+        this.universeKey = root.universeKey;
+        this.keys = root.keys;
+        this.root = root;
+        this.defaultValues = defaultValues;
+        this.defaults = defaults;
+        this.defaultBits = defaultBits;
+    }
+
+    /**
+     * Returns the class without default values for the universe.
+     *
+     * @param context     the context of the maps
+     * @param universeKey enum class or the number of small-int keys
+     * @param <K>         the type of keys
+     * @param <V>         the type of values
+     * @return the root class
+     * @throws ClassCastException if the class is not an enum
+     */
+    static <K, V> CompactOrdinalMapClass<K, V> getRoot(CompactMapContext context, Object universeKey) {
+        CompactOrdinalMapClass<?, ?> last = lastRoot.get();
+        if (last != null && last.context == context && last.universeKey.equals(universeKey)) {
+            return (CompactOrdinalMapClass<K, V>) last;
+        }
+        // The roots are referenced weakly, so the enum classes can be unloaded
+        WeakHashMap<Object, WeakReference<CompactOrdinalMapClass<?, ?>>> roots = context.ordinalRoots;
+        synchronized (roots) {
+            WeakReference<CompactOrdinalMapClass<?, ?>> ref = roots.get(universeKey);
+            CompactOrdinalMapClass<?, ?> root = ref == null ? null : ref.get();
+            if (root == null) {
+                root = new CompactOrdinalMapClass<K, V>(context, universeKey, (K[]) getKeys(universeKey));
+                ref = new WeakReference<CompactOrdinalMapClass<?, ?>>(root);
+                roots.put(universeKey, ref);
+            }
+            lastRoot = ref;
+            return (CompactOrdinalMapClass<K, V>) root;
+        }
+    }
+
+    private static Object[] getKeys(Object universeKey) {
+        if (universeKey instanceof Integer) {
+            Integer[] keys = new Integer[(Integer) universeKey];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = i;
+            }
+            return keys;
+        }
+        Class<?> keyType = (Class<?>) universeKey;
+        Object[] keys = keyType.getEnumConstants();
+        if (keys == null) {
+            throw new ClassCastException(keyType + " is not an enum");
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the number of keys with default values.
+     *
+     * @return the number of keys with default values
+     */
+    int defaultCount() {
+        return defaultValues.size();
+    }
+
+    /**
+     * Returns the class that has the given default values.
+     *
+     * @param newDef canonical default values, see {@link CompactHashMapDefaultsRegistry#getNewDefaultValues}
+     * @return the class with the given default values
+     */
+    CompactOrdinalMapClass<K, V> withDefaults(Map<K, V> newDef) {
+        if (newDef.isEmpty()) {
+            return root;
+        }
+        if (newDef == defaultValues) {
+            return this;
+        }
+        return root.getDefaultClass(newDef);
+    }
+
+    private CompactOrdinalMapClass<K, V> getDefaultClass(Map<K, V> newDef) {
+        Map<Map<K, V>, WeakReference<CompactOrdinalMapClass<K, V>>> defValues2Klass = this.defValues2Klass;
+        WeakReference<CompactOrdinalMapClass<K, V>> ref = defValues2Klass == null ? null : defValues2Klass.get(newDef);
+        CompactOrdinalMapClass<K, V> klass = ref == null ? null : ref.get();
+        if (klass != null) {
+            return klass;
+        }
+        synchronized (this) {
+            defValues2Klass = this.defValues2Klass;
+            ref = defValues2Klass == null ? null : defValues2Klass.get(newDef);
+            klass = ref == null ? null : ref.get();
+            if (klass != null) {
+                return klass;
+            }
+            Object[] defaults = new Object[keys.length];
+            long defaultBits = 0;
+            for (Map.Entry<K, V> entry : newDef.entrySet()) {
+                int ordinal = indexOf(entry.getKey());
+                defaults[ordinal] = CompactHashMapClass.maskNull(entry.getValue());
+                if (ordinal < 64) {
+                    defaultBits |= 1L << ordinal;
+                }
+            }
+            klass = new CompactOrdinalMapClass<K, V>(this, newDef, defaults, defaultBits);
+            Map<Map<K, V>, WeakReference<CompactOrdinalMapClass<K, V>>> newDefValues2Klass =
+                    new IdentityHashMap<Map<K, V>, WeakReference<CompactOrdinalMapClass<K, V>>>();
+            if (defValues2Klass != null) {
+                // Forget the classes that are no longer used
+                for (Map.Entry<Map<K, V>, WeakReference<CompactOrdinalMapClass<K, V>>> entry
+                        : defValues2Klass.entrySet()) {
+                    if (entry.getValue().get() != null) {
+                        newDefValues2Klass.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            newDefValues2Klass.put(newDef, new WeakReference<CompactOrdinalMapClass<K, V>>(klass));
+            this.defValues2Klass = newDefValues2Klass;
+            return klass;
+        }
+    }
+
+    private int indexOf(Object key) {
+        K[] keys = this.keys;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Key " + key + " is not in the universe " + universeKey);
+    }
+}
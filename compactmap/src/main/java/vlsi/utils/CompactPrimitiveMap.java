@@ -0,0 +1,307 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The keys of the maps with primitive values ({@link CompactIntMap}, {@link CompactLongMap},
+ * {@link CompactDoubleMap}). The keys are described with the same classes as the keys of {@link CompactHashMap},
+ * so the maps with the same keys share the metadata, and each map holds just an array of values:
+ * the value of the n-th key is stored at index n-1.
+ *
+ * <p>Maps with too many keys (or the maps that get a class that is not shared) switch to
+ * "dictionary mode", and they keep the index of each key in {@link CompactHashMapDictionary}.
+ * Removal shifts the values of the subsequent keys, so the maps have no removed slots.</p>
+ *
+ * @author Vladimir Sitnikov
+ * @param <K> the type of keys maintained by this map
+ */
+abstract class CompactPrimitiveMap<K> implements Cloneable {
+    // Either a class without default values or the dictionary class of the context
+    CompactHashMapClass<K, ?> klass;
+    // Key to Integer index, null unless the map is in dictionary mode
+    CompactHashMapDictionary dictionary;
+
+    CompactPrimitiveMap(CompactMapContext context) {
+        klass = context.root;
+    }
+
+    /**
+     * Returns the length of the array of values.
+     *
+     * @return the length of the array of values
+     */
+    abstract int capacity();
+
+    /**
+     * Resizes the array of values.
+     *
+     * @param length new length of the array
+     */
+    abstract void resize(int length);
+
+    /**
+     * Moves the values after the given index one position to the left.
+     *
+     * @param index the index of the removed value
+     * @param size  the number of values before the removal
+     */
+    abstract void removeValue(int index, int size);
+
+    abstract int valueHashCode(int index);
+
+    abstract boolean valueEquals(int index, CompactPrimitiveMap<?> other, int otherIndex);
+
+    abstract void appendValue(StringBuilder sb, int index);
+
+    public int size() {
+        CompactHashMapDictionary dictionary = this.dictionary;
+        return dictionary == null ? klass.keyCount : dictionary.size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Removes the key from the map.
+     *
+     * @param key the key to remove
+     * @return true if the map contained the key
+     */
+    public boolean remove(Object key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return false;
+        }
+        int size = size();
+        Object[] keys = keys();
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        removeValue(index, size);
+        setKeys(keys, size - 1);
+        return true;
+    }
+
+    public void clear() {
+        klass = klass.getContext().root;
+        dictionary = null;
+        resize(0);
+    }
+
+    /**
+     * Returns the keys of the map in the order of insertion. The set is a snapshot: it does not reflect
+     * the subsequent modifications of the map.
+     *
+     * @return the keys of the map
+     */
+    public Set<K> keySet() {
+        Set<K> result = new LinkedHashSet<K>();
+        for (Object key : keys()) {
+            result.add((K) CompactHashMapClass.unmaskNull(key));
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * Returns the index of the key in the array of values.
+     *
+     * @param key the key
+     * @return the index or -1 if the key is absent
+     */
+    final int indexOf(Object key) {
+        Object nonNullKey = CompactHashMapClass.maskNull(key);
+        CompactHashMapDictionary dictionary = this.dictionary;
+        if (dictionary != null) {
+            Object index = dictionary.get(nonNullKey);
+            return index == CompactHashMapClass.REMOVED_OBJECT ? -1 : (Integer) index;
+        }
+        int slot = klass.getSlot(nonNullKey);
+        return slot == CompactHashMapKeyIndex.NO_SLOT ? -1 : slot + 2;
+    }
+
+    /**
+     * Adds the key that is known to be absent.
+     *
+     * @param key the key to add
+     * @return the index of the value of the new key
+     */
+    final int addKey(K key) {
+        Object nonNullKey = CompactHashMapClass.maskNull(key);
+        int index = size();
+        int capacity = capacity();
+        if (index == capacity) {
+            // Start small: unlike CompactHashMap, the map has no fields for the first values
+            int length = capacity < 2 ? 2 : capacity * 3 / 2;
+            resize(length + (length & 1));
+        }
+        if (dictionary == null) {
+            if (index < klass.getContext().dictionaryThreshold) {
+                CompactHashMapClassEmptyDefaults<K, ?> nextKlass =
+                        ((CompactHashMapClassEmptyDefaults<K, ?>) klass).getNextKlass(nonNullKey);
+                if (nextKlass.isShared()) {
+                    klass = nextKlass;
+                    return index;
+                }
+            }
+            toDictionary(keys(), index);
+        }
+        dictionary.put(nonNullKey, index);
+        return index;
+    }
+
+    /**
+     * Returns the masked keys in the order of their indices.
+     *
+     * @return the array of keys
+     */
+    final Object[] keys() {
+        Object[] keys = new Object[size()];
+        CompactHashMapDictionary dictionary = this.dictionary;
+        if (dictionary != null) {
+            for (int i = 0; i < dictionary.capacity(); i++) {
+                Object key = dictionary.getKeyAt(i);
+                if (key != null) {
+                    keys[(Integer) dictionary.getValueAt(i)] = key;
+                }
+            }
+            return keys;
+        }
+        for (CompactHashMapClassEmptyDefaults<K, ?> c = (CompactHashMapClassEmptyDefaults<K, ?>) klass;
+             c.parent != null; c = c.parent) {
+            keys[c.keyCount - 1] = c.key;
+        }
+        return keys;
+    }
+
+    /**
+     * Moves the map to the class of the given keys.
+     */
+    private void setKeys(Object[] keys, int size) {
+        CompactMapContext context = klass.getContext();
+        CompactHashMapClassEmptyDefaults<K, ?> newKlass = context.root;
+        if (size <= context.dictionaryThreshold) {
+            for (int i = 0; i < size; i++) {
+                newKlass = newKlass.getNextKlass(keys[i]);
+                if (!newKlass.isShared()) {
+                    toDictionary(keys, size);
+                    return;
+                }
+            }
+            klass = newKlass;
+            dictionary = null;
+            return;
+        }
+        toDictionary(keys, size);
+    }
+
+    private void toDictionary(Object[] keys, int size) {
+        CompactHashMapDictionary dictionary = new CompactHashMapDictionary(size + 1);
+        for (int i = 0; i < size; i++) {
+            dictionary.put(keys[i], i);
+        }
+        this.dictionary = dictionary;
+        klass = klass.getContext().dictionary;
+    }
+
+    @Override
+    protected CompactPrimitiveMap<K> clone() {
+        CompactPrimitiveMap<K> result;
+        try {
+            result = (CompactPrimitiveMap<K>) super.clone();
+        } catch (CloneNotSupportedException e) {
+            // this shouldn't happen, since we are Cloneable
+            throw new InternalError();
+        }
+        if (dictionary != null) {
+            result.dictionary = dictionary.copy();
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o == null || o.getClass() != getClass()) {
+            return false;
+        }
+        CompactPrimitiveMap<?> m = (CompactPrimitiveMap<?>) o;
+        int size = size();
+        if (m.size() != size) {
+            return false;
+        }
+        if (klass == m.klass && dictionary == null) {
+            // The same keys at the same indices
+            for (int i = 0; i < size; i++) {
+                if (!valueEquals(i, m, i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        Object[] keys = keys();
+        for (int i = 0; i < size; i++) {
+            int otherIndex = m.indexOf(CompactHashMapClass.unmaskNull(keys[i]));
+            if (otherIndex < 0 || !valueEquals(i, m, otherIndex)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the same hash code as a {@link java.util.Map} with boxed values would have.
+     *
+     * @return the hash code
+     */
+    @Override
+    public int hashCode() {
+        Object[] keys = keys();
+        int h = 0;
+        for (int i = 0; i < keys.length; i++) {
+            Object key = CompactHashMapClass.unmaskNull(keys[i]);
+            h += (key == null ? 0 : key.hashCode()) ^ valueHashCode(i);
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        Object[] keys = keys();
+        if (keys.length == 0) {
+            return "{}";
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        for (int i = 0; i < keys.length; i++) {
+            if (i > 0) {
+                sb.append(',').append(' ');
+            }
+            sb.append(CompactHashMapClass.unmaskNull(keys[i])).append('=');
+            appendValue(sb, i);
+        }
+        return sb.append('}').toString();
+    }
+}
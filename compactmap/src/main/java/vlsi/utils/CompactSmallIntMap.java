@@ -0,0 +1,192 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Map with the keys {@code 0..keyCount-1}. Like {@link CompactEnumMap}, the set of keys is a bitmask,
+ * and the values are stored densely in the order of the keys, so the lookups neither hash the keys
+ * nor compare them with {@code equals}.
+ *
+ * <p>{@link #get(int)}, {@link #set(int, Object)}, {@link #containsKey(int)} and {@link #remove(int)}
+ * do not box the keys. The maps with more than 64 possible keys do not fit in the bitmask, so for them
+ * the map stores a value per possible key.</p>
+ *
+ * <p>The default values of the context (see {@link CompactMapContext#addDefaultValue(Object, Object)})
+ * are stored in the shared class of the map rather than in the map itself.</p>
+ *
+ * <p>The map permits {@code null} values, and it iterates in the order of the keys.
+ * <strong>Note that this implementation is not synchronized.</strong></p>
+ *
+ * @author Vladimir Sitnikov
+ * @param <V> the type of mapped values
+ */
+public class CompactSmallIntMap<V> extends CompactOrdinalMap<Integer, V> implements Serializable {
+    private static final long serialVersionUID = 4216387702549210341L;
+
+    /**
+     * Creates an empty map that uses {@link CompactMapContext#getDefault() the default context}.
+     *
+     * @param keyCount the number of possible keys
+     * @throws IllegalArgumentException if the number of keys is negative
+     */
+    public CompactSmallIntMap(int keyCount) {
+        this(CompactMapContext.getDefault(), keyCount);
+    }
+
+    /**
+     * Creates an empty map that uses the given context.
+     *
+     * @param context  the context that provides the default values
+     * @param keyCount the number of possible keys
+     * @throws IllegalArgumentException if the number of keys is negative
+     */
+    public CompactSmallIntMap(CompactMapContext context, int keyCount) {
+        if (keyCount < 0) {
+            throw new IllegalArgumentException("keyCount should be non-negative, got " + keyCount);
+        }
+        init(CompactOrdinalMapClass.<Integer, V>getRoot(context, keyCount));
+    }
+
+    /**
+     * Creates a copy of the given map.
+     *
+     * @param m the map to copy
+     */
+    public CompactSmallIntMap(CompactSmallIntMap<? extends V> m) {
+        init(m);
+    }
+
+    /**
+     * Returns the number of possible keys.
+     *
+     * @return the number of possible keys
+     */
+    public int getKeyCount() {
+        return klass.keys.length;
+    }
+
+    @Override
+    final int ordinal(Object key) {
+        return key instanceof Integer ? ordinal(((Integer) key).intValue()) : -1;
+    }
+
+    private int ordinal(int key) {
+        return key >= 0 && key < klass.keys.length ? key : -1;
+    }
+
+    @Override
+    final RuntimeException invalidKey(Object key) {
+        if (key == null) {
+            return new NullPointerException("CompactSmallIntMap does not permit null keys");
+        }
+        if (!(key instanceof Integer)) {
+            return new ClassCastException(key.getClass() + " != " + Integer.class);
+        }
+        return new IllegalArgumentException("Key " + key + " is out of [0, " + klass.keys.length + ")");
+    }
+
+    /**
+     * Returns true if the map contains the key.
+     *
+     * @param key the key
+     * @return true if the map contains the key
+     */
+    public boolean containsKey(int key) {
+        int ordinal = ordinal(key);
+        return ordinal >= 0 && containsOrdinal(ordinal);
+    }
+
+    /**
+     * Returns the value of the key.
+     *
+     * @param key the key
+     * @return the value or null if the map does not contain the key
+     */
+    public V get(int key) {
+        int ordinal = ordinal(key);
+        return ordinal < 0 ? null : getOrdinal(ordinal);
+    }
+
+    /**
+     * Associates the value with the key. It is {@link #put(Object, Object)} that does not box the key,
+     * it has a different name since {@code put(int, V)} would be ambiguous for {@code Integer} values.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return the previous value or null if the map did not contain the key
+     * @throws IllegalArgumentException if the key is out of {@code [0, keyCount)}
+     */
+    public V set(int key, V value) {
+        int ordinal = ordinal(key);
+        if (ordinal < 0) {
+            throw invalidKey(key);
+        }
+        return putOrdinal(ordinal, value);
+    }
+
+    /**
+     * Removes the key.
+     *
+     * @param key the key
+     * @return the previous value or null if the map did not contain the key
+     */
+    public V remove(int key) {
+        int ordinal = ordinal(key);
+        return ordinal < 0 ? null : removeOrdinal(ordinal);
+    }
+
+    /**
+     * Returns a shallow copy of this map: the values themselves are not cloned.
+     *
+     * @return a copy of this map
+     */
+    @Override
+    public CompactSmallIntMap<V> clone() {
+        return (CompactSmallIntMap<V>) super.clone();
+    }
+
+    private void writeObject(ObjectOutputStream s) throws IOException {
+        s.defaultWriteObject();
+        s.writeInt(getKeyCount());
+        s.writeInt(size());
+        for (Entry<Integer, V> entry : entrySet()) {
+            s.writeInt(entry.getKey());
+            s.writeObject(entry.getValue());
+        }
+    }
+
+    private void readObject(ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        int keyCount = s.readInt();
+        if (keyCount < 0) {
+            throw new InvalidObjectException("keyCount should be non-negative, got " + keyCount);
+        }
+        // The context is not serialized, so the map uses the default one
+        init(CompactOrdinalMapClass.<Integer, V>getRoot(CompactMapContext.getDefault(), keyCount));
+        int size = s.readInt();
+        for (int i = 0; i < size; i++) {
+            int key = s.readInt();
+            set(key, (V) s.readObject());
+        }
+    }
+}
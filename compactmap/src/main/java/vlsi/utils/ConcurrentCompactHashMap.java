@@ -0,0 +1,401 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Thread-safe variant of {@link CompactHashMap}. The entries are kept in a {@link CompactHashMap} that is never
+ * modified once it is published: the updates modify a copy, and they replace the map with compare-and-set.
+ * Thus the reads are wait-free (they are just reads of a regular {@link CompactHashMap}), and the updates
+ * ({@link #put(Object, Object)}, {@link #putIfAbsent(Object, Object)}, {@link #replace(Object, Object, Object)},
+ * and so on) are atomic. The default {@code compute}/{@code merge} methods of {@link ConcurrentMap} are atomic
+ * as well, since they are built on top of the atomic methods.
+ *
+ * <p>Each update copies the values, so the map is meant for the data that is read much more often than it is
+ * modified. The map costs just a small object on top of {@link CompactHashMap}, so it is still several times
+ * smaller than {@link java.util.concurrent.ConcurrentHashMap}.</p>
+ *
+ * <p>Like {@link java.util.concurrent.ConcurrentHashMap}, the map does not allow null keys and values.
+ * The iterators reflect the state of the map at the time the iterator was created, and they never throw
+ * {@link java.util.ConcurrentModificationException}.</p>
+ *
+ * @author Vladimir Sitnikov
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public class ConcurrentCompactHashMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>, Serializable {
+    private static final long serialVersionUID = 4375402611498727296L;
+
+    // The updater is created from class literals, so its type arguments are raw
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<ConcurrentCompactHashMap, CompactHashMap> MAP =
+            AtomicReferenceFieldUpdater.newUpdater(ConcurrentCompactHashMap.class, CompactHashMap.class, "map");
+
+    // It is never modified after it is published
+    private volatile CompactHashMap<K, V> map;
+
+    /**
+     * Creates an empty map that uses {@link CompactMapContext#getDefault() the default context}.
+     */
+    public ConcurrentCompactHashMap() {
+        map = new CompactHashMap<K, V>();
+    }
+
+    /**
+     * Creates an empty map that uses the given context.
+     *
+     * @param context the context that provides the classes and the default values
+     */
+    public ConcurrentCompactHashMap(CompactMapContext context) {
+        map = new CompactHashMap<K, V>(context);
+    }
+
+    /**
+     * Creates a map with the same mappings as the given map.
+     *
+     * @param m the map whose mappings are to be placed in this map
+     */
+    public ConcurrentCompactHashMap(Map<? extends K, ? extends V> m) {
+        this();
+        putAll(m);
+    }
+
+    private static void checkNotNull(Object o) {
+        if (o == null) {
+            throw new NullPointerException();
+        }
+    }
+
+    private boolean publish(CompactHashMap<K, V> prevMap, CompactHashMap<K, V> newMap) {
+        return MAP.compareAndSet(this, prevMap, newMap);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        checkNotNull(key);
+        return map.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        checkNotNull(value);
+        return map.containsValue(value);
+    }
+
+    @Override
+    public V get(Object key) {
+        checkNotNull(key);
+        return map.get(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        checkNotNull(key);
+        checkNotNull(value);
+        while (true) {
+            CompactHashMap<K, V> prevMap = map;
+            V prevValue = prevMap.get(key);
+            if (prevValue == value) {
+                return prevValue;
+            }
+            CompactHashMap<K, V> newMap = prevMap.clone();
+            newMap.put(key, value);
+            if (publish(prevMap, newMap)) {
+                return prevValue;
+            }
+        }
+    }
+
+    public V putIfAbsent(K key, V value) {
+        checkNotNull(key);
+        checkNotNull(value);
+        while (true) {
+            CompactHashMap<K, V> prevMap = map;
+            V prevValue = prevMap.get(key);
+            if (prevValue != null) {
+                return prevValue;
+            }
+            CompactHashMap<K, V> newMap = prevMap.clone();
+            newMap.put(key, value);
+            if (publish(prevMap, newMap)) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        if (m.isEmpty()) {
+            return;
+        }
+        for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            checkNotNull(entry.getKey());
+            checkNotNull(entry.getValue());
+        }
+        while (true) {
+            CompactHashMap<K, V> prevMap = map;
+            CompactHashMap<K, V> newMap = prevMap.clone();
+            newMap.putAll(m);
+            if (publish(prevMap, newMap)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        checkNotNull(key);
+        while (true) {
+            CompactHashMap<K, V> prevMap = map;
+            V prevValue = prevMap.get(key);
+            if (prevValue == null) {
+                return null;
+            }
+            CompactHashMap<K, V> newMap = prevMap.clone();
+            newMap.remove(key);
+            if (publish(prevMap, newMap)) {
+                return prevValue;
+            }
+        }
+    }
+
+    public boolean remove(Object key, Object value) {
+        checkNotNull(key);
+        if (value == null) {
+            return false;
+        }
+        while (true) {
+            CompactHashMap<K, V> prevMap = map;
+            V prevValue = prevMap.get(key);
+            if (prevValue == null || !prevValue.equals(value)) {
+                return false;
+            }
+            CompactHashMap<K, V> newMap = prevMap.clone();
+            newMap.remove(key);
+            if (publish(prevMap, newMap)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean replace(K key, V oldValue, V newValue) {
+        checkNotNull(key);
+        checkNotNull(oldValue);
+        checkNotNull(newValue);
+        while (true) {
+            CompactHashMap<K, V> prevMap = map;
+            V prevValue = prevMap.get(key);
+            if (prevValue == null || !prevValue.equals(oldValue)) {
+                return false;
+            }
+            CompactHashMap<K, V> newMap = prevMap.clone();
+            newMap.put(key, newValue);
+            if (publish(prevMap, newMap)) {
+                return true;
+            }
+        }
+    }
+
+    public V replace(K key, V value) {
+        checkNotNull(key);
+        checkNotNull(value);
+        while (true) {
+            CompactHashMap<K, V> prevMap = map;
+            V prevValue = prevMap.get(key);
+            if (prevValue == null) {
+                return null;
+            }
+            CompactHashMap<K, V> newMap = prevMap.clone();
+            newMap.put(key, value);
+            if (publish(prevMap, newMap)) {
+                return prevValue;
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        while (true) {
+            CompactHashMap<K, V> prevMap = map;
+            if (prevMap.isEmpty()) {
+                return;
+            }
+            if (publish(prevMap, new CompactHashMap<K, V>(prevMap.klass.getContext()))) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new EntrySet();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o == this || map.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return map.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return map.toString();
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<K, V>> {
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            return new EntryIterator(map.entrySet().iterator());
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return map.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            Object key = e.getKey();
+            Object value = e.getValue();
+            if (key == null || value == null) {
+                return false;
+            }
+            return value.equals(map.get(key));
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            Object key = e.getKey();
+            return key != null && ConcurrentCompactHashMap.this.remove(key, e.getValue());
+        }
+
+        @Override
+        public void clear() {
+            ConcurrentCompactHashMap.this.clear();
+        }
+    }
+
+    /**
+     * Iterates over a snapshot of the map, the updates go to the current map.
+     */
+    private final class EntryIterator implements Iterator<Entry<K, V>> {
+        private final Iterator<Entry<K, V>> snapshot;
+        private K lastKey;
+
+        EntryIterator(Iterator<Entry<K, V>> snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        public boolean hasNext() {
+            return snapshot.hasNext();
+        }
+
+        public Entry<K, V> next() {
+            Entry<K, V> entry = snapshot.next();
+            lastKey = entry.getKey();
+            return new WriteThroughEntry(lastKey, entry.getValue());
+        }
+
+        public void remove() {
+            if (lastKey == null) {
+                throw new IllegalStateException("next() has not been called, or remove() has already been called");
+            }
+            ConcurrentCompactHashMap.this.remove(lastKey);
+            lastKey = null;
+        }
+    }
+
+    private final class WriteThroughEntry implements Entry<K, V> {
+        private final K key;
+        private V value;
+
+        WriteThroughEntry(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public V setValue(V value) {
+            checkNotNull(value);
+            V prevValue = this.value;
+            put(key, value);
+            this.value = value;
+            return prevValue;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            return key.equals(e.getKey()) && value.equals(e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.util.Map;
+
+/**
+ * Immutable {@link CompactHashMap} (see {@link CompactHashMap#freeze()}). The map has no removed slots
+ * and no spare capacity, and its mutators throw {@link UnsupportedOperationException}.
+ *
+ * <p>The map is not a wrapper: it is a regular {@link CompactHashMap}, so the reads take the same path,
+ * and the map shares the class with the mutable maps. The values live in the inherited non-final fields,
+ * so the map refers to itself via a final field, and all the reads go through that reference
+ * (see {@link CompactHashMap#published()}). The constructor freezes the final field, and the reads
+ * that dereference it see the fields as of the end of the constructor, so the map can be published
+ * via a data race (e.g. a plain field), and other threads can read it without synchronization.</p>
+ *
+ * @author Vladimir Sitnikov
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public final class FrozenCompactHashMap<K, V> extends CompactHashMap<K, V> {
+    private static final long serialVersionUID = 2512373462431468327L;
+
+    // With compressed references and 12 byte headers the field fits in the gap of the 8 byte alignment
+    private final transient FrozenCompactHashMap<K, V> published;
+
+    FrozenCompactHashMap(CompactHashMap<K, V> m) {
+        CompactHashMapClass<K, V> klass = m.klass;
+        this.klass = klass;
+        v1 = m.v1;
+        v2 = m.v2;
+        v3 = m.v3;
+        if (klass instanceof CompactHashMapClassDictionary) {
+            // The dictionary is trimmed in place, so it must not be shared with the source map
+            klass.copyValues(this);
+        }
+        // Allocates new arrays of the exact size, so the source map can be modified later
+        klass.compact(this);
+        published = this;
+    }
+
+    @Override
+    CompactHashMap<K, V> published() {
+        return published;
+    }
+
+    /**
+     * Returns this map since it is already frozen.
+     *
+     * @return this map
+     */
+    @Override
+    public FrozenCompactHashMap<K, V> freeze() {
+        return this;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        throw new UnsupportedOperationException("The map is frozen");
+    }
+
+    @Override
+    public V putOrRemove(K key, Object value) {
+        throw new UnsupportedOperationException("The map is frozen");
+    }
+
+    @Override
+    public V remove(Object key) {
+        throw new UnsupportedOperationException("The map is frozen");
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        throw new UnsupportedOperationException("The map is frozen");
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("The map is frozen");
+    }
+
+    /**
+     * Does nothing since the map is compacted when it is frozen.
+     */
+    @Override
+    public void compact() {
+    }
+
+    /**
+     * Returns a copy of this map. The copy is frozen as well.
+     *
+     * @return a copy of this map
+     */
+    @Override
+    public FrozenCompactHashMap<K, V> clone() {
+        // Object.clone would read the fields via this reference, so copy the published map instead
+        return new FrozenCompactHashMap<K, V>(published);
+    }
+
+    private Object readResolve() {
+        // readObject does not run the constructor, so re-create the map to initialize the final field
+        return new FrozenCompactHashMap<K, V>(this);
+    }
+}
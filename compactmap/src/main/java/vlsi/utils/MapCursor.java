@@ -0,0 +1,191 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Walks the entries of a {@link CompactHashMap} without creating an object per entry.
+ * The cursor reads the default values of the class and then the slots of the map, so it is faster
+ * than {@code entrySet().iterator()}, and it can be {@link #reset(CompactHashMap) reset} to iterate
+ * over another map, so a loop over many maps can reuse a single cursor:
+ * <pre>
+ * MapCursor&lt;String, Object&gt; cursor = new MapCursor&lt;String, Object&gt;();
+ * for (CompactHashMap&lt;String, Object&gt; row : rows) {
+ *     for (cursor.reset(row); cursor.next(); ) {
+ *         process(cursor.key(), cursor.value());
+ *     }
+ * }
+ * </pre>
+ *
+ * <p>The map must not be modified while the cursor walks it, except via {@link CompactHashMap#remove(Object)}
+ * of the current key or {@link CompactHashMap#put(Object, Object)} of a new value for the current key.</p>
+ *
+ * @author Vladimir Sitnikov
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public final class MapCursor<K, V> {
+    private CompactHashMap<K, V> map;
+    // The default values of the class, null when they are done (or when there are none)
+    private Iterator<? extends Map.Entry<?, ?>> defaults;
+    // null until the cursor reaches the slots
+    private CompactHashMapKeyIndex key2slot;
+    // The array of values when the map has more than 3 keys
+    private Object[] values;
+    private CompactHashMapDictionary dictionary;
+    private int slot, slotLimit;
+    private Object key, value;
+
+    /**
+     * Creates a cursor that has no entries. Use {@link #reset(CompactHashMap)} to iterate over a map.
+     */
+    public MapCursor() {
+    }
+
+    /**
+     * Creates a cursor that is positioned before the first entry of the map.
+     *
+     * @param map the map to iterate over
+     */
+    public MapCursor(CompactHashMap<? extends K, ? extends V> map) {
+        reset(map);
+    }
+
+    /**
+     * Positions the cursor before the first entry of the given map.
+     *
+     * @param map the map to iterate over
+     * @return this cursor
+     */
+    public MapCursor<K, V> reset(CompactHashMap<? extends K, ? extends V> map) {
+        CompactHashMap<K, V> m = (CompactHashMap<K, V>) map.published();
+        this.map = m;
+        defaults = null;
+        key2slot = null;
+        values = null;
+        dictionary = null;
+        key = null;
+        value = null;
+        slot = 0;
+        slotLimit = 0;
+        CompactHashMapClass<K, V> klass = m.klass;
+        if (klass instanceof CompactHashMapClassDictionary) {
+            dictionary = (CompactHashMapDictionary) m.v1;
+            slotLimit = dictionary.capacity();
+            return this;
+        }
+        Map<K, V> defaultValues = klass.getDefaultValues();
+        if (!defaultValues.isEmpty()) {
+            defaults = defaultValues.entrySet().iterator();
+        } else {
+            startSlots(klass);
+        }
+        return this;
+    }
+
+    private void startSlots(CompactHashMapClass<K, V> klass) {
+        int keyCount = klass.keyCount;
+        slot = -2;
+        slotLimit = keyCount - 2;
+        if (keyCount > 0) {
+            key2slot = klass.getKey2slot();
+        }
+        if (keyCount > 3) {
+            values = (Object[]) map.v1;
+        }
+    }
+
+    /**
+     * Moves the cursor to the next entry.
+     *
+     * @return true if the cursor points to an entry, false if there are no more entries
+     */
+    public boolean next() {
+        Iterator<? extends Map.Entry<?, ?>> defaults = this.defaults;
+        if (defaults != null) {
+            if (defaults.hasNext()) {
+                Map.Entry<?, ?> entry = defaults.next();
+                key = entry.getKey();
+                value = entry.getValue();
+                return true;
+            }
+            this.defaults = null;
+            // Removal of a default key moves the map to another class, so take the current one
+            startSlots(map.klass);
+        }
+        CompactHashMapDictionary dictionary = this.dictionary;
+        if (dictionary != null) {
+            while (slot < slotLimit) {
+                int cell = slot++;
+                Object key = dictionary.getKeyAt(cell);
+                if (key != null) {
+                    this.key = key;
+                    value = dictionary.getValueAt(cell);
+                    return true;
+                }
+            }
+            return false;
+        }
+        CompactHashMap<K, V> map = this.map;
+        while (slot < slotLimit) {
+            int slot = this.slot++;
+            Object value;
+            if (slot == -2) {
+                value = map.v3;
+            } else if (slot == -1) {
+                value = map.v2;
+            } else if (values == null) {
+                value = map.v1;
+            } else {
+                value = values[slot];
+            }
+            if (value != CompactHashMapClass.REMOVED_OBJECT) {
+                key = key2slot.getKey(slot);
+                this.value = value;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the key of the current entry.
+     *
+     * @return the key of the current entry
+     */
+    public K key() {
+        return (K) CompactHashMapClass.unmaskNull(key);
+    }
+
+    /**
+     * Returns the value of the current entry.
+     *
+     * @return the value of the current entry
+     */
+    public V value() {
+        return (V) value;
+    }
+
+    /**
+     * Returns the key of the current entry as it is stored in the class ({@code null} is masked).
+     */
+    Object maskedKey() {
+        return key;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class CompactEnumMapTest {
+    enum Large {
+        K0, K1, K2, K3, K4, K5, K6, K7, K8, K9,
+        K10, K11, K12, K13, K14, K15, K16, K17, K18, K19,
+        K20, K21, K22, K23, K24, K25, K26, K27, K28, K29,
+        K30, K31, K32, K33, K34, K35, K36, K37, K38, K39,
+        K40, K41, K42, K43, K44, K45, K46, K47, K48, K49,
+        K50, K51, K52, K53, K54, K55, K56, K57, K58, K59,
+        K60, K61, K62, K63, K64, K65, K66, K67, K68, K69
+    }
+
+    @Test
+    public void valuesAreStoredInOrderOfOrdinals() {
+        CompactEnumMap<TimeUnit, String> map = new CompactEnumMap<TimeUnit, String>(TimeUnit.class);
+        map.put(TimeUnit.DAYS, "d");
+        map.put(TimeUnit.NANOSECONDS, "ns");
+        map.put(TimeUnit.SECONDS, null);
+        Assert.assertEquals("{NANOSECONDS=ns, SECONDS=null, DAYS=d}", map.toString());
+        Assert.assertTrue(map.containsKey(TimeUnit.SECONDS));
+        Assert.assertFalse(map.containsKey(TimeUnit.MINUTES));
+        Assert.assertEquals("d", map.remove(TimeUnit.DAYS));
+        Assert.assertEquals("ns", map.get(TimeUnit.NANOSECONDS));
+        Assert.assertEquals(2, map.size());
+    }
+
+    @Test
+    public void equalsMatchesEnumMap() {
+        CompactEnumMap<TimeUnit, String> map = new CompactEnumMap<TimeUnit, String>(TimeUnit.class);
+        EnumMap<TimeUnit, String> expected = new EnumMap<TimeUnit, String>(TimeUnit.class);
+        for (TimeUnit unit : TimeUnit.values()) {
+            if (unit.ordinal() % 2 == 0) {
+                map.put(unit, unit.name());
+                expected.put(unit, unit.name());
+            }
+        }
+        Assert.assertEquals(expected, map);
+        Assert.assertEquals(map, expected);
+        Assert.assertEquals(expected.hashCode(), map.hashCode());
+        Assert.assertEquals(map, new CompactEnumMap<TimeUnit, String>(map));
+        Assert.assertEquals(map, map.clone());
+    }
+
+    @Test
+    public void wrongKeyType() {
+        Map map = new CompactEnumMap<TimeUnit, String>(TimeUnit.class);
+        Assert.assertNull(map.get(Large.K0));
+        try {
+            map.put(Large.K0, "value");
+            Assert.fail("ClassCastException expected");
+        } catch (ClassCastException expected) {
+        }
+    }
+
+    @Test
+    public void defaultValuesAreSharedByClass() {
+        CompactMapContext context = new CompactMapContext();
+        context.addDefaultValue(TimeUnit.SECONDS, "s");
+        CompactEnumMap<TimeUnit, String> map = context.newEnumMap(TimeUnit.class);
+        map.put(TimeUnit.DAYS, "d");
+        map.put(TimeUnit.SECONDS, "s");
+        Assert.assertEquals("{SECONDS=s, DAYS=d}", map.toString());
+        Assert.assertEquals(1, map.klass.defaultCount());
+
+        CompactEnumMap<TimeUnit, String> other = context.newEnumMap(TimeUnit.class);
+        other.put(TimeUnit.SECONDS, "s");
+        other.put(TimeUnit.DAYS, "d");
+        Assert.assertSame(map.klass, other.klass);
+        Assert.assertEquals(map, other);
+
+        Assert.assertEquals("s", map.put(TimeUnit.SECONDS, "not default"));
+        Assert.assertEquals(0, map.klass.defaultCount());
+        Assert.assertEquals("{SECONDS=not default, DAYS=d}", map.toString());
+        Assert.assertEquals("s", other.remove(TimeUnit.SECONDS));
+        Assert.assertEquals("{DAYS=d}", other.toString());
+    }
+
+    @Test
+    public void setValueOfDefaultEntryDuringIteration() {
+        CompactMapContext context = new CompactMapContext();
+        context.addDefaultValue(TimeUnit.SECONDS, "s");
+        CompactEnumMap<TimeUnit, String> map = context.newEnumMap(TimeUnit.class);
+        map.put(TimeUnit.NANOSECONDS, "ns");
+        map.put(TimeUnit.SECONDS, "s");
+        map.put(TimeUnit.DAYS, "d");
+        for (Map.Entry<TimeUnit, String> entry : map.entrySet()) {
+            // SECONDS moves from the default values of the class to the map
+            entry.setValue(entry.getValue() + "2");
+        }
+        Assert.assertEquals("{NANOSECONDS=ns2, SECONDS=s2, DAYS=d2}", map.toString());
+        Assert.assertEquals(0, map.klass.defaultCount());
+    }
+
+    @Test
+    public void randomOperations() throws IOException, ClassNotFoundException {
+        MapFixtures.randomOperations(new CompactEnumMap<Large, Integer>(Large.class), Large.values(), true);
+        MapFixtures.randomOperations(
+                new CompactEnumMap<TimeUnit, Integer>(TimeUnit.class), TimeUnit.values(), true);
+        CompactMapContext context = new CompactMapContext();
+        context.addDefaultValue(Large.K3, 0);
+        context.addDefaultValue(Large.K66, 0);
+        context.addDefaultKey(TimeUnit.SECONDS);
+        MapFixtures.randomOperations(context.<Large, Integer>newEnumMap(Large.class), Large.values(), false);
+        MapFixtures.randomOperations(
+                context.<TimeUnit, Integer>newEnumMap(TimeUnit.class), TimeUnit.values(), false);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CompactHashMapClassDictionaryTest {
+    // Maps with more than 10 keys switch to dictionary mode
+    private final CompactMapContext context = new CompactMapContext(100000, 10);
+
+    @Test
+    public void largeMapSwitchesToDictionary() {
+        context.addDefaultValue("k1", "v1");
+        CompactHashMap<String, String> map = context.newMap();
+        Map<String, String> expected = new HashMap<String, String>();
+        for (int i = 0; i < 100; i++) {
+            map.put("k" + i, "v" + i);
+            expected.put("k" + i, "v" + i);
+            Assert.assertEquals(i >= 11, map.klass == context.dictionary);
+        }
+        map.put(null, "null");
+        expected.put(null, "null");
+        map.remove("k5");
+        expected.remove("k5");
+        Assert.assertEquals(expected, map);
+        Assert.assertEquals(expected.hashCode(), map.hashCode());
+        Assert.assertEquals("v1", map.get("k1"));
+        Assert.assertEquals("null", map.get(null));
+        Assert.assertFalse(map.containsKey("k5"));
+    }
+
+    @Test
+    public void putAllSwitchesToDictionary() {
+        Map<String, String> expected = new HashMap<String, String>();
+        for (int i = 0; i < 100; i++) {
+            expected.put("k" + i, "v" + i);
+        }
+        CompactHashMap<String, String> map = context.newMap();
+        map.putAll(expected);
+        Assert.assertSame(context.dictionary, map.klass);
+        Assert.assertEquals(expected, map);
+    }
+
+    @Test
+    public void dictionaryDoesNotCreateShapes() {
+        CompactHashMap<String, String> map = context.newMap();
+        for (int i = 0; i < 20; i++) {
+            map.put("dictionaryDoesNotCreateShapes" + i, "value");
+        }
+        int shapes = context.getShapeCount();
+        for (int i = 20; i < 1000; i++) {
+            map.put("dictionaryDoesNotCreateShapes" + i, "value");
+        }
+        Assert.assertEquals(shapes, context.getShapeCount());
+        Assert.assertEquals(1000, map.size());
+    }
+
+    @Test
+    public void fullTreeSwitchesToDictionary() {
+        CompactMapContext context = new CompactMapContext(0, this.context.getDictionaryThreshold());
+        CompactHashMap<String, String> map = context.newMap();
+        map.put("fullTreeSwitchesToDictionary", "value");
+        Assert.assertSame(context.dictionary, map.klass);
+        Assert.assertEquals("value", map.get("fullTreeSwitchesToDictionary"));
+    }
+
+    @Test
+    public void copiesAreIndependent() {
+        CompactHashMap<String, String> map = context.newMap();
+        for (int i = 0; i < 20; i++) {
+            map.put("k" + i, "v" + i);
+        }
+        CompactHashMap<String, String> clone = map.clone();
+        clone.put("k1", "clone");
+        clone.remove("k2");
+        Assert.assertEquals("v1", map.get("k1"));
+        Assert.assertEquals("v2", map.get("k2"));
+        Assert.assertEquals(20, map.size());
+        Assert.assertEquals(19, clone.size());
+    }
+
+    @Test
+    public void keyHandleReadsDictionary() {
+        CompactHashMapKeyHandle<String, String> handle = CompactHashMap.handle("k15");
+        CompactHashMap<String, String> map = context.newMap();
+        for (int i = 0; i < 20; i++) {
+            map.put("k" + i, "v" + i);
+        }
+        Assert.assertEquals("v15", handle.get(map));
+        Assert.assertEquals("v15", handle.put(map, "new"));
+        Assert.assertEquals("new", map.get("k15"));
+    }
+
+    @Test
+    public void dictionaryIsSerializable() throws IOException, ClassNotFoundException {
+        // Deserialization creates maps in the default context
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        for (int i = 0; i < CompactMapContext.getDefault().getDictionaryThreshold() + 10; i++) {
+            map.put("k" + i, "v" + i);
+        }
+        map.remove("k3");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(map);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        CompactHashMap<String, String> deserialized = (CompactHashMap<String, String>) ois.readObject();
+        Assert.assertEquals(map, deserialized);
+        Assert.assertSame(CompactMapContext.getDefault().dictionary, deserialized.klass);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+public class CompactHashMapClassEmptyDefaultsTest {
+    private static int collectShapes(int expected) throws InterruptedException {
+        int shapes = CompactHashMapStats.getShapeCount();
+        for (int i = 0; i < 100 && shapes > expected; i++) {
+            System.gc();
+            Thread.sleep(10);
+            shapes = CompactHashMapStats.getShapeCount();
+        }
+        return shapes;
+    }
+
+    @Test
+    public void unusedShapesAreCollected() throws InterruptedException {
+        int initial = CompactHashMapStats.getShapeCount();
+        for (int i = 0; i < 10000; i++) {
+            CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+            map.put("unique" + i, "value");
+            map.put("second", "value");
+        }
+        Assert.assertTrue("shapes should be created", CompactHashMapStats.getShapeCount() > initial);
+        int shapes = collectShapes(initial + 100);
+        Assert.assertTrue("shapes should be collected, initial: " + initial + ", after gc: " + shapes,
+                shapes <= initial + 100);
+    }
+
+    @Test
+    public void usedShapesAreKept() throws InterruptedException {
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        map.put("usedShapesAreKept1", "value");
+        map.put("usedShapesAreKept2", "value");
+        collectShapes(0);
+
+        CompactHashMap<String, String> sameKeys = new CompactHashMap<String, String>();
+        sameKeys.put("usedShapesAreKept1", "value2");
+        sameKeys.put("usedShapesAreKept2", "value2");
+        Assert.assertSame(map.klass, sameKeys.klass);
+    }
+
+    @Test
+    public void shapesAreNotSharedWhenTreeIsFull() {
+        CompactMapContext context = new CompactMapContext(1);
+        CompactHashMapClassEmptyDefaults<String, String> root =
+                (CompactHashMapClassEmptyDefaults<String, String>) context.root;
+        CompactHashMapClassEmptyDefaults<String, String> shared = root.getNextKlass("treeIsFull");
+        Assert.assertTrue(shared.isShared());
+        Assert.assertSame(shared, root.getNextKlass("treeIsFull"));
+
+        CompactHashMapClassEmptyDefaults<String, String> a = root.getNextKlass("treeIsFull2");
+        CompactHashMapClassEmptyDefaults<String, String> b = root.getNextKlass("treeIsFull2");
+        Assert.assertNotSame(a, b);
+        Assert.assertFalse(a.isShared());
+        Assert.assertFalse(a.getNextKlass("treeIsFull3").isShared());
+        Assert.assertEquals(1, a.keyCount);
+        Assert.assertEquals(1, context.getShapeCount());
+    }
+
+    @Test
+    public void concurrentTransitionsResolveTheSameClass() throws InterruptedException {
+        final int threads = 8;
+        // More next keys than the array of transitions holds, so the concurrent map is used as well
+        final int nextKeys = 20;
+        final CompactHashMapClassEmptyDefaults<String, String> root =
+                (CompactHashMapClassEmptyDefaults<String, String>) CompactHashMapClass.EMPTY;
+        final CompactHashMapClassEmptyDefaults<String, String> first = root.getNextKlass("concurrent");
+        final Object[][] results = new Object[threads][nextKeys];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < nextKeys; i++) {
+                        // Threads add the keys in different order
+                        int key = (i + thread * 3) % nextKeys;
+                        results[thread][key] = first.getNextKlass("concurrent" + key);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (int i = 0; i < nextKeys; i++) {
+            CompactHashMapClassEmptyDefaults<String, String> expected = first.getNextKlass("concurrent" + i);
+            Assert.assertTrue(expected.isShared());
+            for (int t = 0; t < threads; t++) {
+                Assert.assertSame("thread " + t + ", key " + i, expected, results[t][i]);
+            }
+        }
+    }
+}
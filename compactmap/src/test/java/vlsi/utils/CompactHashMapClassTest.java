@@ -78,6 +78,29 @@ public class CompactHashMapClassTest {
         Assert.assertEquals(map.klass.getDefaultValues().size(), 0);
     }
 
+    @Test
+    public void ancestorClassIgnoresKeysOfDescendants() {
+        CompactHashMap<String, String> small = new CompactHashMap<String, String>();
+        CompactHashMap<String, String> large = new CompactHashMap<String, String>();
+        for (int i = 0; i < 10; i++) {
+            if (i < 5) {
+                small.put("k" + i, "v" + i);
+            }
+            large.put("k" + i, "v" + i);
+        }
+        // Make classes hot, so they build the index
+        for (int j = 0; j < 100; j++) {
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(large.get("k" + i), "v" + i);
+                Assert.assertEquals(small.get("k" + i), i < 5 ? "v" + i : null);
+                Assert.assertEquals(small.containsKey("k" + i), i < 5);
+            }
+        }
+        Assert.assertEquals(small.size(), 5);
+        Assert.assertEquals(small.keySet(), new java.util.HashSet<String>(
+                java.util.Arrays.asList("k0", "k1", "k2", "k3", "k4")));
+    }
+
     @Test
     public void putDefault() {
         CompactHashMapDefaultValues.add("default"); // all values are default
@@ -124,6 +147,18 @@ public class CompactHashMapClassTest {
         Assert.assertEquals(map.klass.getDefaultValues().size(), 0);
     }
 
+    @Test
+    public void putSameDefaultKeepsClass() {
+        CompactHashMapDefaultValues.add("test", "testDefaultValue");
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        map.put("test", "testDefaultValue");
+        CompactHashMapClass<String, String> klass = map.klass;
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(map.put("test", "testDefaultValue"), "testDefaultValue");
+            Assert.assertSame(klass, map.klass);
+        }
+    }
+
     @Test
     public void putDefaultAndRegular() {
         CompactHashMapDefaultValues.add("default");
@@ -165,6 +200,111 @@ public class CompactHashMapClassTest {
         Assert.assertFalse(map.containsKey("charset"));
     }
 
+    @Test
+    public void copiesAreIndependent() {
+        CompactHashMapDefaultValues.add("k1", "v1");
+        for (int size = 0; size < 10; size++) {
+            CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+            for (int i = 0; i < size; i++) {
+                map.put("k" + i, "v" + i);
+            }
+            map.remove("k0");
+            Map<String, String> expected = new HashMap<String, String>(map);
+
+            CompactHashMap<String, String> copy = new CompactHashMap<String, String>(map);
+            CompactHashMap<String, String> clone = map.clone();
+            Assert.assertSame(map.klass, copy.klass);
+            Assert.assertSame(map.klass, clone.klass);
+            Assert.assertEquals(expected, copy);
+            Assert.assertEquals(expected, clone);
+
+            for (int i = 0; i < size + 2; i++) {
+                copy.put("k" + i, "copy" + i);
+                clone.remove("k" + i);
+            }
+            Assert.assertEquals(expected, map);
+            Assert.assertEquals(size + 2, copy.size());
+            Assert.assertEquals("copy1", copy.get("k1"));
+            Assert.assertEquals(0, clone.size());
+        }
+    }
+
+    @Test
+    public void putAllResolvesTheSameClassAsPut() {
+        CompactHashMapDefaultValues.add("k1", "v1");
+        CompactHashMapDefaultValues.add("k3");
+        for (int size = 0; size < 10; size++) {
+            Map<String, String> source = new java.util.LinkedHashMap<String, String>();
+            for (int i = 0; i < size; i++) {
+                source.put("k" + i, "v" + i);
+            }
+            for (int prefix = 0; prefix < 7; prefix++) {
+                // The target map already has some keys, and some of them are overwritten by putAll
+                CompactHashMap<String, String> expected = new CompactHashMap<String, String>();
+                CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+                for (int i = 0; i < prefix; i++) {
+                    expected.put("k" + (i * 2), "prefix" + i);
+                    map.put("k" + (i * 2), "prefix" + i);
+                }
+                for (Map.Entry<String, String> entry : source.entrySet()) {
+                    expected.put(entry.getKey(), entry.getValue());
+                }
+                map.putAll(source);
+                Assert.assertSame("size=" + size + ", prefix=" + prefix, expected.klass, map.klass);
+                Assert.assertEquals(expected, map);
+                Assert.assertEquals(new HashMap<String, String>(expected), map);
+            }
+        }
+    }
+
+    @Test
+    public void defaultsSurviveClear() {
+        CompactHashMapDefaultValues.add("k1", "v1");
+        CompactHashMapDefaultValues.add("k2", "v2");
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        map.put("k1", "v1");
+        map.put("k2", "v2");
+        CompactHashMapDefaultValues.clear();
+
+        Map<String, String> source = new HashMap<String, String>();
+        source.put("k1", "new");
+        source.put("k3", "v3");
+        map.putAll(source);
+        Assert.assertEquals("new", map.get("k1"));
+        Assert.assertEquals("v2", map.get("k2"));
+        Assert.assertEquals(3, map.size());
+
+        Assert.assertEquals("v2", map.remove("k2"));
+        Assert.assertFalse(map.containsKey("k2"));
+        Assert.assertEquals(2, map.size());
+    }
+
+    @Test
+    public void removedEntriesAreDeserialized() throws IOException, ClassNotFoundException {
+        CompactHashMapDefaultValues.add("k1", "v1");
+        CompactHashMap<String, Object> map = new CompactHashMap<String, Object>();
+        for (int i = 0; i < 6; i++) {
+            map.put("k" + i, "v" + i);
+        }
+        map.remove("k2");
+        map.remove("k4");
+
+        CompactHashMap<String, Object> deserialized = serialize(map);
+        Assert.assertSame(map.klass, deserialized.klass);
+        Assert.assertEquals(map, deserialized);
+        Assert.assertFalse(deserialized.containsKey("k2"));
+    }
+
+    @Test
+    public void putAfterRemoveReturnsNull() {
+        CompactHashMap<String, Object> map = new CompactHashMap<String, Object>();
+        map.put("charset", "UTF-8");
+        map.remove("charset");
+        Assert.assertEquals(map.remove("charset"), null);
+        Assert.assertEquals(map.put("charset", "UTF-16"), null);
+        Assert.assertEquals(map.get("charset"), "UTF-16");
+    }
+
     @Test
     public void cmpactHashMapInstanceShouldBeSerializable() throws IOException, ClassNotFoundException {
         CompactHashMap<String, Object> map = new CompactHashMap<String, Object>();
@@ -198,6 +338,40 @@ public class CompactHashMapClassTest {
         Assert.assertEquals(deserialized.get("k2"), "v2");
     }
 
+    @Test
+    public void deserializedMapReusesClass() throws IOException, ClassNotFoundException {
+        CompactHashMapDefaultValues.add("k1", "v1");
+        CompactHashMapDefaultValues.add("k3", "v3");
+        CompactHashMap<String, Object> map = new CompactHashMap<String, Object>();
+        for (int i = 0; i < 8; i++) {
+            map.put("k" + i, "v" + i);
+        }
+        map.put(null, "null");
+        map.remove("k4");
+
+        CompactHashMap<String, Object> deserialized = serialize(map);
+        Assert.assertSame(map.klass, deserialized.klass);
+        Assert.assertEquals(map, deserialized);
+        Assert.assertEquals(1, deserialized.klass.getRemovedSlots());
+        Assert.assertEquals(map.size(), deserialized.size());
+        deserialized.put("k4", "v4");
+        Assert.assertEquals(map.size() + 1, deserialized.size());
+    }
+
+    @Test
+    public void deserializationRegistersNewDefaults() throws IOException, ClassNotFoundException {
+        CompactHashMap<String, Object> map = new CompactHashMap<String, Object>();
+        for (int i = 0; i < 5; i++) {
+            map.put("k" + i, "v" + i);
+        }
+        // The value was in a slot when the map was written, however the reader stores it in the class
+        CompactHashMapDefaultValues.add("k2", "v2");
+        CompactHashMap<String, Object> deserialized = serialize(map);
+        Assert.assertEquals(map, deserialized);
+        Assert.assertEquals(1, deserialized.klass.getDefaultValues().size());
+        Assert.assertEquals(4, deserialized.klass.keyCount);
+    }
+
     @Test
     public void defaultAndRegularValuesAreDeserialized() throws IOException, ClassNotFoundException {
         CompactHashMapDefaultValues.add("k1", "v1");
@@ -247,4 +421,216 @@ public class CompactHashMapClassTest {
         }));
         Assert.assertEquals(map.size(), 0);
     }
+
+    @Test
+    public void removeLastKeyReturnsToParentClass() {
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        CompactHashMap<String, String> expected = new CompactHashMap<String, String>();
+        for (int i = 0; i < 6; i++) {
+            map.put("k" + i, "v" + i);
+            if (i < 2) {
+                expected.put("k" + i, "v" + i);
+            }
+        }
+        map.remove("k2");
+        map.remove("k3");
+        map.remove("k5");
+        Assert.assertEquals(5, map.klass.keyCount);
+        map.remove("k4");
+        // k5, k4, and the earlier removed k3 and k2 are dropped
+        Assert.assertSame(expected.klass, map.klass);
+        Assert.assertEquals(expected, map);
+        map.put("k6", "v6");
+        Assert.assertEquals("v6", map.get("k6"));
+        Assert.assertEquals(3, map.size());
+    }
+
+    @Test
+    public void compactMovesToClassOfLiveKeys() {
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        CompactHashMap<String, String> expected = new CompactHashMap<String, String>();
+        for (int i = 0; i < 20; i++) {
+            map.put("k" + i, "v" + i);
+            if (i % 3 == 0) {
+                expected.put("k" + i, "v" + i);
+            }
+        }
+        for (int i = 0; i < 20; i++) {
+            if (i % 3 != 0) {
+                map.remove("k" + i);
+            }
+        }
+        map.compact();
+        Assert.assertSame(expected.klass, map.klass);
+        Assert.assertEquals(expected, map);
+        Assert.assertEquals(6, ((Object[]) map.v1).length);
+    }
+
+    @Test
+    public void growthCompactsRemovedSlots() {
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        // 12 keys fill the array of 10 elements
+        for (int i = 0; i < 12; i++) {
+            map.put("k" + i, "v" + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            map.remove("k" + i);
+        }
+        map.put("new", "value");
+        Assert.assertEquals(3, map.klass.keyCount);
+        Assert.assertEquals(3, map.size());
+        Assert.assertEquals("v10", map.get("k10"));
+        Assert.assertEquals("v11", map.get("k11"));
+        Assert.assertEquals("value", map.get("new"));
+    }
+
+    @Test
+    public void sizeTracksRemovedSlots() throws IOException, ClassNotFoundException {
+        CompactHashMapDefaultValues.add("k1", "default");
+        java.util.Random rnd = new java.util.Random(42);
+        CompactHashMap<String, Object> map = new CompactHashMap<String, Object>();
+        Map<String, Object> expected = new HashMap<String, Object>();
+        for (int i = 0; i < 10000; i++) {
+            String key = "k" + rnd.nextInt(30);
+            switch (rnd.nextInt(8)) {
+                case 0:
+                    Assert.assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                case 1:
+                    Assert.assertEquals(expected.put(key, "default"), map.put(key, "default"));
+                    break;
+                case 2:
+                    Map<String, Object> batch = new HashMap<String, Object>();
+                    batch.put(key, "batch");
+                    batch.put("k" + rnd.nextInt(30), "batch" + i);
+                    expected.putAll(batch);
+                    map.putAll(batch);
+                    break;
+                case 3:
+                    map = rnd.nextBoolean() ? map.clone() : serialize(map);
+                    break;
+                default:
+                    Assert.assertEquals(expected.put(key, "v" + i), map.put(key, "v" + i));
+            }
+            Assert.assertEquals(expected.size(), map.size());
+            Assert.assertEquals(expected, map);
+        }
+    }
+
+    @Test
+    public void removalMovesMapToVariationOfClass() {
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        CompactHashMap<String, String> other = new CompactHashMap<String, String>();
+        for (int i = 0; i < 6; i++) {
+            map.put("k" + i, "v" + i);
+            other.put("k" + i, "v" + i);
+        }
+        CompactHashMapClass<String, String> klass = map.klass;
+        map.remove("k1");
+        other.remove("k3");
+        // The maps have the same keys and the same number of removed slots, so they share the class
+        Assert.assertEquals(1, map.klass.getRemovedSlots());
+        Assert.assertSame(map.klass, other.klass);
+        Assert.assertEquals(5, map.size());
+        map.put("k1", "v1");
+        Assert.assertSame(klass, map.klass);
+        Assert.assertEquals(6, map.size());
+    }
+
+    @Test
+    public void nullDefaultValue() {
+        Assert.assertTrue(CompactHashMapDefaultValues.add("k1", null));
+        Assert.assertFalse(CompactHashMapDefaultValues.add("k1", null));
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        map.put("k1", null);
+        Assert.assertTrue(map.containsKey("k1"));
+        Assert.assertEquals(1, map.klass.getDefaultValues().size());
+    }
+
+    @Test
+    public void concurrentDefaultsResolveTheSameClass() throws InterruptedException {
+        final int threads = 8;
+        final int keys = 20;
+        for (int i = 0; i < keys; i++) {
+            CompactHashMapDefaultValues.add("k" + i, "v" + i);
+        }
+        final Object[] classes = new Object[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+                    for (int i = 0; i < keys; i++) {
+                        map.put("k" + i, "v" + i);
+                    }
+                    classes[thread] = map.klass;
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (int t = 0; t < threads; t++) {
+            Assert.assertSame("thread " + t, classes[0], classes[t]);
+        }
+        Assert.assertEquals(keys, ((CompactHashMapClass) classes[0]).getDefaultValues().size());
+    }
+
+    @Test
+    public void sameClassEqualsComparesSlots() {
+        CompactHashMapDefaultValues.add("k1", "v1");
+        CompactHashMap<String, String> a = new CompactHashMap<String, String>();
+        CompactHashMap<String, String> b = new CompactHashMap<String, String>();
+        for (int i = 0; i < 7; i++) {
+            a.put("k" + i, "v" + i);
+            b.put("k" + i, "v" + i);
+        }
+        a.put(null, null);
+        b.put(null, null);
+        Assert.assertSame(a.klass, b.klass);
+        Assert.assertEquals(a, b);
+        Assert.assertEquals(new HashMap<String, String>(a).hashCode(), a.hashCode());
+
+        b.put("k5", null);
+        Assert.assertFalse(a.equals(b));
+        Assert.assertFalse(b.equals(a));
+        Assert.assertEquals(new HashMap<String, String>(b).hashCode(), b.hashCode());
+
+        // Same class and size, but the removed slots differ
+        a.remove("k2");
+        b.remove("k3");
+        b.put("k5", "v5");
+        Assert.assertSame(a.klass, b.klass);
+        Assert.assertEquals(a.size(), b.size());
+        Assert.assertFalse(a.equals(b));
+        b.put("k3", "v3");
+        b.remove("k2");
+        Assert.assertEquals(a, b);
+        Assert.assertEquals(a.hashCode(), b.hashCode());
+        Assert.assertEquals(new HashMap<String, String>(a).hashCode(), a.hashCode());
+    }
+
+    @Test
+    public void dictionaryEqualsAndHashCode() {
+        CompactHashMap<String, String> a = new CompactHashMap<String, String>();
+        CompactHashMap<String, String> b = new CompactHashMap<String, String>();
+        for (int i = 0; i < 10; i++) {
+            a.put("k" + i, "v" + i);
+            b.put("k" + (9 - i), "v" + (9 - i));
+        }
+        a.put(null, "null");
+        b.put(null, "null");
+        CompactHashMapClassDictionary.toDictionary(a, 0);
+        CompactHashMapClassDictionary.toDictionary(b, 100);
+        Assert.assertSame(a.klass, b.klass);
+        Assert.assertEquals(a, b);
+        Assert.assertEquals(new HashMap<String, String>(a).hashCode(), a.hashCode());
+        Assert.assertEquals(a.hashCode(), b.hashCode());
+        b.put("k4", null);
+        Assert.assertFalse(a.equals(b));
+        Assert.assertFalse(b.equals(a));
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompactHashMapKeyHandleTest {
+    @Before
+    public void clearDefaults() {
+        CompactHashMapDefaultValues.clear();
+    }
+
+    @Test
+    public void handleReadsAllSlotKinds() {
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        for (int size = 0; size < 10; size++) {
+            // Maps of different sizes store the same key in v3, v2, v1 or in the array
+            for (int i = 0; i < 10; i++) {
+                CompactHashMapKeyHandle<String, String> handle = CompactHashMap.handle("k" + i);
+                for (int j = 0; j < 3; j++) {
+                    Assert.assertEquals("k" + i + ", size " + size, i < size ? "v" + i : null, handle.get(map));
+                    Assert.assertEquals("k" + i + ", size " + size, i < size, handle.containsKey(map));
+                }
+            }
+            map.put("k" + size, "v" + size);
+        }
+    }
+
+    @Test
+    public void handleServesSeveralClasses() {
+        CompactHashMapKeyHandle<String, String> id = CompactHashMap.handle("id");
+        CompactHashMap<String, String>[] maps = new CompactHashMap[6];
+        for (int i = 0; i < maps.length; i++) {
+            maps[i] = new CompactHashMap<String, String>();
+            for (int j = 0; j < i; j++) {
+                maps[i].put("x" + j, "y");
+            }
+            maps[i].put("id", "id" + i);
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < maps.length; i++) {
+                Assert.assertEquals("id" + i, id.get(maps[i]));
+            }
+        }
+    }
+
+    @Test
+    public void handleReadsDefaults() {
+        CompactHashMapDefaultValues.add("type", "default");
+        CompactHashMapKeyHandle<String, String> type = CompactHashMap.handle("type");
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        Assert.assertFalse(type.containsKey(map));
+        map.put("type", "default");
+        Assert.assertEquals("default", type.get(map));
+        Assert.assertTrue(type.containsKey(map));
+        Assert.assertEquals("default", type.put(map, "custom"));
+        Assert.assertEquals("custom", type.get(map));
+        Assert.assertEquals("custom", map.get("type"));
+    }
+
+    @Test
+    public void handlePutRespectsRemovedKeys() {
+        CompactHashMapKeyHandle<String, String> ts = CompactHashMap.handle("ts");
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        Assert.assertNull(ts.put(map, "1"));
+        Assert.assertEquals("1", ts.put(map, "2"));
+        map.remove("ts");
+        Assert.assertNull(ts.get(map));
+        Assert.assertEquals(0, map.size());
+        Assert.assertNull(ts.put(map, "3"));
+        Assert.assertEquals("3", map.get("ts"));
+        Assert.assertEquals(1, map.size());
+    }
+
+    @Test
+    public void nullKeyHandle() {
+        CompactHashMapKeyHandle<String, String> handle = CompactHashMap.handle(null);
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        Assert.assertFalse(handle.containsKey(map));
+        map.put(null, "null");
+        Assert.assertEquals("null", handle.get(map));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompactHashMapKeyIndexTest {
+    private static CompactHashMapKeyIndex index(Object... keys) {
+        return new CompactHashMapKeyIndex(keys);
+    }
+
+    private static void assertSlots(CompactHashMapKeyIndex index, Object... keys) {
+        Assert.assertEquals(keys.length, index.size());
+        for (int i = 0; i < keys.length; i++) {
+            Assert.assertEquals("slot of " + keys[i], i - 2, index.get(keys[i]));
+            Assert.assertEquals("key of slot " + (i - 2), keys[i], index.getKey(i - 2));
+        }
+    }
+
+    @Test
+    public void emptyIndexHasNoSlots() {
+        CompactHashMapKeyIndex index = index();
+        Assert.assertEquals(0, index.size());
+        Assert.assertEquals(CompactHashMapKeyIndex.NO_SLOT, index.get("test"));
+    }
+
+    @Test
+    public void slotsFollowInsertionOrder() {
+        for (int size = 1; size < 300; size++) {
+            Object[] keys = new Object[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = "key" + i;
+            }
+            CompactHashMapKeyIndex index = index(keys);
+            assertSlots(index, keys);
+            for (int i = 0; i < size; i++) {
+                Assert.assertEquals(CompactHashMapKeyIndex.NO_SLOT, index.get("missing" + i));
+            }
+        }
+    }
+
+    @Test
+    public void repeatedLookupsUseCachedSlots() {
+        Object[] keys = new Object[100];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key" + i;
+        }
+        CompactHashMapKeyIndex index = index(keys);
+        for (int round = 0; round < 3; round++) {
+            assertSlots(index, keys);
+            for (int i = 0; i < keys.length; i++) {
+                // Equal, yet not identical keys must not confuse the cache
+                Assert.assertEquals(i - 2, index.get(new String("key" + i)));
+                Assert.assertEquals(CompactHashMapKeyIndex.NO_SLOT, index.get("missing" + i));
+            }
+        }
+    }
+
+    @Test
+    public void sameHashCodeKeys() {
+        // "Aa" and "BB" have the same hashCode, so perfect hashing is not possible
+        Object[] keys = {"Aa", "BB", "AaAa", "BBBB", "AaBB", "BBAa", "x"};
+        CompactHashMapKeyIndex index = index(keys);
+        assertSlots(index, keys);
+        Assert.assertEquals(CompactHashMapKeyIndex.NO_SLOT, index.get("AaAaAa"));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompactMapContextTest {
+    @Before
+    @After
+    public void clearDefaults() {
+        CompactHashMapDefaultValues.clear();
+    }
+
+    @Test
+    public void contextsHaveTheirOwnDefaults() {
+        CompactMapContext context = new CompactMapContext();
+        context.addDefaultValue("k1", "v1");
+
+        CompactHashMap<String, String> map = context.newMap();
+        map.put("k1", "v1");
+        Assert.assertEquals(0, map.klass.keyCount);
+        Assert.assertEquals(1, map.klass.getDefaultValues().size());
+
+        CompactHashMap<String, String> defaultMap = new CompactHashMap<String, String>();
+        defaultMap.put("k1", "v1");
+        Assert.assertEquals(1, defaultMap.klass.keyCount);
+        Assert.assertEquals(map, defaultMap);
+    }
+
+    @Test
+    public void clearAffectsOneContext() {
+        CompactMapContext context = new CompactMapContext();
+        context.addDefaultKey("k1");
+        CompactHashMapDefaultValues.add("k1");
+
+        CompactHashMapDefaultValues.clear();
+        CompactHashMap<String, String> map = context.newMap();
+        map.put("k1", "any");
+        Assert.assertEquals(0, map.klass.keyCount);
+
+        context.clearDefaultValues();
+        map = context.newMap();
+        map.put("k1", "any");
+        Assert.assertEquals(1, map.klass.keyCount);
+    }
+
+    @Test
+    public void contextsDoNotShareShapes() {
+        CompactMapContext context = new CompactMapContext();
+        CompactHashMap<String, String> map = context.newMap();
+        map.put("contextsDoNotShareShapes", "value");
+        CompactHashMap<String, String> defaultMap = new CompactHashMap<String, String>();
+        defaultMap.put("contextsDoNotShareShapes", "value");
+
+        Assert.assertNotSame(map.klass, defaultMap.klass);
+        Assert.assertSame(context, map.klass.getContext());
+        Assert.assertEquals(1, context.getShapeCount());
+    }
+
+    @Test
+    public void mapsStayInTheirContext() {
+        CompactMapContext context = new CompactMapContext();
+        CompactHashMap<String, String> map = context.newMap();
+        map.put("k1", "v1");
+
+        Assert.assertSame(context, new CompactHashMap<String, String>(map).klass.getContext());
+        Assert.assertSame(context, map.clone().klass.getContext());
+
+        CompactHashMap<String, String> defaultMap = new CompactHashMap<String, String>();
+        defaultMap.putAll(map);
+        Assert.assertSame(CompactMapContext.getDefault(), defaultMap.klass.getContext());
+        Assert.assertEquals(map, defaultMap);
+
+        map.clear();
+        Assert.assertSame(context.root, map.klass);
+    }
+
+    @Test
+    public void shapesAreLimitedPerContext() {
+        CompactMapContext context = new CompactMapContext(1);
+        CompactHashMap<String, String> map = context.newMap();
+        map.put("k1", "v1");
+        map.put("k2", "v2");
+        Assert.assertSame(context.dictionary, map.klass);
+        Assert.assertEquals("v1", map.get("k1"));
+        Assert.assertEquals(1, context.getShapeCount());
+
+        map.clear();
+        Assert.assertSame(context.root, map.klass);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class CompactMapOutputTest {
+    private static byte[] write(List<CompactHashMap<String, Object>> maps) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        CompactMapOutput output = new CompactMapOutput(oos);
+        oos.writeInt(maps.size());
+        for (CompactHashMap<String, Object> map : maps) {
+            output.writeMap(map);
+        }
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    private static List<CompactHashMap<String, Object>> read(byte[] bytes, CompactMapContext context)
+            throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        CompactMapInput input = new CompactMapInput(ois, context);
+        int size = ois.readInt();
+        List<CompactHashMap<String, Object>> result = new ArrayList<CompactHashMap<String, Object>>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(input.<String, Object>readMap());
+        }
+        return result;
+    }
+
+    private static List<CompactHashMap<String, Object>> rows(CompactMapContext context, int count) {
+        List<CompactHashMap<String, Object>> maps = new ArrayList<CompactHashMap<String, Object>>();
+        for (int i = 0; i < count; i++) {
+            CompactHashMap<String, Object> map = context.newMap();
+            map.put("id", i);
+            map.put("name", "name" + i);
+            map.put("status", i % 3 == 0 ? "active" : "blocked");
+            if (i % 2 == 0) {
+                map.put("price", i * 1.5);
+                map.put(null, null);
+            }
+            if (i % 5 == 0) {
+                map.remove("name");
+            }
+            maps.add(map);
+        }
+        return maps;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        CompactMapContext context = new CompactMapContext();
+        context.addDefaultValue("status", "active");
+        List<CompactHashMap<String, Object>> maps = rows(context, 100);
+        CompactHashMap<String, Object> empty = context.newMap();
+        maps.add(empty);
+
+        List<CompactHashMap<String, Object>> result = read(write(maps), context);
+        Assert.assertEquals(maps, result);
+        for (int i = 0; i < maps.size(); i++) {
+            CompactHashMap<String, Object> map = maps.get(i);
+            CompactHashMap<String, Object> copy = result.get(i);
+            Assert.assertSame("class of map " + i, map.klass, copy.klass);
+            Assert.assertEquals("size of map " + i, map.size(), copy.size());
+            Assert.assertEquals("hashCode of map " + i, new HashMap<String, Object>(map).hashCode(), copy.hashCode());
+        }
+        // The maps of the same shape do not share values
+        result.get(2).put("id", -1);
+        Assert.assertEquals(4, result.get(4).get("id"));
+    }
+
+    @Test
+    public void keysAreWrittenOncePerShape() throws Exception {
+        CompactMapContext context = new CompactMapContext();
+        List<CompactHashMap<String, Object>> maps = new ArrayList<CompactHashMap<String, Object>>();
+        for (int i = 0; i < 1000; i++) {
+            CompactHashMap<String, Object> map = context.newMap();
+            for (int j = 0; j < 10; j++) {
+                map.put("column" + (i % 2) + "_" + j, j);
+            }
+            maps.add(map);
+        }
+        byte[] shapes = write(maps);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(maps);
+        oos.close();
+        Assert.assertTrue("shape table " + shapes.length + " should be smaller than writeObject " + bos.size(),
+                shapes.length * 2 < bos.size());
+        Assert.assertEquals(maps, read(shapes, context));
+    }
+
+    @Test
+    public void readingContextWithoutDefaults() throws Exception {
+        CompactMapContext context = new CompactMapContext();
+        context.addDefaultValue("status", "active");
+        List<CompactHashMap<String, Object>> maps = rows(context, 20);
+
+        CompactMapContext another = new CompactMapContext();
+        List<CompactHashMap<String, Object>> result = read(write(maps), another);
+        Assert.assertEquals(maps, result);
+        for (CompactHashMap<String, Object> map : result) {
+            Assert.assertSame(another, map.klass.getContext());
+            Assert.assertTrue(map.klass.getDefaultValues().isEmpty());
+        }
+    }
+
+    @Test
+    public void dictionaryMode() throws Exception {
+        CompactMapContext context = new CompactMapContext();
+        List<CompactHashMap<String, Object>> maps = rows(context, 3);
+        CompactHashMap<String, Object> large = context.newMap();
+        for (int i = 0; i < 10; i++) {
+            large.put("k" + i, i);
+        }
+        large.put(null, "null");
+        CompactHashMapClassDictionary.toDictionary(large, 0);
+        maps.add(large);
+
+        // The reading context has no room for shapes, so the maps with new shapes become dictionaries
+        CompactMapContext full = new CompactMapContext(0);
+        List<CompactHashMap<String, Object>> result = read(write(maps), full);
+        Assert.assertEquals(maps, result);
+        for (CompactHashMap<String, Object> map : result) {
+            Assert.assertTrue(map.klass instanceof CompactHashMapClassDictionary);
+        }
+        result.get(0).put("id", -1);
+        Assert.assertEquals(0, maps.get(0).get("id"));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class CompactMapShapeTest {
+    @Before
+    @After
+    public void clearDefaults() {
+        CompactHashMapDefaultValues.clear();
+    }
+
+    private static String[] keys(int size) {
+        String[] keys = new String[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = "shape" + i;
+        }
+        return keys;
+    }
+
+    @Test
+    public void shapeMapsShareClassWithIncrementalMaps() {
+        for (int size = 0; size < 12; size++) {
+            String[] keys = keys(size);
+            Object[] values = new Object[size];
+            CompactHashMap<String, Object> expected = new CompactHashMap<String, Object>();
+            for (int i = 0; i < size; i++) {
+                values[i] = "value" + i;
+                expected.put(keys[i], values[i]);
+            }
+            CompactHashMap<String, Object> map = CompactMapShape.<String, Object>of(keys).newMap(values);
+            Assert.assertSame("size " + size, expected.klass, map.klass);
+            Assert.assertEquals(expected, map);
+            Assert.assertEquals(size, map.size());
+            if (size > 3) {
+                Assert.assertEquals(size - 2 + (size & 1), ((Object[]) map.v1).length);
+            }
+        }
+    }
+
+    @Test
+    public void shapeMapsSwitchToDictionaryLikeIncrementalMaps() {
+        CompactMapContext context = new CompactMapContext(100000, 10);
+        for (int size = 9; size <= 11; size++) {
+            String[] keys = keys(size);
+            Object[] values = new Object[size];
+            CompactHashMap<String, Object> expected = context.newMap();
+            for (int i = 0; i < size; i++) {
+                values[i] = "value" + i;
+                expected.put(keys[i], values[i]);
+            }
+            CompactMapShape<String, Object> shape = context.shape(keys);
+            CompactHashMap<String, Object> map = shape.newMap(values);
+            Assert.assertEquals("dictionary mode of size " + size,
+                    size > context.getDictionaryThreshold(), map.klass == context.dictionary);
+            if (map.klass != context.dictionary) {
+                Assert.assertSame("size " + size, expected.klass, map.klass);
+                // The empty map of the shape is created right in the final class, just its slots are removed
+                CompactHashMap<String, Object> empty = shape.newMap();
+                Assert.assertEquals("removed slots of size " + size, size, empty.klass.getRemovedSlots());
+                for (int i = 0; i < size; i++) {
+                    empty.put(keys[i], values[i]);
+                }
+                Assert.assertSame("empty map of size " + size, expected.klass, empty.klass);
+            }
+            Assert.assertEquals(expected, map);
+        }
+    }
+
+    @Test
+    public void emptyMapHasSlotsForKeys() {
+        String[] keys = keys(6);
+        CompactMapShape<String, Object> shape = CompactMapShape.of(keys);
+        CompactHashMap<String, Object> map = shape.newMap();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertNull(map.get("shape1"));
+        Object array = map.v1;
+        for (int i = 5; i >= 0; i--) {
+            map.put(keys[i], "value" + i);
+            Assert.assertEquals(6 - i, map.size());
+        }
+        CompactHashMap<String, Object> expected = shape.newMap("value0", "value1", "value2", "value3", "value4", "value5");
+        // The map keeps the slots, and it ends up in the class of the full map
+        Assert.assertSame(expected.klass, map.klass);
+        Assert.assertSame(array, map.v1);
+        Assert.assertEquals("value3", map.get("shape3"));
+        Assert.assertEquals(expected, map);
+    }
+
+    @Test
+    public void defaultValuesAreKeptInClass() {
+        CompactHashMapDefaultValues.add("shape1", "default");
+        CompactHashMap<String, Object> expected = new CompactHashMap<String, Object>();
+        expected.put("shape0", "value");
+        expected.put("shape1", "default");
+        CompactHashMap<String, Object> map = CompactMapShape.<String, Object>of("shape0", "shape1").newMap("value", "default");
+        Assert.assertSame(expected.klass, map.klass);
+    }
+
+    @Test
+    public void nullKey() {
+        CompactMapShape<String, Object> shape = CompactMapShape.of("a", null);
+        Assert.assertEquals(Arrays.asList("a", null), shape.getKeys());
+        CompactHashMap<String, Object> map = shape.newMap("b", "c");
+        Assert.assertEquals("c", map.get(null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateKeys() {
+        CompactMapShape.of("a", "b", "a");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongNumberOfValues() {
+        CompactMapShape.of("a", "b").newMap("a");
+    }
+
+    @Test
+    public void shapeOfContext() {
+        CompactMapContext context = new CompactMapContext();
+        CompactHashMap<String, Object> map = context.<String, Object>shape("a", "b").newMap("1", "2");
+        Assert.assertSame(context, map.klass.getContext());
+        CompactHashMap<String, Object> expected = context.newMap();
+        expected.put("a", "1");
+        expected.put("b", "2");
+        Assert.assertSame(expected.klass, map.klass);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class CompactMapStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // 4 KiB segments, so the tests cross the segment boundaries
+    private static final int SEGMENT_SHIFT = 12;
+
+    private static CompactMapStore open(File file) throws IOException {
+        return open(file, CompactMapContext.getDefault());
+    }
+
+    private static CompactMapStore open(File file, CompactMapContext context) throws IOException {
+        return CompactMapStore.open(file, context, SEGMENT_SHIFT);
+    }
+
+    @Test
+    public void recordsSurviveReopen() throws IOException {
+        CompactMapContext context = new CompactMapContext();
+        context.addDefaultValue("status", "active");
+        File file = new File(folder.getRoot(), "rows.cms");
+
+        List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+        List<Long> ids = new ArrayList<Long>();
+        CompactMapStore store = open(file, context);
+        for (int i = 0; i < 300; i++) {
+            CompactHashMap<String, Object> row = MapFixtures.row(context, i);
+            rows.add(new HashMap<String, Object>(row));
+            ids.add(store.add(row));
+        }
+        int shapeCount = store.getShapeCount();
+        Assert.assertTrue("shapes: " + shapeCount, shapeCount < 10);
+        for (int i = 0; i < rows.size(); i++) {
+            Assert.assertEquals("record " + i, rows.get(i), store.get(ids.get(i)));
+        }
+        store.close();
+
+        store = open(file, context);
+        Assert.assertEquals(shapeCount, store.getShapeCount());
+        long id = store.firstId();
+        for (int i = 0; i < rows.size(); i++) {
+            Assert.assertEquals("id of record " + i, (long) ids.get(i), id);
+            Map<String, Object> expected = rows.get(i);
+            Map<String, Object> view = store.get(id);
+            Assert.assertEquals("record " + i, expected, view);
+            Assert.assertEquals("hashCode of record " + i, expected.hashCode(), view.hashCode());
+            Assert.assertEquals("size of record " + i, expected.size(), view.size());
+            Assert.assertEquals("status of record " + i, expected.get("status"), view.get("status"));
+            Assert.assertEquals("null key of record " + i, expected.containsKey(null), view.containsKey(null));
+            Assert.assertEquals("name of record " + i, expected.containsKey("name"), view.containsKey("name"));
+            CompactHashMap<String, Object> copy = store.read(id);
+            Assert.assertEquals("copy of record " + i, expected, copy);
+            Assert.assertSame(context, copy.klass.getContext());
+            id = store.nextId(id);
+        }
+        Assert.assertEquals(-1, id);
+
+        // The known shapes are reused after reopen
+        store.add(MapFixtures.row(context, 1));
+        Assert.assertEquals(shapeCount, store.getShapeCount());
+        store.close();
+    }
+
+    @Test
+    public void viewIsReadOnly() throws IOException {
+        CompactMapStore store = open(new File(folder.getRoot(), "ro.cms"));
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("a", "b");
+        Map<String, Object> view = store.get(store.add(map));
+        try {
+            view.put("a", "c");
+            Assert.fail("put should fail");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+        try {
+            view.entrySet().iterator().next().setValue("c");
+            Assert.fail("setValue should fail");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+        Assert.assertEquals("{a=b}", view.toString());
+        store.close();
+    }
+
+    @Test
+    public void dictionaryMaps() throws IOException {
+        CompactMapStore store = open(new File(folder.getRoot(), "dictionary.cms"));
+        CompactHashMap<String, Object> map = new CompactHashMap<String, Object>();
+        for (int i = 0; i < 20; i++) {
+            map.put("k" + i, i);
+        }
+        CompactHashMapClassDictionary.toDictionary(map, 0);
+        long id = store.add(map);
+        Assert.assertEquals(map, store.get(id));
+        Assert.assertEquals(map, store.read(id));
+        Assert.assertEquals(-1, store.nextId(id));
+        Assert.assertEquals(id, store.firstId());
+        store.close();
+    }
+
+    @Test
+    public void lookupsInLongRecords() throws IOException {
+        // 256 KiB segments, so the second record needs 4-byte value offsets
+        CompactMapStore store = CompactMapStore.open(new File(folder.getRoot(), "long.cms"),
+                CompactMapContext.getDefault(), 18);
+        char[] chars = new char[200];
+        Arrays.fill(chars, 'x');
+        String padding = new String(chars);
+        for (int keys : new int[]{300, 500}) {
+            CompactHashMap<String, Object> map = new CompactHashMap<String, Object>();
+            for (int i = 0; i < keys; i++) {
+                map.put("k" + i, i % 3 == 0 ? padding + i : (Object) i);
+            }
+            map.remove("k7");
+            long id = store.add(map);
+            Map<String, Object> view = store.get(id);
+            for (int i = keys - 1; i >= 0; i--) {
+                Assert.assertEquals("k" + i + " of " + keys, map.get("k" + i), view.get("k" + i));
+                Assert.assertEquals("k" + i + " of " + keys, map.containsKey("k" + i), view.containsKey("k" + i));
+            }
+            Assert.assertEquals(map, view);
+            Assert.assertEquals(map, store.read(id));
+        }
+        store.close();
+    }
+
+    @Test
+    public void emptyStore() throws IOException {
+        File file = new File(folder.getRoot(), "empty.cms");
+        CompactMapStore store = open(file);
+        Assert.assertEquals(-1, store.firstId());
+        store.close();
+        store = open(file);
+        Assert.assertEquals(-1, store.firstId());
+        Assert.assertEquals(0, store.getShapeCount());
+        try {
+            store.get(100);
+            Assert.fail("get should fail");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        store.close();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class CompactMapTableTest {
+    @Test
+    public void rowsAndColumns() {
+        CompactMapContext context = new CompactMapContext();
+        context.addDefaultValue("status", "active");
+        List<Map<String, Object>> expected = new ArrayList<Map<String, Object>>();
+        List<CompactHashMap<String, Object>> rows = new ArrayList<CompactHashMap<String, Object>>();
+        for (int i = 0; i < 200; i++) {
+            CompactHashMap<String, Object> row = MapFixtures.row(context, i);
+            expected.add(new HashMap<String, Object>(row));
+            rows.add(row);
+        }
+        CompactMapTable<String, Object> table = new CompactMapTable<String, Object>(context);
+        table.addAll(rows.subList(0, 100));
+        for (CompactHashMap<String, Object> row : rows.subList(100, rows.size())) {
+            table.add(row);
+        }
+        // The table keeps snapshots
+        rows.get(1).put("name", "changed");
+
+        Assert.assertEquals(200, table.size());
+        Assert.assertTrue("groups: " + table.getGroupCount(), table.getGroupCount() < 10);
+        for (int i = 0; i < expected.size(); i++) {
+            Map<String, Object> map = expected.get(i);
+            Map<String, Object> view = table.get(i);
+            Assert.assertEquals("row " + i, map, view);
+            Assert.assertEquals("view " + i, view, map);
+            Assert.assertEquals("hashCode of row " + i, map.hashCode(), view.hashCode());
+            Assert.assertEquals("size of row " + i, map.size(), view.size());
+            Assert.assertEquals("status of row " + i, map.get("status"), view.get("status"));
+            Assert.assertEquals("null key of row " + i, map.containsKey(null), view.containsKey(null));
+            Assert.assertEquals("name of row " + i, map.containsKey("name"), view.containsKey("name"));
+            CompactHashMap<String, Object> copy = table.toMap(i);
+            Assert.assertEquals("copy of row " + i, map, copy);
+            Assert.assertSame("class of row " + i, rows.get(i).klass, copy.klass);
+            copy.put("extra", i);
+            Assert.assertEquals(i, copy.get("extra"));
+        }
+
+        int n = 0;
+        for (Map<String, Object> view : table) {
+            Assert.assertEquals(expected.get(n++), view);
+        }
+        Assert.assertEquals(200, n);
+
+        Object[] names = table.column("name");
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals("name of row " + i, expected.get(i).get("name"), names[i]);
+        }
+        for (String key : new String[]{"name", "price", "status", null}) {
+            int prevRow = -1;
+            CompactMapTable.ColumnCursor<Object> cursor = table.scan(key);
+            while (cursor.next()) {
+                for (int i = prevRow + 1; i < cursor.row(); i++) {
+                    Assert.assertFalse(key + " in row " + i, expected.get(i).containsKey(key));
+                }
+                Map<String, Object> map = expected.get(cursor.row());
+                Assert.assertTrue(key + " in row " + cursor.row(), map.containsKey(key));
+                Assert.assertEquals(key + " in row " + cursor.row(), map.get(key), cursor.value());
+                prevRow = cursor.row();
+            }
+            for (int i = prevRow + 1; i < expected.size(); i++) {
+                Assert.assertFalse(key + " in row " + i, expected.get(i).containsKey(key));
+            }
+            Assert.assertFalse(cursor.next());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void manySmallBatches() {
+        // The arrays grow geometrically, so the batches do not copy the whole table each time
+        CompactMapContext context = new CompactMapContext();
+        CompactMapTable<String, Object> table = new CompactMapTable<String, Object>(context);
+        List<CompactHashMap<String, Object>> batch = new ArrayList<CompactHashMap<String, Object>>();
+        int rows = 500000;
+        for (int i = 0; i < rows; i++) {
+            batch.add(MapFixtures.row(context, i % 30));
+            if (batch.size() == 5) {
+                table.addAll(batch);
+                batch.clear();
+            }
+        }
+        Assert.assertEquals(rows, table.size());
+        for (int i = 0; i < rows; i += 997) {
+            Assert.assertEquals("row " + i, MapFixtures.row(context, i % 30), table.get(i));
+        }
+    }
+
+    @Test
+    public void plainAndDictionaryMaps() {
+        CompactMapTable<String, Object> table = new CompactMapTable<String, Object>();
+        Map<String, Object> plain = new HashMap<String, Object>();
+        plain.put("a", "b");
+        CompactHashMap<String, Object> dictionary = new CompactHashMap<String, Object>();
+        for (int i = 0; i < 20; i++) {
+            dictionary.put("k" + i, i);
+        }
+        CompactHashMapClassDictionary.toDictionary(dictionary, 0);
+        table.add(plain);
+        table.add(new HashMap<String, Object>());
+        table.add(dictionary);
+        table.add(plain);
+
+        Assert.assertEquals(plain, table.get(0));
+        Assert.assertEquals(new HashMap<String, Object>(), table.get(1));
+        Assert.assertEquals(dictionary, table.get(2));
+        Assert.assertEquals(dictionary, table.toMap(2));
+        Assert.assertEquals(plain, table.toMap(3));
+        Assert.assertArrayEquals(new Object[]{null, null, 7, null}, table.column("k7"));
+        Assert.assertArrayEquals(new Object[]{"b", null, null, "b"}, table.column("a"));
+    }
+
+    @Test
+    public void rowsAreReadOnly() {
+        CompactMapTable<String, Object> table = new CompactMapTable<String, Object>();
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("a", "b");
+        Map<String, Object> view = table.get(table.add(map));
+        try {
+            view.put("a", "c");
+            Assert.fail("put should fail");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+        try {
+            view.entrySet().iterator().next().setValue("c");
+            Assert.fail("setValue should fail");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+        Assert.assertEquals("{a=b}", view.toString());
+        try {
+            table.get(1);
+            Assert.fail("get should fail");
+        } catch (IndexOutOfBoundsException expected) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class CompactPrimitiveMapTest {
+    @Test
+    public void intMapSharesClassesWithCompactHashMap() {
+        CompactIntMap<String> counters = new CompactIntMap<String>();
+        counters.putInt("intMapShares1", 1);
+        counters.addInt("intMapShares2", 5);
+        counters.addInt("intMapShares2", 5);
+
+        CompactHashMap<String, Integer> map = new CompactHashMap<String, Integer>();
+        map.put("intMapShares1", 1);
+        map.put("intMapShares2", 10);
+
+        Assert.assertSame(map.klass, counters.klass);
+        Assert.assertEquals(1, counters.getInt("intMapShares1", -1));
+        Assert.assertEquals(10, counters.getInt("intMapShares2", -1));
+        Assert.assertEquals(-1, counters.getInt("missing", -1));
+        Assert.assertEquals(map.hashCode(), counters.hashCode());
+        Assert.assertEquals(map.toString(), counters.toString());
+    }
+
+    @Test
+    public void removeShiftsValues() {
+        CompactLongMap<String> map = new CompactLongMap<String>();
+        for (int i = 0; i < 7; i++) {
+            map.putLong("k" + i, i * 1000000000000L);
+        }
+        Assert.assertTrue(map.remove("k2"));
+        Assert.assertFalse(map.remove("k2"));
+        Assert.assertEquals(6, map.size());
+        Assert.assertEquals(Arrays.asList("k0", "k1", "k3", "k4", "k5", "k6"),
+                Arrays.asList(map.keySet().toArray()));
+        Assert.assertEquals(3000000000000L, map.getLong("k3", -1));
+        Assert.assertEquals(6000000000000L, map.getLong("k6", -1));
+
+        CompactLongMap<String> expected = new CompactLongMap<String>();
+        for (int i = 0; i < 7; i++) {
+            if (i != 2) {
+                expected.putLong("k" + i, i * 1000000000000L);
+            }
+        }
+        Assert.assertSame(expected.klass, map.klass);
+        Assert.assertEquals(expected, map);
+    }
+
+    @Test
+    public void nullKeysAndSpecialDoubles() {
+        CompactDoubleMap<String> map = new CompactDoubleMap<String>();
+        map.putDouble(null, Double.NaN);
+        map.putDouble("zero", 0.0);
+        Assert.assertTrue(map.containsKey(null));
+        Assert.assertTrue(Double.isNaN(map.getDouble(null, 0)));
+
+        CompactDoubleMap<String> other = map.clone();
+        Assert.assertEquals(map, other);
+        other.putDouble("zero", -0.0);
+        Assert.assertFalse(map.equals(other));
+        Assert.assertEquals(0.0, map.getDouble("zero", 1), 0);
+
+        Map<String, Double> expected = new HashMap<String, Double>();
+        expected.put(null, Double.NaN);
+        expected.put("zero", 0.0);
+        Assert.assertEquals(expected.hashCode(), map.hashCode());
+    }
+
+    @Test
+    public void largeMapSwitchesToDictionary() {
+        CompactMapContext context = new CompactMapContext(100000, 10);
+        CompactIntMap<String> map = new CompactIntMap<String>(context);
+        for (int i = 0; i < 20; i++) {
+            map.putInt("k" + i, i);
+        }
+        Assert.assertNotNull(map.dictionary);
+        Assert.assertEquals(20, map.size());
+        for (int i = 0; i < 20; i += 2) {
+            map.remove("k" + i);
+        }
+        Assert.assertNull("Map with fewer keys returns to the shared classes", map.dictionary);
+        Assert.assertEquals(10, map.size());
+        for (int i = 1; i < 20; i += 2) {
+            Assert.assertEquals(i, map.getInt("k" + i, -1));
+        }
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertSame(context.root, map.klass);
+    }
+
+    @Test
+    public void randomOperations() {
+        Random rnd = new Random(42);
+        CompactIntMap<String> map = new CompactIntMap<String>(new CompactMapContext(100000, 10));
+        Map<String, Integer> expected = new HashMap<String, Integer>();
+        for (int i = 0; i < 10000; i++) {
+            String key = "k" + rnd.nextInt(15);
+            switch (rnd.nextInt(4)) {
+                case 0:
+                    Assert.assertEquals(expected.remove(key) != null, map.remove(key));
+                    break;
+                case 1:
+                    int value = rnd.nextInt();
+                    expected.put(key, value);
+                    map.putInt(key, value);
+                    break;
+                default:
+                    Integer prev = expected.get(key);
+                    expected.put(key, (prev == null ? 0 : prev) + 1);
+                    map.addInt(key, 1);
+            }
+            Assert.assertEquals(expected.size(), map.size());
+            Assert.assertEquals(expected.keySet(), map.keySet());
+            for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+                Assert.assertEquals(entry.getValue().intValue(), map.getInt(entry.getKey(), 0));
+            }
+            Assert.assertEquals(expected.hashCode(), map.hashCode());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+
+public class CompactSmallIntMapTest {
+    @Test
+    public void valuesAreStoredInOrderOfKeys() {
+        CompactSmallIntMap<String> map = new CompactSmallIntMap<String>(10);
+        map.set(7, "seven");
+        map.set(0, "zero");
+        map.put(Integer.valueOf(3), null);
+        Assert.assertEquals("{0=zero, 3=null, 7=seven}", map.toString());
+        Assert.assertTrue(map.containsKey(3));
+        Assert.assertFalse(map.containsKey(4));
+        Assert.assertFalse(map.containsKey(10));
+        Assert.assertNull(map.get(-1));
+        Assert.assertEquals("seven", map.remove(7));
+        Assert.assertEquals("zero", map.get(Integer.valueOf(0)));
+        Assert.assertEquals(2, map.size());
+        Assert.assertEquals(map, new CompactSmallIntMap<String>(map));
+        Assert.assertEquals(map, map.clone());
+    }
+
+    @Test
+    public void keyOutOfRange() {
+        Map map = new CompactSmallIntMap<String>(3);
+        Assert.assertNull(map.get("0"));
+        try {
+            map.put(3, "value");
+            Assert.fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            map.put("0", "value");
+            Assert.fail("ClassCastException expected");
+        } catch (ClassCastException expected) {
+        }
+    }
+
+    @Test
+    public void randomOperations() throws IOException, ClassNotFoundException {
+        randomOperations(CompactMapContext.getDefault(), 10);
+        randomOperations(CompactMapContext.getDefault(), 100);
+        CompactMapContext context = new CompactMapContext();
+        context.addDefaultValue(3, 0);
+        context.addDefaultValue(70, 0);
+        context.addDefaultKey(5);
+        randomOperations(context, 10);
+        randomOperations(context, 100);
+    }
+
+    private static void randomOperations(CompactMapContext context, int keyCount)
+            throws IOException, ClassNotFoundException {
+        Integer[] keys = new Integer[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = i;
+        }
+        CompactSmallIntMap<Integer> map = MapFixtures.randomOperations(
+                context.<Integer>newSmallIntMap(keyCount), keys, context == CompactMapContext.getDefault());
+        // The methods with int keys see the same entries
+        for (int i = 0; i < keyCount; i++) {
+            Assert.assertEquals(map.containsKey(keys[i]), map.containsKey(i));
+            Assert.assertEquals(map.get(keys[i]), map.get(i));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Map;
+
+public class ConcurrentCompactHashMapTest {
+    @Test
+    public void concurrentUpdatesAreNotLost() throws InterruptedException {
+        final ConcurrentCompactHashMap<String, Integer> map = new ConcurrentCompactHashMap<String, Integer>();
+        final int threads = 4;
+        final int increments = 2000;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final String ownKey = "thread" + t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < increments; i++) {
+                        String key = "key" + (i % 10);
+                        while (true) {
+                            Integer value = map.putIfAbsent(key, 1);
+                            if (value == null || map.replace(key, value, value + 1)) {
+                                break;
+                            }
+                        }
+                        map.put(ownKey, i);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        int sum = 0;
+        for (int i = 0; i < 10; i++) {
+            sum += map.get("key" + i);
+        }
+        Assert.assertEquals(threads * increments, sum);
+        Assert.assertEquals(10 + threads, map.size());
+    }
+
+    @Test
+    public void iteratorUsesSnapshot() {
+        ConcurrentCompactHashMap<String, String> map = new ConcurrentCompactHashMap<String, String>();
+        map.put("k1", "v1");
+        map.put("k2", "v2");
+        Iterator<Map.Entry<String, String>> it = map.entrySet().iterator();
+        map.put("k3", "v3");
+        map.remove("k2");
+        int entries = 0;
+        while (it.hasNext()) {
+            Map.Entry<String, String> entry = it.next();
+            if (entry.getKey().equals("k1")) {
+                entry.setValue("new");
+                it.remove();
+            }
+            entries++;
+        }
+        Assert.assertEquals(2, entries);
+        Assert.assertEquals(1, map.size());
+        Assert.assertEquals("v3", map.get("k3"));
+    }
+
+    @Test
+    public void contextIsKept() {
+        CompactMapContext context = new CompactMapContext();
+        context.addDefaultValue("k1", "v1");
+        ConcurrentCompactHashMap<String, String> map = new ConcurrentCompactHashMap<String, String>(context);
+        map.put("k1", "v1");
+        map.clear();
+        map.put("k1", "v1");
+        Assert.assertEquals("v1", map.get("k1"));
+        Assert.assertEquals(1, map.size());
+    }
+}
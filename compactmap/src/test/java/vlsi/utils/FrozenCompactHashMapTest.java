@@ -0,0 +1,140 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+public class FrozenCompactHashMapTest {
+    @Test
+    public void freezeDropsRemovedSlotsAndSpareCapacity() {
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        for (int i = 0; i < 7; i++) {
+            map.put("k" + i, "v" + i);
+        }
+        map.remove("k1");
+        map.remove("k6");
+
+        FrozenCompactHashMap<String, String> frozen = map.freeze();
+        Assert.assertEquals(map, frozen);
+        Assert.assertEquals(map.hashCode(), frozen.hashCode());
+        Assert.assertEquals(0, frozen.klass.getRemovedSlots());
+        Assert.assertEquals(5, frozen.klass.keyCount);
+        Assert.assertEquals(4, ((Object[]) frozen.v1).length);
+        Assert.assertSame(frozen, frozen.freeze());
+    }
+
+    @Test
+    public void frozenMapDoesNotShareValues() {
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        for (int i = 0; i < 5; i++) {
+            map.put("k" + i, "v" + i);
+        }
+        FrozenCompactHashMap<String, String> frozen = map.freeze();
+        map.put("k4", "new");
+        map.remove("k0");
+        Assert.assertEquals("v4", frozen.get("k4"));
+        Assert.assertEquals("v0", frozen.get("k0"));
+        Assert.assertEquals(5, frozen.size());
+    }
+
+    @Test
+    public void frozenDictionaryDoesNotShareValues() {
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        for (int i = 0; i < 5; i++) {
+            map.put("k" + i, "v" + i);
+        }
+        CompactHashMapClassDictionary.toDictionary(map, 100);
+        FrozenCompactHashMap<String, String> frozen = map.freeze();
+        Assert.assertTrue(frozen.klass instanceof CompactHashMapClassDictionary);
+        Assert.assertNotSame(map.v1, frozen.v1);
+        map.put("k4", "new");
+        Assert.assertEquals("v4", frozen.get("k4"));
+        Assert.assertTrue(((CompactHashMapDictionary) frozen.v1).capacity()
+                < ((CompactHashMapDictionary) map.v1).capacity());
+    }
+
+    @Test
+    public void mutatorsFailFast() {
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        map.put("k1", "v1");
+        FrozenCompactHashMap<String, String> frozen = map.freeze();
+        try {
+            frozen.put("k2", "v2");
+            Assert.fail("put should fail");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            frozen.entrySet().iterator().next().setValue("v2");
+            Assert.fail("setValue should fail");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            frozen.keySet().clear();
+            Assert.fail("clear should fail");
+        } catch (UnsupportedOperationException expected) {
+        }
+        Assert.assertEquals("v1", frozen.get("k1"));
+
+        CompactHashMap<String, String> copy = new CompactHashMap<String, String>(frozen);
+        copy.put("k2", "v2");
+        Assert.assertEquals(2, copy.size());
+        Assert.assertEquals(1, frozen.size());
+    }
+
+    @Test
+    public void keyHandleCannotModifyFrozenMap() {
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        map.put("a", "1");
+        map.put("b", "2");
+        FrozenCompactHashMap<String, String> frozen = map.freeze();
+        CompactHashMapKeyHandle<String, String> a = CompactHashMap.handle("a");
+        // Warm up the handle with a mutable map of the same class
+        a.put(map, "Y");
+        try {
+            a.put(frozen, "X");
+            Assert.fail("put via handle should fail");
+        } catch (UnsupportedOperationException expected) {
+        }
+        Assert.assertEquals("1", frozen.get("a"));
+        Assert.assertEquals(new HashMap<String, String>(frozen).hashCode(), frozen.hashCode());
+    }
+
+    @Test
+    public void copiesReadViaFinalField() throws IOException, ClassNotFoundException {
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        for (int i = 0; i < 5; i++) {
+            map.put("k" + i, "v" + i);
+        }
+        FrozenCompactHashMap<String, String> frozen = map.freeze();
+        Assert.assertSame(frozen, frozen.published());
+
+        FrozenCompactHashMap<String, String> clone = frozen.clone();
+        Assert.assertNotSame(frozen, clone);
+        Assert.assertSame(clone, clone.published());
+        Assert.assertEquals(map, clone);
+
+        // Deserialization does not run the constructor, so the map is re-created
+        FrozenCompactHashMap<String, String> deserialized = MapFixtures.reserialize(frozen);
+        Assert.assertSame(deserialized, deserialized.published());
+        Assert.assertEquals(map, deserialized);
+        Assert.assertEquals("v3", deserialized.get("k3"));
+    }
+}
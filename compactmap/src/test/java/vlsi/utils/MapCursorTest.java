@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class MapCursorTest {
+    private static <K, V> Map<K, V> toMap(MapCursor<K, V> cursor) {
+        Map<K, V> result = new LinkedHashMap<K, V>();
+        while (cursor.next()) {
+            Assert.assertFalse("duplicate key " + cursor.key(), result.containsKey(cursor.key()));
+            result.put(cursor.key(), cursor.value());
+        }
+        Assert.assertFalse("next() after the end", cursor.next());
+        return result;
+    }
+
+    private static <K, V> void assertCursor(CompactHashMap<K, V> map) {
+        Map<K, V> expected = new LinkedHashMap<K, V>();
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            expected.put(entry.getKey(), entry.getValue());
+        }
+        Map<K, V> actual = toMap(map.cursor());
+        Assert.assertEquals(expected, actual);
+        Assert.assertEquals("order of keys", expected.keySet().toString(), actual.keySet().toString());
+        Assert.assertEquals(map.size(), actual.size());
+    }
+
+    @Test
+    public void emptyMap() {
+        Assert.assertFalse(new CompactHashMap<String, String>().cursor().next());
+        Assert.assertFalse(new MapCursor<String, String>().next());
+    }
+
+    @Test
+    public void slotsAndRemovedSlots() {
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        for (int i = 0; i < 10; i++) {
+            map.put("k" + i, "v" + i);
+            assertCursor(map);
+        }
+        map.remove("k0");
+        map.remove("k5");
+        map.put(null, null);
+        map.put("k1", null);
+        assertCursor(map);
+        Map<String, String> actual = toMap(map.cursor());
+        Assert.assertTrue(actual.containsKey(null));
+        Assert.assertNull(actual.get("k1"));
+        Assert.assertFalse(actual.containsKey("k5"));
+    }
+
+    @Test
+    public void defaultValues() {
+        CompactMapContext context = new CompactMapContext();
+        context.addDefaultValue("status", "active");
+        context.addDefaultKey("type");
+        CompactHashMap<String, String> map = context.newMap();
+        map.put("status", "active");
+        assertCursor(map);
+        map.put("id", "42");
+        map.put("type", "user");
+        map.put("name", "John");
+        assertCursor(map);
+        Assert.assertEquals("{status=active, type=user, id=42, name=John}", map.toString());
+        map.remove("status");
+        assertCursor(map);
+    }
+
+    @Test
+    public void dictionary() {
+        CompactHashMap<String, String> map = new CompactHashMap<String, String>();
+        for (int i = 0; i < 5; i++) {
+            map.put("k" + i, "v" + i);
+        }
+        CompactHashMapClassDictionary.toDictionary(map, 100);
+        map.remove("k2");
+        map.put(null, "null");
+        Assert.assertTrue(map.klass instanceof CompactHashMapClassDictionary);
+        Map<String, String> actual = toMap(map.cursor());
+        Assert.assertEquals(5, actual.size());
+        Assert.assertEquals("null", actual.get(null));
+        Assert.assertFalse(actual.containsKey("k2"));
+        assertCursor(map);
+    }
+
+    @Test
+    public void resetMovesToAnotherMap() {
+        CompactHashMap<String, Integer> a = new CompactHashMap<String, Integer>();
+        a.put("x", 1);
+        a.put("y", 2);
+        CompactHashMap<String, Integer> b = new CompactHashMap<String, Integer>();
+        for (int i = 0; i < 6; i++) {
+            b.put("k" + i, i);
+        }
+        MapCursor<String, Integer> cursor = new MapCursor<String, Integer>(a);
+        Assert.assertTrue(cursor.next());
+        int sum = 0;
+        for (cursor.reset(b); cursor.next(); ) {
+            sum += cursor.value();
+        }
+        Assert.assertEquals(15, sum);
+        Assert.assertEquals(a, toMap(cursor.reset(a)));
+    }
+
+    @Test
+    public void iteratorRemovesWhileIterating() {
+        CompactMapContext context = new CompactMapContext();
+        context.addDefaultValue("d", "default");
+        CompactHashMap<String, String> map = context.newMap();
+        map.put("d", "default");
+        for (int i = 0; i < 6; i++) {
+            map.put("k" + i, "v" + i);
+        }
+        for (Iterator<String> it = map.keySet().iterator(); it.hasNext(); ) {
+            String key = it.next();
+            if (!key.equals("k3")) {
+                it.remove();
+            }
+        }
+        Assert.assertEquals("{k3=v3}", map.toString());
+    }
+}
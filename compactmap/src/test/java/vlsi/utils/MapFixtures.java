@@ -0,0 +1,119 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vlsi.utils;
+
+import org.junit.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Fixtures and checks that are shared by the tests of several map implementations.
+ */
+final class MapFixtures {
+    private MapFixtures() {
+    }
+
+    /**
+     * Creates a row of a table-like collection: the rows have a few distinct shapes, some rows have
+     * the {@code null} key, a removed key, or the values that are registered as default ones in tests.
+     *
+     * @param context the context of the map
+     * @param i       the number of the row
+     * @return the row
+     */
+    static CompactHashMap<String, Object> row(CompactMapContext context, int i) {
+        CompactHashMap<String, Object> map = context.newMap();
+        map.put("id", i);
+        map.put("name", "name" + i);
+        map.put("status", i % 3 == 0 ? "active" : "blocked");
+        if (i % 2 == 0) {
+            map.put("price", new BigDecimal(i).movePointLeft(2));
+            map.put("ratio", i / 7.0);
+            map.put("total", (long) i << 40);
+            map.put("flag", i % 4 == 0);
+            map.put(null, null);
+        }
+        if (i % 5 == 0) {
+            map.remove("name");
+        }
+        return map;
+    }
+
+    static <T> T reserialize(T object) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(object);
+        oos.close();
+        return (T) new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+    }
+
+    /**
+     * Applies random operations to the map and to a {@link HashMap}, and compares the results.
+     * The value {@code 0} is put often, so it can be registered as a default value.
+     *
+     * @param map         the map to test
+     * @param keys        the keys to use
+     * @param reserialize true if the map should be serialized and deserialized from time to time
+     * @param <M>         the type of the map
+     * @param <K>         the type of keys
+     * @return the map after the operations, it differs from the given one if it has been reserialized
+     */
+    static <M extends Map<K, Integer>, K> M randomOperations(M map, K[] keys, boolean reserialize)
+            throws IOException, ClassNotFoundException {
+        Random rnd = new Random(42);
+        Map<K, Integer> expected = new HashMap<K, Integer>();
+        for (int i = 0; i < 10000; i++) {
+            K key = keys[rnd.nextInt(keys.length)];
+            switch (rnd.nextInt(6)) {
+                case 0:
+                    Assert.assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                case 1:
+                    Assert.assertEquals(expected.put(key, null), map.put(key, null));
+                    break;
+                case 2:
+                    map.clear();
+                    expected.clear();
+                    break;
+                case 3:
+                    Assert.assertEquals(expected.put(key, 0), map.put(key, 0));
+                    break;
+                default:
+                    Assert.assertEquals(expected.put(key, i), map.put(key, i));
+            }
+            if (reserialize && rnd.nextInt(100) == 0) {
+                map = reserialize(map);
+            }
+            Assert.assertEquals(expected.size(), map.size());
+            Assert.assertEquals(expected.containsKey(key), map.containsKey(key));
+            Assert.assertEquals(expected.get(key), map.get(key));
+        }
+        Assert.assertEquals(expected, map);
+        Assert.assertEquals(map, expected);
+        Assert.assertEquals(expected.hashCode(), map.hashCode());
+        Assert.assertEquals(expected, reserialize(map));
+        return map;
+    }
+}
@@ -16,7 +16,10 @@
 
 package vlsi.utils;
 
+import com.google.common.collect.testing.AnEnum;
+import com.google.common.collect.testing.ConcurrentMapTestSuiteBuilder;
 import com.google.common.collect.testing.MapTestSuiteBuilder;
+import com.google.common.collect.testing.TestEnumMapGenerator;
 import com.google.common.collect.testing.TestStringMapGenerator;
 import com.google.common.collect.testing.features.CollectionFeature;
 import com.google.common.collect.testing.features.CollectionSize;
@@ -24,6 +27,7 @@ import com.google.common.collect.testing.features.MapFeature;
 import junit.framework.Test;
 import junit.framework.TestSuite;
 
+import java.util.HashMap;
 import java.util.Map;
 
 public class MapTest {
@@ -36,6 +40,26 @@ public class MapTest {
                 return populate(new CompactHashMap<String, String>(), entries);
             }
         }));
+        suite.addTest(tests("Copy", new TestStringMapGenerator() {
+            @Override
+            protected Map<String, String> create(Map.Entry<String, String>[] entries) {
+                return new CompactHashMap<String, String>(populate(new CompactHashMap<String, String>(), entries));
+            }
+        }));
+        suite.addTest(tests("From HashMap", new TestStringMapGenerator() {
+            @Override
+            protected Map<String, String> create(Map.Entry<String, String>[] entries) {
+                return new CompactHashMap<String, String>(populate(new HashMap<String, String>(), entries));
+            }
+        }));
+        suite.addTest(tests("Dictionary", new TestStringMapGenerator() {
+            @Override
+            protected Map<String, String> create(Map.Entry<String, String>[] entries) {
+                CompactHashMap<String, String> map = populate(new CompactHashMap<String, String>(), entries);
+                CompactHashMapClassDictionary.toDictionary(map, 0);
+                return map;
+            }
+        }));
         suite.addTest(tests("All as defaults", new TestStringMapGenerator() {
             @Override
             protected Map<String, String> create(Map.Entry<String, String>[] entries) {
@@ -64,6 +88,53 @@ public class MapTest {
                 return populate(new CompactHashMap<String, String>(), entries);
             }
         }));
+        suite.addTest(MapTestSuiteBuilder
+                .using(new TestStringMapGenerator() {
+                    @Override
+                    protected Map<String, String> create(Map.Entry<String, String>[] entries) {
+                        return populate(new CompactHashMap<String, String>(), entries).freeze();
+                    }
+                })
+                .named("Frozen")
+                .withFeatures(
+                        MapFeature.ALLOWS_NULL_KEYS,
+                        MapFeature.ALLOWS_NULL_VALUES,
+                        MapFeature.ALLOWS_ANY_NULL_QUERIES,
+                        CollectionFeature.SERIALIZABLE,
+                        CollectionSize.ANY)
+                .createTestSuite());
+        suite.addTest(MapTestSuiteBuilder
+                .using(new TestEnumMapGenerator() {
+                    @Override
+                    protected Map<AnEnum, String> create(Map.Entry<AnEnum, String>[] entries) {
+                        return populate(new CompactEnumMap<AnEnum, String>(AnEnum.class), entries);
+                    }
+                })
+                .named("Enum")
+                .withFeatures(
+                        MapFeature.GENERAL_PURPOSE,
+                        MapFeature.ALLOWS_NULL_VALUES,
+                        MapFeature.ALLOWS_ANY_NULL_QUERIES,
+                        MapFeature.RESTRICTS_KEYS,
+                        MapFeature.FAILS_FAST_ON_CONCURRENT_MODIFICATION,
+                        CollectionFeature.SUPPORTS_ITERATOR_REMOVE,
+                        CollectionFeature.SERIALIZABLE,
+                        CollectionSize.ANY)
+                .createTestSuite());
+        suite.addTest(ConcurrentMapTestSuiteBuilder
+                .using(new TestStringMapGenerator() {
+                    @Override
+                    protected Map<String, String> create(Map.Entry<String, String>[] entries) {
+                        return populate(new ConcurrentCompactHashMap<String, String>(), entries);
+                    }
+                })
+                .named("Concurrent")
+                .withFeatures(
+                        MapFeature.GENERAL_PURPOSE,
+                        CollectionFeature.SUPPORTS_ITERATOR_REMOVE,
+                        CollectionFeature.SERIALIZABLE,
+                        CollectionSize.ANY)
+                .createTestSuite());
         return suite;
     }
 
@@ -71,7 +142,7 @@ public class MapTest {
         return MapTestSuiteBuilder
                 .using(generator)
                 .named(name)
-                .withTearDown("Simple".equals(name) ? null : new Runnable() {
+                .withTearDown(!name.endsWith("as defaults") ? null : new Runnable() {
                     public void run() {
                         CompactHashMapDefaultValues.clear();
                     }
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.vlsi.compactmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import vlsi.utils.CompactEnumMap;
+import vlsi.utils.CompactHashMap;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the lookups in maps with enum keys. {@code keys} of the {@link TimeUnit} constants are present,
+ * and the benchmark reads all the constants, so half of the lookups miss for sparse maps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CompactEnumMapBenchmark {
+    @Param({"CompactEnumMap", "EnumMap", "CompactHashMap"})
+    String impl = "CompactEnumMap";
+
+    @Param({"3", "7"})
+    int keys = 3;
+
+    TimeUnit[] units;
+    Map<TimeUnit, String> map;
+
+    @Setup
+    public void init() {
+        units = TimeUnit.values();
+        if ("CompactEnumMap".equals(impl)) {
+            map = new CompactEnumMap<TimeUnit, String>(TimeUnit.class);
+        } else if ("EnumMap".equals(impl)) {
+            map = new EnumMap<TimeUnit, String>(TimeUnit.class);
+        } else {
+            map = new CompactHashMap<TimeUnit, String>();
+        }
+        for (int i = 0; i < keys; i++) {
+            // Every other constant, so the keys are sparse
+            TimeUnit unit = units[i * 2 % units.length];
+            map.put(unit, unit.name());
+        }
+    }
+
+    @Benchmark
+    public void get(Blackhole b) {
+        Map<TimeUnit, String> map = this.map;
+        for (TimeUnit unit : units) {
+            b.consume(map.get(unit));
+        }
+    }
+
+    @Benchmark
+    public Map<TimeUnit, String> build() {
+        Map<TimeUnit, String> map;
+        if ("CompactEnumMap".equals(impl)) {
+            map = new CompactEnumMap<TimeUnit, String>(TimeUnit.class);
+        } else if ("EnumMap".equals(impl)) {
+            map = new EnumMap<TimeUnit, String>(TimeUnit.class);
+        } else {
+            map = new CompactHashMap<TimeUnit, String>();
+        }
+        TimeUnit[] units = this.units;
+        for (int i = 0; i < keys; i++) {
+            map.put(units[i * 2 % units.length], "value");
+        }
+        return map;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.vlsi.compactmap;
+
+import org.openjdk.jmh.annotations.*;
+import vlsi.utils.CompactHashMap;
+import vlsi.utils.CompactIntMap;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares counter maps: {@link CompactIntMap} with {@code CompactHashMap<String, Integer>}.
+ * The values are not in {@link Integer} cache, so the boxed map allocates an {@link Integer} per update.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CompactIntMapBenchmark {
+    @Param({"5", "10", "50", "100"})
+    int n = 10;
+
+    String[] keys;
+
+    CompactHashMap<String, Integer> boxedMap;
+    CompactIntMap<String> intMap;
+
+    @Setup
+    public void init() {
+        keys = CompactMapBenchmark.shuffledKeys("key", n);
+        boxedMap = new CompactHashMap<String, Integer>();
+        intMap = new CompactIntMap<String>();
+        for (int i = 0; i < n; i++) {
+            boxedMap.put(keys[i], 1000 + i);
+            intMap.putInt(keys[i], 1000 + i);
+        }
+    }
+
+    @Benchmark
+    public CompactHashMap<String, Integer> buildBoxed() {
+        CompactHashMap<String, Integer> m = new CompactHashMap<String, Integer>();
+        String[] keys = this.keys;
+        for (int i = 0; i < keys.length; i++) {
+            m.put(keys[i], 1000 + i);
+        }
+        return m;
+    }
+
+    @Benchmark
+    public CompactIntMap<String> buildInt() {
+        CompactIntMap<String> m = new CompactIntMap<String>();
+        String[] keys = this.keys;
+        for (int i = 0; i < keys.length; i++) {
+            m.putInt(keys[i], 1000 + i);
+        }
+        return m;
+    }
+
+    @Benchmark
+    public int sumBoxed() {
+        CompactHashMap<String, Integer> m = boxedMap;
+        String[] keys = this.keys;
+        int sum = 0;
+        for (int i = 0; i < keys.length; i++) {
+            sum += m.get(keys[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int sumInt() {
+        CompactIntMap<String> m = intMap;
+        String[] keys = this.keys;
+        int sum = 0;
+        for (int i = 0; i < keys.length; i++) {
+            sum += m.getInt(keys[i], 0);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public CompactHashMap<String, Integer> incrementBoxed() {
+        CompactHashMap<String, Integer> m = boxedMap;
+        String[] keys = this.keys;
+        for (int i = 0; i < keys.length; i++) {
+            m.put(keys[i], m.get(keys[i]) + 1);
+        }
+        return m;
+    }
+
+    @Benchmark
+    public CompactIntMap<String> incrementInt() {
+        CompactIntMap<String> m = intMap;
+        String[] keys = this.keys;
+        for (int i = 0; i < keys.length; i++) {
+            m.addInt(keys[i], 1);
+        }
+        return m;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.vlsi.compactmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import vlsi.utils.CompactHashMap;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link CompactHashMap} operations against {@link HashMap} and {@link LinkedHashMap}.
+ * Each benchmark processes all {@code n} keys, so divide the score by {@code n} to get per-operation cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CompactMapBenchmark {
+    @Param({"5", "10", "25", "50", "75", "100", "150", "500", "1000"})
+    int n = 100;
+
+    @Param({"CompactHashMap", "HashMap", "LinkedHashMap"})
+    String impl = "CompactHashMap";
+
+    String[] keys;
+    String[] missingKeys;
+    String[] values;
+
+    Map<String, String> map;
+    Map<String, String> equalMap;
+    Map<String, String> hashMap;
+
+    static String[] shuffledKeys(String prefix, int n) {
+        List<String> keys = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++) {
+            keys.add(prefix + i);
+        }
+        // Fixed seed: the insertion order (and thus the chain of CompactHashMap classes) is the same in every fork
+        Collections.shuffle(keys, new Random(42));
+        return keys.toArray(new String[n]);
+    }
+
+    static Map<String, String> newMap(String impl) {
+        if ("CompactHashMap".equals(impl)) {
+            return new CompactHashMap<String, String>();
+        }
+        if ("HashMap".equals(impl)) {
+            return new HashMap<String, String>();
+        }
+        if ("LinkedHashMap".equals(impl)) {
+            return new LinkedHashMap<String, String>();
+        }
+        throw new IllegalArgumentException("Unknown map implementation: " + impl);
+    }
+
+    @Setup
+    public void init() {
+        keys = shuffledKeys("key", n);
+        missingKeys = shuffledKeys("missing", n);
+        values = new String[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = "value" + i;
+        }
+        map = fill(newMap(impl));
+        equalMap = fill(newMap(impl));
+        hashMap = fill(new HashMap<String, String>());
+    }
+
+    private Map<String, String> fill(Map<String, String> m) {
+        String[] keys = this.keys;
+        String[] values = this.values;
+        for (int i = 0; i < keys.length; i++) {
+            m.put(keys[i], values[i]);
+        }
+        return m;
+    }
+
+    @Benchmark
+    public void getHit(Blackhole b) {
+        Map<String, String> map = this.map;
+        String[] keys = this.keys;
+        for (int i = 0; i < keys.length; i++) {
+            b.consume(map.get(keys[i]));
+        }
+    }
+
+    @Benchmark
+    public void getMiss(Blackhole b) {
+        Map<String, String> map = this.map;
+        String[] keys = this.missingKeys;
+        for (int i = 0; i < keys.length; i++) {
+            b.consume(map.get(keys[i]));
+        }
+    }
+
+    @Benchmark
+    public void containsKey(Blackhole b) {
+        Map<String, String> map = this.map;
+        String[] keys = this.keys;
+        for (int i = 0; i < keys.length; i++) {
+            b.consume(map.containsKey(keys[i]));
+        }
+    }
+
+    /**
+     * Builds a map from scratch, so each put adds a new key (CompactHashMap switches to the next class).
+     */
+    @Benchmark
+    public Map<String, String> putNew() {
+        return fill(newMap(impl));
+    }
+
+    /**
+     * Copies a template map with the copy constructor of the implementation.
+     */
+    @Benchmark
+    public Map<String, String> copy() {
+        Map<String, String> map = this.map;
+        if (map instanceof CompactHashMap) {
+            return new CompactHashMap<String, String>((CompactHashMap<String, String>) map);
+        }
+        if (map instanceof LinkedHashMap) {
+            return new LinkedHashMap<String, String>(map);
+        }
+        return new HashMap<String, String>(map);
+    }
+
+    /**
+     * Fills an empty map from a {@link HashMap} with {@code putAll}.
+     */
+    @Benchmark
+    public Map<String, String> putAllFromHashMap() {
+        Map<String, String> m = newMap(impl);
+        m.putAll(hashMap);
+        return m;
+    }
+
+    @Benchmark
+    public void putOverwrite(Blackhole b) {
+        Map<String, String> map = this.map;
+        String[] keys = this.keys;
+        String[] values = this.values;
+        for (int i = 0; i < keys.length; i++) {
+            b.consume(map.put(keys[i], values[i]));
+        }
+    }
+
+    /**
+     * Removes every key and puts it back, so the map is in the same state after each invocation.
+     */
+    @Benchmark
+    public void removeAndPut(Blackhole b) {
+        Map<String, String> map = this.map;
+        String[] keys = this.keys;
+        String[] values = this.values;
+        for (int i = 0; i < keys.length; i++) {
+            b.consume(map.remove(keys[i]));
+            map.put(keys[i], values[i]);
+        }
+    }
+
+    @Benchmark
+    public void iterateEntrySet(Blackhole b) {
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            b.consume(entry.getKey());
+            b.consume(entry.getValue());
+        }
+    }
+
+    @Benchmark
+    public void iterateKeySet(Blackhole b) {
+        for (String key : map.keySet()) {
+            b.consume(key);
+        }
+    }
+
+    @Benchmark
+    public boolean equalsEqualMap() {
+        return map.equals(equalMap);
+    }
+
+    @Benchmark
+    public int hashCodeMap() {
+        return map.hashCode();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.vlsi.compactmap;
+
+import org.openjdk.jmh.annotations.*;
+import vlsi.utils.CompactHashMap;
+import vlsi.utils.CompactHashMapDefaultValues;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how map construction scales with the number of threads. All the maps start from the same
+ * root class, so the threads walk (and extend) the same transition tree.
+ *
+ * <p>Run it with different thread counts to see the scaling, for instance:</p>
+ * <pre>
+ * for t in 1 2 4 8 16 32 64; do
+ *   java -jar jmh/target/benchmarks.jar CompactMapConcurrentBuildBenchmark -t $t
+ * done
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompactMapConcurrentBuildBenchmark {
+    @State(Scope.Benchmark)
+    public static class Keys {
+        @Param({"10", "100"})
+        int n = 10;
+
+        String[] keys;
+        String[] values;
+
+        @Setup
+        public void init() {
+            CompactHashMapDefaultValues.clear();
+            keys = CompactMapBenchmark.shuffledKeys("key", n);
+            values = new String[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = "value" + i;
+                // Every third key has a default value, so the maps use classes with default values too
+                if (i % 3 == 0) {
+                    CompactHashMapDefaultValues.add(keys[i], values[i]);
+                }
+            }
+        }
+
+        @TearDown
+        public void clearDefaults() {
+            CompactHashMapDefaultValues.clear();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadKeys {
+        final Random rnd = new Random();
+        String[] keys;
+
+        @Setup
+        public void init(Keys keys) {
+            this.keys = keys.keys.clone();
+        }
+
+        /**
+         * Swaps two keys, so the maps built by the thread have a different order of keys,
+         * and they need transitions that might not exist yet.
+         */
+        void swapKeys() {
+            String[] keys = this.keys;
+            int i = rnd.nextInt(keys.length);
+            int j = rnd.nextInt(keys.length);
+            String key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+        }
+    }
+
+    /**
+     * All the threads build maps with the same keys in the same order, so the transitions exist.
+     */
+    @Benchmark
+    public Map<String, String> buildSameShape(Keys keys) {
+        CompactHashMap<String, String> m = new CompactHashMap<String, String>();
+        String[] k = keys.keys;
+        String[] v = keys.values;
+        for (int i = 0; i < k.length; i++) {
+            m.put(k[i], v[i]);
+        }
+        return m;
+    }
+
+    /**
+     * The threads build maps with the keys in different order, so they keep adding transitions
+     * to the shared tree.
+     */
+    @Benchmark
+    public Map<String, String> buildVaryingShape(Keys keys, ThreadKeys threadKeys) {
+        threadKeys.swapKeys();
+        CompactHashMap<String, String> m = new CompactHashMap<String, String>();
+        String[] k = threadKeys.keys;
+        String[] v = keys.values;
+        for (int i = 0; i < k.length; i++) {
+            m.put(k[i], v[i]);
+        }
+        return m;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.vlsi.compactmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import vlsi.utils.CompactHashMap;
+import vlsi.utils.CompactHashMapDefaultValues;
+import vlsi.utils.CompactMapShape;
+import vlsi.utils.MapCursor;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link CompactHashMap} when some of the keys have values registered in
+ * {@link CompactHashMapDefaultValues}, so they are stored in the class rather than in the map.
+ * {@code defaultsPercent} of the keys are registered with the very value the benchmark puts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CompactMapDefaultsBenchmark {
+    @Param({"5", "10", "25", "50", "75", "100", "150", "500", "1000"})
+    int n = 100;
+
+    @Param({"0", "50", "100"})
+    int defaultsPercent = 50;
+
+    String[] keys;
+    String[] values;
+    String[] nonDefaultValues;
+
+    CompactHashMap<String, String> map;
+    // The same entries in another map of the same class
+    CompactHashMap<String, String> sameMap;
+    CompactMapShape<String, String> shape;
+
+    @Setup
+    public void init() {
+        CompactHashMapDefaultValues.clear();
+        keys = CompactMapBenchmark.shuffledKeys("key", n);
+        values = new String[n];
+        nonDefaultValues = new String[n];
+        int defaults = n * defaultsPercent / 100;
+        for (int i = 0; i < n; i++) {
+            values[i] = "value" + i;
+            nonDefaultValues[i] = "other" + i;
+            if (i < defaults) {
+                CompactHashMapDefaultValues.add(keys[i], values[i]);
+            }
+        }
+        map = fill(new CompactHashMap<String, String>());
+        sameMap = fill(new CompactHashMap<String, String>());
+        shape = CompactMapShape.of(keys);
+    }
+
+    @TearDown
+    public void clearDefaults() {
+        CompactHashMapDefaultValues.clear();
+    }
+
+    private CompactHashMap<String, String> fill(CompactHashMap<String, String> m) {
+        String[] keys = this.keys;
+        String[] values = this.values;
+        for (int i = 0; i < keys.length; i++) {
+            m.put(keys[i], values[i]);
+        }
+        return m;
+    }
+
+    @Benchmark
+    public void getHit(Blackhole b) {
+        Map<String, String> map = this.map;
+        String[] keys = this.keys;
+        for (int i = 0; i < keys.length; i++) {
+            b.consume(map.get(keys[i]));
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> putNew() {
+        return fill(new CompactHashMap<String, String>());
+    }
+
+    /**
+     * Builds the same map as {@link #putNew()} right in its final class.
+     */
+    @Benchmark
+    public Map<String, String> newMapFromShape() {
+        return shape.newMap((Object[]) values);
+    }
+
+    /**
+     * Builds a map from values that do not match the registered defaults,
+     * so each put consults the defaults registry and then allocates a regular slot.
+     */
+    @Benchmark
+    public Map<String, String> putNewNonDefault() {
+        CompactHashMap<String, String> m = new CompactHashMap<String, String>();
+        String[] keys = this.keys;
+        String[] nonDefaultValues = this.nonDefaultValues;
+        for (int i = 0; i < keys.length; i++) {
+            m.put(keys[i], nonDefaultValues[i]);
+        }
+        return m;
+    }
+
+    @Benchmark
+    public void iterateEntrySet(Blackhole b) {
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            b.consume(entry.getKey());
+            b.consume(entry.getValue());
+        }
+    }
+
+    @Benchmark
+    public void iterateCursor(Blackhole b) {
+        for (MapCursor<String, String> cursor = map.cursor(); cursor.next(); ) {
+            b.consume(cursor.key());
+            b.consume(cursor.value());
+        }
+    }
+
+    @Benchmark
+    public int hashCodeMap() {
+        return map.hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsSameShape() {
+        return map.equals(sameMap);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.vlsi.compactmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import vlsi.utils.CompactHashMap;
+import vlsi.utils.CompactHashMapKeyHandle;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the same three keys from many maps via {@link CompactHashMap#get(Object)} and
+ * via {@link CompactHashMapKeyHandle}. Maps have {@code shapes} different classes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CompactMapKeyHandleBenchmark {
+    private static final CompactHashMapKeyHandle<String, Object> ID = CompactHashMap.handle("id");
+    private static final CompactHashMapKeyHandle<String, Object> TYPE = CompactHashMap.handle("type");
+    private static final CompactHashMapKeyHandle<String, Object> TS = CompactHashMap.handle("ts");
+
+    @Param({"1", "3", "8"})
+    int shapes = 3;
+
+    @Param({"5", "25"})
+    int n = 5;
+
+    CompactHashMap<String, Object>[] maps;
+
+    @Setup
+    public void init() {
+        maps = new CompactHashMap[1024];
+        for (int i = 0; i < maps.length; i++) {
+            CompactHashMap<String, Object> map = new CompactHashMap<String, Object>();
+            // Shape is defined by the number of extra keys that go before the common ones
+            for (int j = 0; j < i % shapes; j++) {
+                map.put("extra" + j, j);
+            }
+            map.put("id", i);
+            map.put("type", "type" + (i % 7));
+            map.put("ts", (long) i);
+            for (int j = map.size(); j < n; j++) {
+                map.put("key" + j, j);
+            }
+            maps[i] = map;
+        }
+    }
+
+    @Benchmark
+    public void get(Blackhole b) {
+        CompactHashMap<String, Object>[] maps = this.maps;
+        for (int i = 0; i < maps.length; i++) {
+            CompactHashMap<String, Object> map = maps[i];
+            b.consume(map.get("id"));
+            b.consume(map.get("type"));
+            b.consume(map.get("ts"));
+        }
+    }
+
+    @Benchmark
+    public void handle(Blackhole b) {
+        CompactHashMap<String, Object>[] maps = this.maps;
+        for (int i = 0; i < maps.length; i++) {
+            CompactHashMap<String, Object> map = maps[i];
+            b.consume(ID.get(map));
+            b.consume(TYPE.get(map));
+            b.consume(TS.get(map));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.vlsi.compactmap;
+
+import org.openjdk.jmh.annotations.*;
+import vlsi.utils.CompactHashMap;
+import vlsi.utils.CompactMapContext;
+import vlsi.utils.CompactMapInput;
+import vlsi.utils.CompactMapOutput;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes a list of maps that share a few shapes: {@link ObjectOutputStream#writeObject(Object)} of the list
+ * versus {@link CompactMapOutput} that writes the keys of each shape once.
+ * Each map has a key with a registered default value. The maps belong to the default context,
+ * since {@link ObjectInputStream} creates the maps there.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompactMapSerializationBenchmark {
+    @Param({"1000"})
+    int maps = 1000;
+
+    @Param({"10"})
+    int keys = 10;
+
+    @Param({"1", "50"})
+    int shapes = 50;
+
+    CompactMapContext context;
+    List<CompactHashMap<String, Object>> list;
+    byte[] objectStreamBytes;
+    byte[] shapeTableBytes;
+
+    @Setup
+    public void init() throws IOException {
+        context = CompactMapContext.getDefault();
+        context.addDefaultValue("status", "active");
+        list = new ArrayList<CompactHashMap<String, Object>>(maps);
+        for (int i = 0; i < maps; i++) {
+            CompactHashMap<String, Object> map = context.newMap();
+            int shape = i % shapes;
+            for (int j = 0; j < keys; j++) {
+                map.put("shape" + shape + "_key" + j, "value" + i + "_" + j);
+            }
+            map.put("status", "active");
+            list.add(map);
+        }
+        objectStreamBytes = writeObjectStream();
+        shapeTableBytes = writeShapeTable();
+    }
+
+    @TearDown
+    public void clearDefaults() {
+        context.clearDefaultValues();
+    }
+
+    @Benchmark
+    public byte[] writeObjectStream() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(list);
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] writeShapeTable() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        CompactMapOutput output = new CompactMapOutput(oos);
+        List<CompactHashMap<String, Object>> list = this.list;
+        oos.writeInt(list.size());
+        for (CompactHashMap<String, Object> map : list) {
+            output.writeMap(map);
+        }
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    @Benchmark
+    public Object readObjectStream() throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(objectStreamBytes));
+        return ois.readObject();
+    }
+
+    /**
+     * Writes the maps with {@link ObjectOutputStream} and reads them back.
+     */
+    @Benchmark
+    public Object roundTripObjectStream() throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(writeObjectStream()));
+        return ois.readObject();
+    }
+
+    @Benchmark
+    public Object readShapeTable() throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(shapeTableBytes));
+        CompactMapInput input = new CompactMapInput(ois, context);
+        int size = ois.readInt();
+        List<CompactHashMap<String, Object>> result = new ArrayList<CompactHashMap<String, Object>>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(input.<String, Object>readMap());
+        }
+        return result;
+    }
+}
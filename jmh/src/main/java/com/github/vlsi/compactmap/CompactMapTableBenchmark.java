@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 Vladimir Sitnikov <sitnikov.vladimir@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.vlsi.compactmap;
+
+import org.openjdk.jmh.annotations.*;
+import vlsi.utils.CompactHashMap;
+import vlsi.utils.CompactMapContext;
+import vlsi.utils.CompactMapTable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a list of maps with {@link CompactMapTable}: building the collection from the maps
+ * and summing a column over all the rows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompactMapTableBenchmark {
+    @Param({"10000"})
+    int rows = 10000;
+
+    @Param({"10"})
+    int keys = 10;
+
+    @Param({"1", "10"})
+    int shapes = 10;
+
+    CompactMapContext context;
+    List<CompactHashMap<String, Object>> list;
+    CompactMapTable<String, Object> table;
+
+    @Setup
+    public void init() {
+        context = new CompactMapContext();
+        list = new ArrayList<CompactHashMap<String, Object>>(rows);
+        for (int i = 0; i < rows; i++) {
+            CompactHashMap<String, Object> map = context.newMap();
+            int shape = i % shapes;
+            map.put("price", i);
+            for (int j = 0; j < keys; j++) {
+                map.put("shape" + shape + "_key" + j, "value" + j);
+            }
+            list.add(map);
+        }
+        table = buildTable();
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> buildList() {
+        List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+        for (CompactHashMap<String, Object> map : list) {
+            result.add(map.clone());
+        }
+        return result;
+    }
+
+    @Benchmark
+    public CompactMapTable<String, Object> buildTable() {
+        CompactMapTable<String, Object> result = new CompactMapTable<String, Object>(context);
+        result.addAll(list);
+        return result;
+    }
+
+    @Benchmark
+    public long sumList() {
+        long sum = 0;
+        for (CompactHashMap<String, Object> map : list) {
+            sum += (Integer) map.get("price");
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long sumTableViews() {
+        long sum = 0;
+        for (Map<String, Object> row : table) {
+            sum += (Integer) row.get("price");
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long sumTableScan() {
+        long sum = 0;
+        for (CompactMapTable.ColumnCursor<Object> c = table.scan("price"); c.next(); ) {
+            sum += (Integer) c.value();
+        }
+        return sum;
+    }
+}
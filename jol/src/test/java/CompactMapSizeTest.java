@@ -1,9 +1,17 @@
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.openjdk.jol.info.ClassLayout;
 import org.openjdk.jol.info.GraphLayout;
+import vlsi.utils.CompactEnumMap;
 import vlsi.utils.CompactHashMap;
+import vlsi.utils.CompactIntMap;
+import vlsi.utils.CompactMapContext;
+import vlsi.utils.CompactMapTable;
+import vlsi.utils.ConcurrentCompactHashMap;
 
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CompactMapSizeTest {
     private final static ArrayList<String> keys = new ArrayList<String>();
@@ -98,5 +106,232 @@ public class CompactMapSizeTest {
         }
     }
 
-}
+    /**
+     * Computes the footprint of the object graph without the shared class of the map (it is shared across the maps).
+     */
+    private static long sizeWithoutClass(Object root, Object map, Field klass) throws IllegalAccessException {
+        Object prevKlass = klass.get(map);
+        klass.set(map, null);
+        try {
+            return GraphLayout.parseInstance(root).totalSize();
+        } finally {
+            klass.set(map, prevKlass);
+        }
+    }
+
+    /**
+     * {@link vlsi.utils.ConcurrentCompactHashMap} costs a single small object on top of
+     * {@link vlsi.utils.CompactHashMap}, so it is much smaller than {@link java.util.concurrent.ConcurrentHashMap}.
+     *
+     * @throws NoSuchFieldException
+     * @throws IllegalAccessException
+     */
+    @Test
+    public void concurrentMapOverhead() throws NoSuchFieldException, IllegalAccessException {
+        Random rnd = new Random();
+        Field map = ConcurrentCompactHashMap.class.getDeclaredField("map");
+        map.setAccessible(true);
+        Field klass = CompactHashMap.class.getDeclaredField("klass");
+        klass.setAccessible(true);
+
+        System.out.println("number_of_keys;compactmap_size;concurrent_compactmap_size;concurrent_hashmap_size");
+        for (int j = 1; j < 101; j += j < 10 ? 1 : 10) {
+            rnd.setSeed(42 * j);
+            Map<String, String> m = new CompactHashMap<String, String>();
+            long compactValues = fill(m, j, rnd, false, true);
+            long compactSize = sizeWithoutClass(m, m, klass) - compactValues;
+
+            rnd.setSeed(42 * j);
+            ConcurrentCompactHashMap<String, String> ccm = new ConcurrentCompactHashMap<String, String>();
+            long ccmValues = fill(ccm, j, rnd, false, true);
+            long ccmSize = sizeWithoutClass(ccm, map.get(ccm), klass) - ccmValues;
+
+            rnd.setSeed(42 * j);
+            Map<String, String> chm = new ConcurrentHashMap<String, String>();
+            long chmValues = fill(chm, j, rnd, true, true);
+            long chmSize = GraphLayout.parseInstance(chm).totalSize() - chmValues;
+
+            System.out.println(j + ";" + compactSize + ";" + ccmSize + ";" + chmSize);
+            // The copies that are made on update have exact arrays, so the concurrent map might be even smaller
+            Assertions.assertTrue(
+                    ccmSize <= compactSize + ClassLayout.parseClass(ConcurrentCompactHashMap.class).instanceSize(),
+                    "ConcurrentCompactHashMap should add a single object to CompactHashMap, size " + j);
+            Assertions.assertTrue(ccmSize < chmSize,
+                    "ConcurrentCompactHashMap should be smaller than ConcurrentHashMap, size " + j);
+        }
+    }
+
+    /**
+     * {@link vlsi.utils.FrozenCompactHashMap} is not a wrapper, so it is smaller than
+     * {@link java.util.Collections#unmodifiableMap(Map)} on top of {@link vlsi.utils.CompactHashMap},
+     * and it is not larger than the source map: its only field fits in the gap of the 8 byte alignment.
+     *
+     * @throws NoSuchFieldException
+     * @throws IllegalAccessException
+     */
+    @Test
+    public void frozenMapOverhead() throws NoSuchFieldException, IllegalAccessException {
+        Random rnd = new Random();
+        Field klass = CompactHashMap.class.getDeclaredField("klass");
+        klass.setAccessible(true);
+
+        System.out.println("number_of_keys;compactmap_size;unmodifiable_compactmap_size;frozen_compactmap_size");
+        for (int j = 0; j < 101; j += j < 10 ? 1 : 10) {
+            rnd.setSeed(42 * j);
+            CompactHashMap<String, String> m = new CompactHashMap<String, String>();
+            long values = fill(m, j, rnd, false, true);
+            long compactSize = sizeWithoutClass(m, m, klass) - values;
+            Map<String, String> unmodifiable = Collections.unmodifiableMap(m);
+            long unmodifiableSize = sizeWithoutClass(unmodifiable, m, klass) - values;
+
+            Map<String, String> frozen = m.freeze();
+            long frozenSize = sizeWithoutClass(frozen, frozen, klass) - values;
+
+            System.out.println(j + ";" + compactSize + ";" + unmodifiableSize + ";" + frozenSize);
+            Assertions.assertTrue(frozenSize < unmodifiableSize,
+                    "FrozenCompactHashMap should be smaller than unmodifiableMap(CompactHashMap), size " + j);
+            // The frozen map drops the spare capacity, and it has no fields of its own
+            Assertions.assertTrue(frozenSize <= compactSize,
+                    "FrozenCompactHashMap should not be larger than CompactHashMap, size " + j);
+        }
+    }
+
+    /**
+     * {@link vlsi.utils.CompactIntMap} stores {@code int[]} rather than an {@link Integer} per value.
+     *
+     * @throws NoSuchFieldException
+     * @throws IllegalAccessException
+     */
+    @Test
+    public void intMapOverhead() throws NoSuchFieldException, IllegalAccessException {
+        Field klass = CompactHashMap.class.getDeclaredField("klass");
+        klass.setAccessible(true);
+        // CompactIntMap inherits the field from a package-private class
+        Field intMapKlass = CompactIntMap.class.getSuperclass().getDeclaredField("klass");
+        intMapKlass.setAccessible(true);
+
+        System.out.println("number_of_keys;compactmap_integer_size;intmap_size");
+        for (int j = 0; j < 101; j += j < 10 ? 1 : 10) {
+            CompactHashMap<String, Integer> m = new CompactHashMap<String, Integer>();
+            CompactIntMap<String> intMap = new CompactIntMap<String>();
+            for (int i = 0; i < j; i++) {
+                // The values are not in Integer cache
+                m.put(keys.get(i), 1000 + i);
+                intMap.putInt(keys.get(i), 1000 + i);
+            }
+            long compactSize = sizeWithoutClass(m, m, klass);
+            long intMapSize = sizeWithoutClass(intMap, intMap, intMapKlass);
+
+            System.out.println(j + ";" + compactSize + ";" + intMapSize);
+            if (j > 1) {
+                Assertions.assertTrue(intMapSize < compactSize,
+                        "CompactIntMap should be smaller than CompactHashMap<String, Integer>, size " + j);
+            }
+        }
+    }
+
+    enum Column {
+        C0, C1, C2, C3, C4, C5, C6, C7, C8, C9,
+        C10, C11, C12, C13, C14, C15, C16, C17, C18, C19,
+        C20, C21, C22, C23, C24, C25, C26, C27, C28, C29,
+        C30, C31
+    }
+
+    /**
+     * Computes the footprint of a map without the objects it shares with the other maps
+     * (key type, array of constants, values): the difference between a hundred maps and a single one.
+     */
+    private static long perMapSize(Object[] maps) {
+        long all = GraphLayout.parseInstance((Object) maps).totalSize();
+        long one = GraphLayout.parseInstance((Object) new Object[]{maps[0]}).totalSize();
+        // The array of a hundred maps is larger
+        long arrays = GraphLayout.parseInstance((Object) new Object[maps.length]).totalSize()
+                - GraphLayout.parseInstance((Object) new Object[1]).totalSize();
+        return (all - one - arrays) / (maps.length - 1);
+    }
+
+    /**
+     * {@link vlsi.utils.CompactEnumMap} has no cells for the absent keys, so sparse maps are smaller
+     * than {@link java.util.EnumMap}.
+     */
+    @Test
+    public void enumMapOverhead() {
+        Column[] columns = Column.values();
+        String value = "value";
+
+        System.out.println("number_of_keys;enummap_size;compact_enummap_size");
+        for (int j = 0; j <= columns.length; j += j < 8 ? 1 : 8) {
+            Object[] enumMaps = new Object[100];
+            Object[] compactEnumMaps = new Object[100];
+            for (int k = 0; k < enumMaps.length; k++) {
+                Map<Column, String> enumMap = new EnumMap<Column, String>(Column.class);
+                Map<Column, String> compactEnumMap = new CompactEnumMap<Column, String>(Column.class);
+                for (int i = 0; i < j; i++) {
+                    enumMap.put(columns[i], value);
+                    compactEnumMap.put(columns[i], value);
+                }
+                enumMaps[k] = enumMap;
+                compactEnumMaps[k] = compactEnumMap;
+            }
+            long enumMapSize = perMapSize(enumMaps);
+            long compactEnumMapSize = perMapSize(compactEnumMaps);
+
+            System.out.println(j + ";" + enumMapSize + ";" + compactEnumMapSize);
+            if (j < columns.length / 2) {
+                Assertions.assertTrue(compactEnumMapSize < enumMapSize,
+                        "CompactEnumMap should be smaller than EnumMap, size " + j);
+            }
+        }
+    }
 
+    /**
+     * {@link CompactMapTable} stores the values of a row in the columns of its class, so it does not pay
+     * for a map object and for the array of values per row.
+     * The values and the classes of the maps are shared, so the sizes account for the row overhead only.
+     */
+    @Test
+    public void tableOverhead() throws NoSuchFieldException, IllegalAccessException {
+        Field klass = CompactHashMap.class.getDeclaredField("klass");
+        klass.setAccessible(true);
+        int rows = 1000;
+        String value = "value";
+        System.out.println("number_of_keys;list_per_row;table_per_row");
+        for (int j : new int[]{1, 3, 5, 10, 20}) {
+            List<CompactHashMap<String, String>> list = new ArrayList<CompactHashMap<String, String>>(rows);
+            CompactMapContext context = new CompactMapContext();
+            CompactMapTable<String, String> table = new CompactMapTable<String, String>(context);
+            for (int k = 0; k < rows; k++) {
+                CompactHashMap<String, String> map = context.newMap();
+                for (int i = 0; i < j; i++) {
+                    map.put(keys.get(i), value);
+                }
+                list.add(map);
+                table.add(map);
+            }
+            Object shared = klass.get(list.get(0));
+            long sharedSize = GraphLayout.parseInstance(shared, context, value).totalSize();
+            long listSize = GraphLayout.parseInstance(list, shared, context, value).totalSize() - sharedSize;
+            long tableSize = GraphLayout.parseInstance(table, shared, context, value).totalSize() - sharedSize;
+
+            System.out.println(j + ";" + listSize / rows + ";" + tableSize / rows);
+            Assertions.assertTrue(tableSize < listSize,
+                    "CompactMapTable should be smaller than a list of maps, keys " + j);
+        }
+    }
+
+    private static class FourReferences {
+        Object klass, v1, v2, v3;
+    }
+
+    /**
+     * The class counts the removed slots, so the map is as large as an object with four references
+     * in any object layout.
+     */
+    @Test
+    public void mapHasJustFourReferences() {
+        System.out.println(ClassLayout.parseClass(CompactHashMap.class).toPrintable());
+        Assertions.assertEquals(
+                ClassLayout.parseClass(FourReferences.class).instanceSize(),
+                ClassLayout.parseClass(CompactHashMap.class).instanceSize());
+    }
+}
@@ -0,0 +1,57 @@
+import org.junit.jupiter.api.Test;
+import org.openjdk.jol.info.GraphLayout;
+import vlsi.utils.CompactHashMap;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Reports the memory consumed by hidden classes (shapes) of {@link CompactHashMap}.
+ * The keys themselves are not accounted since they are shared with the maps.
+ */
+public class ShapeMetadataSizeTest {
+    @Test
+    public void metadataBytesPerShape() throws NoSuchFieldException, IllegalAccessException {
+        Field klass = CompactHashMap.class.getDeclaredField("klass");
+        klass.setAccessible(true);
+
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            keys.add("key" + i);
+        }
+
+        Random rnd = new Random(42);
+        List<Object> classes = new ArrayList<Object>();
+        classes.add(klass.get(new CompactHashMap<String, String>()));
+        System.out.println("maps;keys_per_map;shapes;metadata_bytes;bytes_per_shape");
+        for (int keysPerMap : new int[]{5, 20, 100}) {
+            for (int maps = 0; maps < 200; maps++) {
+                // Maps share common prefix, then diverge, so the transition tree has both chains and branches
+                Collections.shuffle(keys.subList(keysPerMap / 2, keys.size()), rnd);
+                Map<String, String> m = new CompactHashMap<String, String>();
+                for (int i = 0; i < keysPerMap; i++) {
+                    m.put(keys.get(i), "value");
+                    // Lookups make classes "hot"
+                    for (int j = 0; j < 50; j++) {
+                        m.get(keys.get(j));
+                    }
+                }
+                classes.add(klass.get(m));
+            }
+
+            GraphLayout layout = GraphLayout.parseInstance(classes.toArray())
+                    .subtract(GraphLayout.parseInstance(keys.toArray()));
+            long shapes = 0;
+            for (Class<?> c : layout.getClasses()) {
+                if (c.getName().startsWith("vlsi.utils.CompactHashMapClass") && c.getName().indexOf('$') == -1) {
+                    shapes += layout.getClassCounts().count(c);
+                }
+            }
+            System.out.println(classes.size() - 1
+                    + ";" + keysPerMap
+                    + ";" + shapes
+                    + ";" + layout.totalSize()
+                    + ";" + layout.totalSize() / shapes);
+        }
+    }
+}